@@ -5,23 +5,64 @@ export main_verticle="ru.shishmakov.WebMongoVerticle"
 #export main_verticle="ru.shishmakov.WebSqlVerticle"
 #export main_verticle="ru.shishmakov.SimpleVerticle"
 
+export fat_jar="./target/vertx-tutor-app-1.0-SNAPSHOT-fat.jar"
+# class data sharing archive of the fat jar (JDK 13+), it's stale after every build of the jar
+export cds_archive="./target/vertx-tutor-app-1.0-SNAPSHOT-fat.jsa"
+
 conf=""
+cds=""
 for key in "$@"
 do
 	echo $key
 	if [[ -n "$key" && "$key" = "build" ]]; then
 		./mvnw clean verify
+		rm -f $cds_archive
+	fi
+	if [[ -n "$key" && "$key" = "cds" ]]; then
+		cds="true"
 	fi
 	if [[ -n "$key" && -f "$key" ]]; then
 		conf=$key
 	fi
 done
 
+# train the archive: start the app, serve one request and dump the loaded classes on exit
+if [[ -n "$cds" ]]; then
+	port=8080
+	if [[ -n "$conf" ]]; then
+		port=$(grep -o '"http.port": *[0-9]*' $conf | grep -o '[0-9]*$')
+	fi
+	java -XX:ArchiveClassesAtExit=$cds_archive -jar $fat_jar ${conf:+-conf $conf} &
+	pid=$!
+	# wait for the app up to 60 s, fail if it exits or doesn't answer
+	attempts=300
+	until curl -sf localhost:$port/health/live > /dev/null; do
+		if ! kill -0 $pid 2> /dev/null; then
+			echo "cds training failed: the app has exited" >&2
+			exit 1
+		fi
+		attempts=$((attempts - 1))
+		if [[ $attempts -le 0 ]]; then
+			echo "cds training failed: the app doesn't answer on port $port" >&2
+			kill -TERM $pid
+			exit 1
+		fi
+		sleep 0.2
+	done
+	curl -sf localhost:$port/api/whiskies > /dev/null
+	kill -TERM $pid
+	wait $pid
+fi
+
+java_opts=""
+if [[ -f "$cds_archive" ]]; then
+	java_opts="-XX:SharedArchiveFile=$cds_archive"
+fi
 
 if [[ -n "$conf" ]]
 then
-	java -jar ./target/vertx-tutor-app-1.0-SNAPSHOT-fat.jar -conf $conf
+	java $java_opts -jar $fat_jar -conf $conf
 else
-	java -jar ./target/vertx-tutor-app-1.0-SNAPSHOT-fat.jar
+	java $java_opts -jar $fat_jar
 fi
 
@@ -4,28 +4,62 @@ import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
-import io.vertx.core.json.Json;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.BulkOperation;
 import io.vertx.ext.mongo.FindOptions;
 import io.vertx.ext.mongo.MongoClient;
 import io.vertx.ext.mongo.UpdateOptions;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
-import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.StaticHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.shishmakov.blog.CompactCatalog;
 import ru.shishmakov.blog.Whisky;
+import ru.shishmakov.blog.WhiskyFormat;
+import ru.shishmakov.db.DbGuard;
+import ru.shishmakov.db.DbGuard.AnswerException;
+import ru.shishmakov.db.InstrumentedMongo;
+import ru.shishmakov.db.ItemCache;
+import ru.shishmakov.db.MongoIdempotencyStore;
+import ru.shishmakov.db.MongoSchema;
+import ru.shishmakov.metrics.HotKeys;
+import ru.shishmakov.metrics.Metrics;
+import ru.shishmakov.metrics.ServerTiming;
+import ru.shishmakov.metrics.ServerTiming.Phase;
+import ru.shishmakov.metrics.ServerTiming.Phases;
+import ru.shishmakov.web.AccessLogHandler;
+import ru.shishmakov.web.CatalogStreams;
+import ru.shishmakov.web.Drain;
+import ru.shishmakov.web.Fields;
+import ru.shishmakov.web.Health;
+import ru.shishmakov.web.Idempotency;
+import ru.shishmakov.web.JsonBodyHandler;
+import ru.shishmakov.web.ReadYourWrites;
+import ru.shishmakov.web.MultiGet;
+import ru.shishmakov.web.Representation;
+import ru.shishmakov.web.ResponseCache;
+import ru.shishmakov.web.RateLimiter;
+import ru.shishmakov.web.TrafficCapture;
 
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 
 import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static java.util.Optional.ofNullable;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
 
 /**
  * Use <b>vertx-web</b> part of Vert.x
@@ -36,40 +70,123 @@ public class WebMongoVerticle extends AbstractVerticle {
     private static final String COLLECTION = "whiskies";
     private static final String COLLECTION_SEQ = "whiskies_seq";
     private static final String DATABASE = "whisky_store";
+    private static final String ALL = "all";
     private static final Pattern digits = Pattern.compile("^[0-9]+$");
 
     private MongoClient mongoClient;
+    private MongoClient replicaClient;
+    private DbGuard guard;
+    private ResponseCache responseCache;
+    private ItemCache itemCache;
+    private MongoSchema schema;
+    private ReadYourWrites readYourWrites;
+    private ServerTiming serverTiming;
+    private HotKeys hotKeys;
+    private TrafficCapture trafficCapture;
+    private RateLimiter rateLimiter;
+    private Idempotency idempotency;
+    private Drain drain;
+    private Health health;
+    private HttpServer server;
+    private int maxMultiGetIds;
+    private String exportDir;
+    private int importBatchSize;
+    private int exportFetchSize;
+    private boolean compactCatalog;
+    private boolean offHeapCatalog;
 
     @Override
     public void start(Future<Void> verticleFuture) {
-        this.mongoClient = MongoClient.createShared(vertx, ((UnaryOperator<JsonObject>) conf -> {
+        JsonObject mongoConf = ((UnaryOperator<JsonObject>) conf -> {
             conf.getMap().putIfAbsent("db_name", DATABASE);
             conf.getMap().putIfAbsent("connection_string", "mongodb://localhost:27017");
             return conf;
-        }).apply(config()), "ds-whisky");
+        }).apply(config());
+        this.mongoClient = InstrumentedMongo.createShared(vertx, mongoConf, "ds-whisky");
+        this.readYourWrites = new ReadYourWrites("mongo", config());
+        // the replica set is the same, reads of the other client prefer secondaries
+        if (readYourWrites.isEnabled()) {
+            JsonObject replicaConf = mongoConf.copy();
+            String readPreference = replicaConf.getJsonObject("replica").getString("read_preference", "secondaryPreferred");
+            replicaConf.put("mongo", replicaConf.getJsonObject("mongo", new JsonObject()).put("read_preference", readPreference));
+            this.replicaClient = InstrumentedMongo.createShared(vertx, replicaConf, "ds-whisky-replica", "mongo.replica");
+        } else this.replicaClient = mongoClient;
+        this.guard = new DbGuard(vertx, "ds-whisky-mongo", config());
+        this.responseCache = new ResponseCache("mongo", config());
+        this.itemCache = new ItemCache(vertx, "mongo", config());
+        this.schema = new MongoSchema(vertx, mongoClient, COLLECTION, config());
+        this.drain = new Drain(vertx, "mongo", config());
+        this.serverTiming = new ServerTiming("mongo", config());
+        this.hotKeys = new HotKeys(vertx, "mongo", config());
+        hotKeys.start();
+        itemCache.pin(hotKeys::isHot);
+        this.trafficCapture = new TrafficCapture(vertx, config());
+        this.rateLimiter = new RateLimiter(vertx, "mongo", config());
+        rateLimiter.start();
+        this.health = new Health(vertx, "mongo", config(), drain, this::ping);
+        this.idempotency = new Idempotency(vertx, "mongo", config(), new MongoIdempotencyStore(mongoClient));
+        this.maxMultiGetIds = config().getInteger("multi_get_max_ids", 1000);
+        this.exportDir = config().getString("export_dir", "db/export");
+        this.importBatchSize = config().getInteger("import_batch_size", 500);
+        this.exportFetchSize = config().getInteger("export_fetch_size", 1000);
+        JsonObject catalogConf = config().getJsonObject("compact_catalog", new JsonObject());
+        this.compactCatalog = catalogConf.getBoolean("enabled", true);
+        this.offHeapCatalog = catalogConf.getBoolean("off_heap", false);
 
-        initDefaultData()
+        if (config().getBoolean("fast_startup", false)) {
+            // the server listens while the default data is checked, the API answers 503 until then
+            initDb().setHandler(health.initializing());
+            startWeb().setHandler(verticleFuture.completer());
+        } else initDb()
                 .compose(v -> startWeb())
                 .setHandler(verticleFuture.completer());
     }
 
+    /**
+     * Drains requests in flight before the database client is closed
+     */
     @Override
-    public void stop() {
-        mongoClient.close();
-        logger.info("server has stopped");
+    public void stop(Future<Void> stopFuture) {
+        health.stop();
+        idempotency.stop();
+        hotKeys.stop();
+        rateLimiter.stop();
+        schema.stop();
+        drain.drain(drained -> server.close(closeResult -> itemCache.close(closed -> trafficCapture.close(captured -> {
+            guard.close();
+            responseCache.close();
+            mongoClient.close();
+            if (replicaClient != mongoClient) replicaClient.close();
+            logger.info("server has stopped");
+            stopFuture.complete();
+        }))));
+    }
+
+    /**
+     * Creates the default data, then the index of idempotency keys; the item cache is warmed up last.
+     * Documents of older versions are migrated to the canonical schema in the background.
+     */
+    private Future<Void> initDb() {
+        return initDefaultData()
+                .compose(v -> idempotency.init())
+                .compose(v -> itemCache.warmUp(this::selectVersions, this::selectFirst))
+                .map(v -> {
+                    schema.start();
+                    return v;
+                });
     }
 
     /**
-     * Initializes the database with default values
+     * Initializes the database with default values; one document tells the collection isn't empty
      */
     private Future<Void> initDefaultData() {
         Future<Void> future = Future.future();
-        mongoClient.count(COLLECTION, new JsonObject(), countResult -> {
-            if (countResult.failed()) {
-                future.fail(countResult.cause());
+        mongoClient.findOne(COLLECTION, new JsonObject(), new JsonObject().put("_id", 1), findResult -> {
+            if (findResult.failed()) {
+                future.fail(findResult.cause());
                 return;
             }
-            if (countResult.result() == 0L) {
+            if (findResult.result() == null) {
                 // add 2 whines
                 insertOne(buildBowmore(), insertBowmoreResult -> {
                     if (insertBowmoreResult.failed()) future.fail(insertBowmoreResult.cause());
@@ -89,23 +206,50 @@ public class WebMongoVerticle extends AbstractVerticle {
     private Future<Void> startWeb() {
         Future<Void> future = Future.future();
         Router router = Router.router(vertx);
+        router.route().handler(AccessLogHandler.create(config()));
+        router.route().handler(drain::track);
+        router.route("/api/*").handler(rateLimiter);
+        router.route("/api/*").handler(health::requireInitialized);
+        router.route("/api/*").handler(serverTiming);
+        router.route("/api/*").handler(hotKeys);
+        router.route("/api/*").handler(trafficCapture);
         router.route("/").handler(this::welcomeRootHandler);
         router.route("/assets/*").handler(StaticHandler.create("assets"));
 
+        router.get("/api/whiskies").handler(Fields::validate);
+        router.get("/api/whiskies").handler(this::getManyHandler);
         router.get("/api/whiskies").handler(this::getAllHandler);
-        router.route("/api/whiskies*").handler(BodyHandler.create());
+        // export and import stream the body, only the routes with a JSON body parse it while it arrives
+        router.get("/api/whiskies/_export").handler(this::exportHandler);
+        router.post("/api/whiskies/_import").handler(this::importHandler);
+        JsonBodyHandler jsonBody = JsonBodyHandler.create(config());
 
+        router.post("/api/whiskies").handler(jsonBody);
+        router.post("/api/whiskies").handler(idempotency);
         router.post("/api/whiskies").handler(this::addOneHandler);
+        router.post("/api/whiskies/_mget").handler(Fields::validate);
+        router.post("/api/whiskies/_mget").handler(jsonBody);
+        router.post("/api/whiskies/_mget").handler(this::postManyHandler);
+        router.get("/api/whiskies/:id").handler(Fields::validate);
+        router.get("/api/whiskies/:id").handler(this::getOneFieldsHandler);
         router.get("/api/whiskies/:id").handler(this::getOneHandler);
+        router.put("/api/whiskies/:id").handler(jsonBody);
+        router.put("/api/whiskies/:id").handler(idempotency);
         router.put("/api/whiskies/:id").handler(this::updateOneHandler);
         router.delete("/api/whiskies/:id").handler(this::deleteOneHandler);
-        vertx.createHttpServer()
+        router.get("/admin/metrics").handler(Metrics::handle);
+        router.get("/admin/hotkeys").handler(HotKeys::report);
+        router.get("/health/live").handler(health::live);
+        router.get("/health/ready").handler(health::ready);
+        this.server = vertx.createHttpServer()
+                .connectionHandler(drain::connection)
                 .requestHandler(router::accept)
                 .listen(config().getInteger("http.port", 8080), serverResult -> {
                     if (serverResult.failed()) {
                         future.fail(serverResult.cause());
                         logger.info("server has failed on start");
                     } else {
+                        health.start();
                         future.complete();
                         logger.info("server has started successfully");
                     }
@@ -130,42 +274,85 @@ public class WebMongoVerticle extends AbstractVerticle {
                 .filter(n -> digits.matcher(n).find())
                 .map(Integer::valueOf)
                 .orElse(null);
-        JsonObject src = context.getBodyAsJson();
+        JsonObject src;
+        try {
+            src = Representation.decodeBodyAsJson(context);
+        } catch (DecodeException e) {
+            context.response().setStatusCode(400).setStatusMessage(e.getMessage()).end();
+            return;
+        }
         if (isNull(id) || isNull(src)) context.response().setStatusCode(400).end();
-        else updateOne(id, src, updateResult -> {
+        else guard.<Whisky>execute("update_one", null, future -> updateOne(id, src, future), updateResult -> {
             if (updateResult.failed()) context.response()
-                    .setStatusCode(404)
+                    .setStatusCode(DbGuard.isUnavailable(updateResult.cause()) ? 503 : 404)
                     .setStatusMessage(updateResult.cause().getMessage())
                     .end();
-            else context.response()
-                    .setStatusCode(200)
-                    .putHeader("content-type", "application/json; charset=utf-8")
-                    .end(Json.encodePrettily(updateResult.result()));
+            else {
+                guard.evict(id, ALL);
+                itemCache.evict(id);
+                responseCache.invalidate();
+                readYourWrites.wrote(context);
+                Representation.end(context, 200, updateResult.result());
+            }
         });
     }
 
     /**
-     * curl -X GET localhost:8080/api/whiskies/1
+     * curl -X GET localhost:8080/api/whiskies/1?fields=id,name
      */
-    private void getOneHandler(RoutingContext context) {
+    private void getOneFieldsHandler(RoutingContext context) {
+        Fields fields = Fields.of(context);
+        if (isNull(fields)) {
+            context.next();
+            return;
+        }
         Integer id = Optional.of(context.request())
                 .map(r -> r.getParam("id"))
                 .filter(n -> digits.matcher(n).find())
                 .map(Integer::valueOf)
                 .orElse(null);
+        Whisky cached = isNull(id) ? null : itemCache.get(id);
         if (isNull(id)) context.response().setStatusCode(400).end();
-        else selectOne(id, selectResult -> {
+        else if (cached != null) Representation.end(context, 200, fields.project(cached));
+        else guard.<JsonObject>execute("select_one", null, future -> selectOne(reads(context), id, fields, future), selectResult -> {
             if (selectResult.failed()) context.response()
-                    .setStatusCode(404)
+                    .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 404)
                     .setStatusMessage(selectResult.cause().getMessage())
                     .end();
-            else context.response()
-                    .setStatusCode(200)
-                    .putHeader("content-type", "application/json; charset=utf-8")
-                    .end(Json.encodePrettily(selectResult.result()));
+            else Representation.end(context, 200, selectResult.result());
         });
     }
 
+    /**
+     * curl -X GET localhost:8080/api/whiskies/1
+     */
+    private void getOneHandler(RoutingContext context) {
+        Integer id = Optional.of(context.request())
+                .map(r -> r.getParam("id"))
+                .filter(n -> digits.matcher(n).find())
+                .map(Integer::valueOf)
+                .orElse(null);
+        Whisky cached = isNull(id) ? null : itemCache.get(id);
+        if (isNull(id)) context.response().setStatusCode(400).end();
+        else if (cached != null) Representation.end(context, 200, cached);
+        else {
+            boolean primary = readYourWrites.readsPrimary(context);
+            long generation = itemCache.generation();
+            Phases phases = ServerTiming.phases(context);
+            guard.<Whisky>execute("select_one", id, future -> selectOne(primary ? mongoClient : replicaClient, id, phases, future), selectResult -> {
+                if (selectResult.failed()) context.response()
+                        .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 404)
+                        .setStatusMessage(selectResult.cause().getMessage())
+                        .end();
+                else {
+                    // a secondary which may lag behind the last write isn't cached, as in the response cache
+                    if (primary || readYourWrites.isSettled()) itemCache.put(generation, selectResult.result());
+                    Representation.end(context, 200, selectResult.result());
+                }
+            });
+        }
+    }
+
     /**
      * curl -X DELETE localhost:8080/api/whiskies/2
      */
@@ -176,42 +363,159 @@ public class WebMongoVerticle extends AbstractVerticle {
                 .map(Integer::valueOf)
                 .orElse(null);
         if (isNull(id)) context.response().setStatusCode(400).end();
-        else delete(id, deleteResult -> context.response().setStatusCode(204).end());
+        else guard.<Void>execute("delete_one", null, future -> delete(id, future), deleteResult -> {
+            if (deleteResult.failed() && DbGuard.isUnavailable(deleteResult.cause())) context.response()
+                    .setStatusCode(503)
+                    .setStatusMessage(deleteResult.cause().getMessage())
+                    .end();
+            else {
+                guard.evict(id, ALL);
+                itemCache.evict(id);
+                responseCache.invalidate();
+                readYourWrites.wrote(context);
+                context.response().setStatusCode(204).end();
+            }
+        });
     }
 
     /**
      * curl -H "Content-Type: application/json" -X POST -d '{"id":2,"name":"WhiskyName","origin":"WhiskyOrigin"}' localhost:8080/api/whiskies
      */
     private void addOneHandler(RoutingContext context) {
-        Whisky whisky = Json.decodeValue(context.getBodyAsString(), Whisky.class);
-        insertOne(whisky, insertResult -> {
+        Whisky whisky;
+        try {
+            whisky = Representation.decodeBody(context, Whisky.class);
+        } catch (DecodeException e) {
+            context.response().setStatusCode(400).setStatusMessage(e.getMessage()).end();
+            return;
+        }
+        guard.<Whisky>execute("insert_one", null, future -> insertOne(whisky, future), insertResult -> {
             if (insertResult.failed()) context.response()
-                    .setStatusCode(400)
+                    .setStatusCode(DbGuard.isUnavailable(insertResult.cause()) ? 503 : 400)
                     .setStatusMessage(insertResult.cause().getMessage())
                     .end();
-            else context.response()
-                    .setStatusCode(201)
-                    .putHeader("content-type", "application/json; charset=utf-8")
-                    .end(Json.encodePrettily(insertResult.result()));
+            else {
+                guard.evict(ALL);
+                responseCache.invalidate();
+                readYourWrites.wrote(context);
+                Representation.end(context, 201, insertResult.result());
+            }
         });
     }
 
     /**
-     * curl -X GET localhost:8080/api/whiskies
+     * curl -X GET localhost:8080/api/whiskies?ids=1,2,3
      */
-    private void getAllHandler(RoutingContext context) {
-        selectAll(selectResult -> {
+    private void getManyHandler(RoutingContext context) {
+        String ids = context.request().getParam("ids");
+        if (isNull(ids)) context.next();
+        else selectManyResponse(context, MultiGet.parseIds(ids));
+    }
+
+    /**
+     * curl -H "Content-Type: application/json" -X POST -d '[1,2,3]' localhost:8080/api/whiskies/_mget
+     */
+    private void postManyHandler(RoutingContext context) {
+        try {
+            selectManyResponse(context, MultiGet.parseIds(Representation.decodeBody(context, int[].class)));
+        } catch (DecodeException e) {
+            context.response().setStatusCode(400).setStatusMessage(e.getMessage()).end();
+        }
+    }
+
+    private void selectManyResponse(RoutingContext context, List<Integer> ids) {
+        Fields fields = Fields.of(context);
+        if (isNull(ids) || ids.isEmpty() || ids.size() > maxMultiGetIds) context.response().setStatusCode(400).end();
+        else if (nonNull(fields)) guard.<List<JsonObject>>execute("select_many", null, future -> selectMany(reads(context), ids, fields, future), selectResult -> {
             if (selectResult.failed()) context.response()
-                    .setStatusCode(400)
+                    .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 400)
                     .setStatusMessage(selectResult.cause().getMessage())
                     .end();
-            context.response()
-                    .setStatusCode(200)
-                    .putHeader("content-type", "application/json; charset=utf-8")
-                    .end(Json.encodePrettily(selectResult.result()));
+            else Representation.end(context, 200, MultiGet.inRequestOrder(ids, selectResult.result(), json -> json.getInteger("id")));
+        });
+        else guard.<List<Whisky>>execute("select_many", null, future -> selectMany(reads(context), ids, future), selectResult -> {
+            if (selectResult.failed()) context.response()
+                    .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 400)
+                    .setStatusMessage(selectResult.cause().getMessage())
+                    .end();
+            else Representation.end(context, 200, MultiGet.inRequestOrder(ids, selectResult.result()));
+        });
+    }
+
+    /**
+     * curl -X GET localhost:8080/api/whiskies/_export?format=ndjson
+     */
+    private void exportHandler(RoutingContext context) {
+        WhiskyFormat format = WhiskyFormat.of(context.request().getParam("format"));
+        if (isNull(format)) context.response().setStatusCode(400).end();
+        else {
+            ReadStream<JsonObject> rows = mongoClient.findBatchWithOptions(COLLECTION, new JsonObject(), new FindOptions()
+                    .setSort(new JsonObject().put("_id", 1))
+                    .setBatchSize(exportFetchSize));
+            CatalogStreams.export(context, exportDir, format, rows, Whisky::fromJson, v -> closeCursor(rows));
+        }
+    }
+
+    /**
+     * Closes the cursor of an export aborted by the client; the stream closes it itself on the end or a failure
+     * and refuses another close then
+     */
+    private static void closeCursor(ReadStream<JsonObject> rows) {
+        try {
+            rows.handler(null);
+        } catch (IllegalArgumentException e) {
+            // the cursor is closed
+        }
+    }
+
+    /**
+     * curl -H "Content-Type: application/x-ndjson" -X POST --data-binary @whiskies.ndjson localhost:8080/api/whiskies/_import
+     */
+    private void importHandler(RoutingContext context) {
+        WhiskyFormat format = WhiskyFormat.of(context.request().getParam("format"));
+        if (isNull(format)) context.response().setStatusCode(400).end();
+        else CatalogStreams.importFrom(context, exportDir, format, importBatchSize, this::importBatch, v -> {
+            guard.evictAll();
+            itemCache.clear();
+            responseCache.invalidate();
+            readYourWrites.wrote(context);
         });
     }
 
+    /**
+     * curl -X GET localhost:8080/api/whiskies
+     */
+    private void getAllHandler(RoutingContext context) {
+        String cacheKey = ResponseCache.key(context, ALL);
+        if (responseCache.serve(context, cacheKey)) return;
+        long generation = responseCache.generation();
+        boolean primary = readYourWrites.readsPrimary(context);
+        Fields fields = Fields.of(context);
+        // a projection isn't remembered by the fallback cache
+        guard.<List<?>>execute("select_all", isNull(fields) ? ALL : null, this::compact,
+                future -> {
+                    MongoClient client = primary ? mongoClient : replicaClient;
+                    if (isNull(fields)) selectAll(client, selectResult -> future.handle(selectResult.<List<?>>map(rows -> rows)));
+                    else selectAll(client, fields, selectResult -> future.handle(selectResult.<List<?>>map(rows -> rows)));
+                },
+                selectResult -> {
+                    if (selectResult.failed()) context.response()
+                            .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 400)
+                            .setStatusMessage(selectResult.cause().getMessage())
+                            .end();
+                    else {
+                        Buffer body = Representation.encode(context, selectResult.result());
+                        if (primary || readYourWrites.isSettled()) {
+                            responseCache.store(generation, cacheKey, Representation.contentType(context), body);
+                        }
+                        context.response()
+                                .setStatusCode(200)
+                                .putHeader("content-type", Representation.contentType(context))
+                                .end(body);
+                    }
+                });
+    }
+
     /**
      * curl -X GET localhost:8080
      */
@@ -221,6 +525,16 @@ public class WebMongoVerticle extends AbstractVerticle {
                 .end("<h1>Hello from my first Vert.x 3 application!</h1>");
     }
 
+    /**
+     * The cheapest query for the readiness check
+     */
+    private void ping(Future<Void> future) {
+        mongoClient.runCommand("ping", new JsonObject().put("ping", 1), pingResult -> {
+            if (pingResult.failed()) future.fail(pingResult.cause());
+            else future.complete();
+        });
+    }
+
     private void delete(Integer id, Handler<AsyncResult<Void>> next) {
         mongoClient.removeDocument(COLLECTION, new JsonObject().put("_id", id), removeResult -> {
             if (removeResult.failed()) next.handle(Future.failedFuture(removeResult.cause()));
@@ -251,46 +565,181 @@ public class WebMongoVerticle extends AbstractVerticle {
                 });
     }
 
+    /**
+     * Whiskies with id are upserted by id with the next version and the sequence is raised above them,
+     * others get a range of new ids from the sequence
+     */
+    private void importBatch(List<Whisky> batch, Handler<AsyncResult<Void>> next) {
+        int maxId = batch.stream().mapToInt(Whisky::getId).max().orElse(-1);
+        long newCount = batch.stream().filter(w -> w.getId() < 0).count();
+        Future<JsonObject> raised = Future.future();
+        if (maxId < 0) raised.complete();
+        else mongoClient.findOneAndUpdateWithOptions(COLLECTION_SEQ,
+                new JsonObject(),
+                new JsonObject().put("$max", new JsonObject().put("number", maxId + 1)),
+                new FindOptions(),
+                new UpdateOptions().setUpsert(true),
+                raised.completer());
+        raised.compose(v -> {
+            Future<JsonObject> allocated = Future.future();
+            if (newCount == 0) allocated.complete();
+            else mongoClient.findOneAndUpdateWithOptions(COLLECTION_SEQ,
+                    new JsonObject(),
+                    new JsonObject().put("$inc", new JsonObject().put("number", newCount)),
+                    new FindOptions(),
+                    new UpdateOptions().setUpsert(true),
+                    allocated.completer());
+            return allocated;
+        }).compose(seq -> {
+            int nextId = ofNullable(seq).map(j -> j.getInteger("number")).orElse(0);
+            List<BulkOperation> operations = new ArrayList<>(batch.size());
+            for (Whisky whisky : batch) {
+                int id = whisky.getId() < 0 ? nextId++ : whisky.getId();
+                JsonObject src = new JsonObject().put("name", whisky.getName()).put("origin", whisky.getOrigin());
+                operations.add(BulkOperation.createUpdate(new JsonObject().put("_id", id),
+                        MongoSchema.update(src).put("$inc", new JsonObject().put("VERSION", 1)), true, false));
+            }
+            Future<Void> written = Future.future();
+            mongoClient.bulkWrite(COLLECTION, operations, bulkResult -> {
+                if (bulkResult.failed()) written.fail(bulkResult.cause());
+                else written.complete();
+            });
+            return written;
+        }).setHandler(next);
+    }
+
     private void updateOne(Integer id, JsonObject src, Handler<AsyncResult<Whisky>> next) {
         mongoClient.findOneAndUpdateWithOptions(COLLECTION,
                 new JsonObject().put("_id", id),
-                new JsonObject().put("$set", src.put("NAME", src.getString("name")).put("ORIGIN", src.getString("origin"))),
+                MongoSchema.update(src).put("$inc", new JsonObject().put("VERSION", 1)),
                 new FindOptions(),
                 new UpdateOptions().setReturningNewDocument(true),
                 updateResult -> {
                     if (updateResult.failed()) {
                         next.handle(Future.failedFuture(updateResult.cause()));
                     } else if (updateResult.result() == null) {
-                        next.handle(Future.failedFuture("not found whisky: " + id));
+                        next.handle(Future.failedFuture(new AnswerException("not found whisky: " + id)));
                     } else {
                         next.handle(Future.succeededFuture(Whisky.fromJson(updateResult.result())));
                     }
                 });
     }
 
-    private void selectOne(Integer id, Handler<AsyncResult<Whisky>> next) {
-        mongoClient.findOne(COLLECTION, new JsonObject().put("_id", id), null, findResult -> {
+    /**
+     * Reads go to the secondaries unless the client reads its own writes
+     */
+    private MongoClient reads(RoutingContext context) {
+        return readYourWrites.readsPrimary(context) ? mongoClient : replicaClient;
+    }
+
+    /**
+     * The pool of the driver isn't visible to the client, the checkout is a part of the {@code db} phase
+     */
+    private void selectOne(MongoClient client, Integer id, Phases phases, Handler<AsyncResult<Whisky>> next) {
+        long db = phases.start();
+        client.findOne(COLLECTION, new JsonObject().put("_id", id), null, findResult -> {
+            phases.end(Phase.DB, db);
             if (findResult.failed()) {
                 next.handle(Future.failedFuture(findResult.cause()));
             } else {
                 if (findResult.result() == null) {
-                    next.handle(Future.failedFuture("not found whisky with id: " + id));
+                    next.handle(Future.failedFuture(new AnswerException("not found whisky with id: " + id)));
                 } else {
-                    next.handle(Future.succeededFuture(Whisky.fromJson(findResult.result())));
+                    long map = phases.start();
+                    Whisky whisky = Whisky.fromJson(findResult.result());
+                    phases.end(Phase.MAP, map);
+                    next.handle(Future.succeededFuture(whisky));
                 }
             }
         });
     }
 
-    private void selectAll(Handler<AsyncResult<List<Whisky>>> next) {
-        mongoClient.find(COLLECTION, new JsonObject(), findResult -> {
+    private void selectOne(MongoClient client, Integer id, Fields fields, Handler<AsyncResult<JsonObject>> next) {
+        client.findOne(COLLECTION, new JsonObject().put("_id", id), fields.projection(), findResult -> {
+            if (findResult.failed()) next.handle(Future.failedFuture(findResult.cause()));
+            else if (findResult.result() == null) next.handle(Future.failedFuture(new AnswerException("not found whisky with id: " + id)));
+            else next.handle(Future.succeededFuture(fields.project(findResult.result())));
+        });
+    }
+
+    /**
+     * One query for all ids: {@code {"_id": {"$in": [...]}}}
+     */
+    private void selectMany(MongoClient client, List<Integer> ids, Handler<AsyncResult<List<Whisky>>> next) {
+        JsonArray distinct = new JsonArray(new ArrayList<>(MultiGet.distinct(ids)));
+        client.find(COLLECTION, new JsonObject().put("_id", new JsonObject().put("$in", distinct)), findResult -> {
+            if (findResult.failed()) next.handle(Future.failedFuture(findResult.cause()));
+            else next.handle(Future.succeededFuture(findResult.result().stream().map(Whisky::fromJson).collect(toList())));
+        });
+    }
+
+    /**
+     * The versions of the documents on the primary, a document without the field has the first version
+     */
+    private void selectVersions(List<Integer> ids, Handler<AsyncResult<Map<Integer, Integer>>> next) {
+        mongoClient.findWithOptions(COLLECTION,
+                new JsonObject().put("_id", new JsonObject().put("$in", new JsonArray(ids))),
+                new FindOptions().setFields(new JsonObject().put("VERSION", 1)),
+                findResult -> next.handle(findResult.map(documents -> documents.stream()
+                        .collect(toMap(d -> d.getInteger("_id"), d -> d.getInteger("VERSION", 0))))));
+    }
+
+    /**
+     * Streams the first documents by id until the limit
+     */
+    private void selectFirst(int limit, Handler<AsyncResult<List<Whisky>>> next) {
+        List<Whisky> whiskies = new ArrayList<>();
+        Future<List<Whisky>> future = Future.future();
+        future.setHandler(next);
+        mongoClient.findBatchWithOptions(COLLECTION, new JsonObject(), new FindOptions()
+                .setSort(new JsonObject().put("_id", 1))
+                .setLimit(limit)
+                .setBatchSize(Math.min(limit, exportFetchSize)))
+                .exceptionHandler(future::tryFail)
+                .endHandler(v -> future.tryComplete(whiskies))
+                .handler(document -> {
+                    if (!future.isComplete()) whiskies.add(Whisky.fromJson(document));
+                });
+    }
+
+    private void selectMany(MongoClient client, List<Integer> ids, Fields fields, Handler<AsyncResult<List<JsonObject>>> next) {
+        JsonArray distinct = new JsonArray(new ArrayList<>(MultiGet.distinct(ids)));
+        client.findWithOptions(COLLECTION,
+                new JsonObject().put("_id", new JsonObject().put("$in", distinct)),
+                new FindOptions().setFields(fields.projection()),
+                findResult -> next.handle(findResult.map(documents -> documents.stream().map(fields::project).collect(toList()))));
+    }
+
+    /**
+     * The list of all whiskies is remembered by the fallback cache, it's kept in the compact catalog;
+     * the response is encoded from the list as it's read
+     */
+    @SuppressWarnings("unchecked")
+    private List<?> compact(List<?> whiskies) {
+        return compactCatalog ? CompactCatalog.of((List<Whisky>) whiskies, offHeapCatalog).views() : whiskies;
+    }
+
+    private void selectAll(MongoClient client, Handler<AsyncResult<List<Whisky>>> next) {
+        client.find(COLLECTION, new JsonObject(), findResult -> {
             if (findResult.failed()) {
                 next.handle(Future.failedFuture(findResult.cause()));
             } else if (findResult.result().isEmpty()) {
-                next.handle(Future.failedFuture("whiskies not found"));
+                next.handle(Future.failedFuture(new AnswerException("whiskies not found")));
             } else {
                 next.handle(Future.succeededFuture(findResult.result().stream().map(Whisky::fromJson).collect(toList())));
             }
         });
     }
+
+    private void selectAll(MongoClient client, Fields fields, Handler<AsyncResult<List<JsonObject>>> next) {
+        client.findWithOptions(COLLECTION, new JsonObject(), new FindOptions().setFields(fields.projection()), findResult -> {
+            if (findResult.failed()) {
+                next.handle(Future.failedFuture(findResult.cause()));
+            } else if (findResult.result().isEmpty()) {
+                next.handle(Future.failedFuture(new AnswerException("whiskies not found")));
+            } else {
+                next.handle(Future.succeededFuture(findResult.result().stream().map(fields::project).collect(toList())));
+            }
+        });
+    }
 }
@@ -4,27 +4,78 @@ import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
-import io.vertx.core.json.Json;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.jdbc.spi.DataSourceProvider;
+import io.vertx.ext.jdbc.spi.impl.C3P0DataSourceProvider;
 import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.SQLOptions;
 import io.vertx.ext.sql.UpdateResult;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
-import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.StaticHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.shishmakov.blog.CompactCatalog;
 import ru.shishmakov.blog.Whisky;
+import ru.shishmakov.blog.WhiskyFormat;
+import ru.shishmakov.db.DbGuard;
+import ru.shishmakov.db.DbGuard.AnswerException;
+import ru.shishmakov.db.HsqldbStorage;
+import ru.shishmakov.db.ItemCache;
+import ru.shishmakov.db.JdbcIdempotencyStore;
+import ru.shishmakov.db.Shards;
+import ru.shishmakov.db.VirtualThreadJdbc;
+import ru.shishmakov.db.VirtualThreadJdbc.JdbcCall;
+import ru.shishmakov.metrics.HotKeys;
+import ru.shishmakov.metrics.Metrics;
+import ru.shishmakov.metrics.ServerTiming;
+import ru.shishmakov.metrics.ServerTiming.Phase;
+import ru.shishmakov.metrics.ServerTiming.Phases;
+import ru.shishmakov.web.AccessLogHandler;
+import ru.shishmakov.web.CatalogStreams;
+import ru.shishmakov.web.Drain;
+import ru.shishmakov.web.Fields;
+import ru.shishmakov.web.Health;
+import ru.shishmakov.web.Idempotency;
+import ru.shishmakov.web.JsonBodyHandler;
+import ru.shishmakov.web.ReadYourWrites;
+import ru.shishmakov.web.MultiGet;
+import ru.shishmakov.web.Representation;
+import ru.shishmakov.web.ResponseCache;
+import ru.shishmakov.web.RateLimiter;
+import ru.shishmakov.web.TrafficCapture;
 
+import javax.sql.DataSource;
 import java.lang.invoke.MethodHandles;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.BiConsumer;
 import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 
+import static java.util.Collections.emptyList;
+import static java.util.Collections.nCopies;
+import static java.util.Collections.singletonList;
+import static java.util.Comparator.comparingInt;
 import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toMap;
 import static java.util.stream.Collectors.toList;
 
 /**
@@ -33,46 +84,187 @@ import static java.util.stream.Collectors.toList;
 public class WebSqlVerticle extends AbstractVerticle {
     private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS whisky (id INTEGER IDENTITY, name varchar(100), origin varchar(100))";
+    private static final String CREATE_TABLE = "CREATE %s TABLE IF NOT EXISTS whisky (id INTEGER IDENTITY, name varchar(100), origin varchar(100),"
+            + " version INTEGER DEFAULT 0 NOT NULL)";
+    private static final String CREATE_SHARD_TABLE = "CREATE %s TABLE IF NOT EXISTS whisky (id INTEGER PRIMARY KEY, name varchar(100), origin varchar(100),"
+            + " version INTEGER DEFAULT 0 NOT NULL)";
+    private static final String SELECT_VERSION_COLUMN = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS"
+            + " WHERE TABLE_NAME = 'WHISKY' AND COLUMN_NAME = 'VERSION'";
+    private static final String ADD_VERSION_COLUMN = "ALTER TABLE whisky ADD COLUMN version INTEGER DEFAULT 0 NOT NULL";
     private static final String SELECT_ALL = "SELECT * FROM whisky";
+    private static final String SELECT_ANY = "SELECT id FROM whisky LIMIT 1";
     private static final String SELECT_BY_ID = "SELECT * FROM whisky WHERE id=?";
+    private static final String SELECT_BY_IDS = "SELECT * FROM whisky WHERE id IN (%s)";
+    private static final String SELECT_FIELDS = "SELECT %s FROM whisky";
+    private static final String SELECT_FIELDS_BY_ID = "SELECT %s FROM whisky WHERE id=?";
+    private static final String SELECT_FIELDS_BY_IDS = "SELECT %s FROM whisky WHERE id IN (%s)";
+    private static final String SELECT_ALL_ORDERED = "SELECT id, name, origin FROM whisky ORDER BY id";
+    private static final String SELECT_FIRST = "SELECT id, name, origin, version FROM whisky ORDER BY id LIMIT %d";
+    private static final String SELECT_VERSIONS_BY_IDS = "SELECT id, version FROM whisky WHERE id IN (%s)";
     private static final String INSERT_ONE = "INSERT INTO whisky (name, origin) VALUES (?, ?)";
-    private static final String UPDATE_NAME_AND_ORIGIN_AND_ID = "UPDATE whisky SET name=?, origin=? WHERE id=?";
+    private static final String INSERT_ONE_WITH_ID = "INSERT INTO whisky (id, name, origin) VALUES (?, ?, ?)";
+    private static final String MERGE_ONE = "MERGE INTO whisky USING (VALUES(CAST(? AS INTEGER), CAST(? AS VARCHAR(100)), CAST(? AS VARCHAR(100))))"
+            + " AS v(id, name, origin) ON whisky.id = v.id"
+            + " WHEN MATCHED THEN UPDATE SET name = v.name, origin = v.origin, version = whisky.version + 1"
+            + " WHEN NOT MATCHED THEN INSERT (id, name, origin) VALUES (v.id, v.name, v.origin)";
+    private static final String UPDATE_NAME_AND_ORIGIN_AND_ID = "UPDATE whisky SET name=?, origin=?, version=version+1 WHERE id=?";
     private static final String DELETE_BY_ID = "DELETE FROM whisky WHERE id=?";
+    private static final String PING = "VALUES (1)";
     private static final String DATABASE = "whisky_store";
+    private static final String ALL = "all";
     private static final Pattern digits = Pattern.compile("^[0-9]+$");
 
-    private JDBCClient jdbc;
+    private Shards shards;
+    private DataSourceProvider dataSourceProvider;
+    private DataSource dataSource;
+    private VirtualThreadJdbc virtualThreads;
+    private DbGuard guard;
+    private ResponseCache responseCache;
+    private ItemCache itemCache;
+    private HsqldbStorage storage;
+    private ReadYourWrites readYourWrites;
+    private ServerTiming serverTiming;
+    private HotKeys hotKeys;
+    private TrafficCapture trafficCapture;
+    private RateLimiter rateLimiter;
+    private Idempotency idempotency;
+    private Drain drain;
+    private Health health;
+    private HttpServer server;
+    private int maxMultiGetIds;
+    private String exportDir;
+    private int importBatchSize;
+    private int exportFetchSize;
+    private boolean compactCatalog;
+    private boolean offHeapCatalog;
 
     @Override
     public void start(Future<Void> verticleFuture) {
         System.setProperty("hsqldb.reconfig_logging", "false");
 
-        this.jdbc = JDBCClient.createShared(vertx, ((UnaryOperator<JsonObject>) conf -> {
+        JsonObject jdbcConf = ((UnaryOperator<JsonObject>) conf -> {
             conf.getMap().putIfAbsent("url", "jdbc:hsqldb:file:db/" + DATABASE);
             conf.getMap().putIfAbsent("driver_class", "org.hsqldb.jdbcDriver");
             conf.getMap().putIfAbsent("max_pool_size", 10);
             return conf;
-        }).apply(config()), "ds-whisky");
+        }).apply(config());
+        if (useVirtualThreads()) {
+            if (jdbcConf.getInteger("shards", 1) > 1) {
+                verticleFuture.fail(new IllegalStateException("virtual threads support one shard only"));
+                return;
+            }
+            if (jdbcConf.getJsonObject("replica", new JsonObject()).getBoolean("enabled", false)) {
+                verticleFuture.fail(new IllegalStateException("virtual threads don't support replicas"));
+                return;
+            }
+            // JDBCClient and virtual threads share one connection pool
+            try {
+                this.dataSourceProvider = new C3P0DataSourceProvider();
+                this.dataSource = dataSourceProvider.getDataSource(jdbcConf);
+            } catch (SQLException e) {
+                verticleFuture.fail(e);
+                return;
+            }
+            this.shards = new Shards(singletonList(JDBCClient.create(vertx, dataSource)), 1);
+            this.virtualThreads = new VirtualThreadJdbc(vertx, dataSource);
+            logger.info("jdbc queries run on virtual threads");
+        } else this.shards = Shards.create(vertx, jdbcConf, "ds-whisky");
+        this.guard = new DbGuard(vertx, "ds-whisky-sql", config());
+        this.responseCache = new ResponseCache("sql", config());
+        this.itemCache = new ItemCache(vertx, "sql", config());
+        this.storage = new HsqldbStorage(vertx, "sql", config(), jdbcConf.getString("url"));
+        this.readYourWrites = new ReadYourWrites("sql", config());
+        this.drain = new Drain(vertx, "sql", config());
+        this.serverTiming = new ServerTiming("sql", config());
+        this.hotKeys = new HotKeys(vertx, "sql", config());
+        hotKeys.start();
+        itemCache.pin(hotKeys::isHot);
+        this.trafficCapture = new TrafficCapture(vertx, config());
+        this.rateLimiter = new RateLimiter(vertx, "sql", config());
+        rateLimiter.start();
+        this.health = new Health(vertx, "sql", config(), drain, this::ping);
+        this.idempotency = new Idempotency(vertx, "sql", config(), new JdbcIdempotencyStore(shards.get(0)));
+        this.maxMultiGetIds = config().getInteger("multi_get_max_ids", 1000);
+        this.exportDir = config().getString("export_dir", "db/export");
+        this.importBatchSize = config().getInteger("import_batch_size", 500);
+        this.exportFetchSize = config().getInteger("export_fetch_size", 1000);
+        JsonObject catalogConf = config().getJsonObject("compact_catalog", new JsonObject());
+        this.compactCatalog = catalogConf.getBoolean("enabled", true);
+        this.offHeapCatalog = catalogConf.getBoolean("off_heap", false);
 
-        getConnection()
-                .compose(this::initDefaultData)
+        if (config().getBoolean("fast_startup", false)) {
+            // the server listens while the tables are created, the API answers 503 until then
+            initDb().setHandler(health.initializing());
+            startWeb().setHandler(verticleFuture.completer());
+        } else initDb()
                 .compose(v -> startWeb())
                 .setHandler(verticleFuture.completer());
     }
 
+    /**
+     * Creates the tables and the id sequence of the shards, then the default data; the item cache is warmed up last
+     */
+    private Future<Void> initDb() {
+        Future<List<Void>> tables = Future.future();
+        shards.scatter(client -> getConnection(client).compose(this::createTable), tables);
+        return tables.compose(v -> {
+            Future<Void> sequence = Future.future();
+            shards.initIdSequence(sequence);
+            return sequence;
+        })
+                .compose(v -> initDefaultData())
+                .compose(v -> idempotency.init())
+                .compose(v -> itemCache.warmUp(this::selectVersions, this::selectFirst))
+                .map(v -> {
+                    storage.start(shards, drain::idleMillis);
+                    return v;
+                });
+    }
+
+    /**
+     * Drains requests in flight before the database client is closed
+     */
     @Override
-    public void stop() {
-        jdbc.close();
-        logger.info("server has stopped");
+    public void stop(Future<Void> stopFuture) {
+        health.stop();
+        idempotency.stop();
+        hotKeys.stop();
+        rateLimiter.stop();
+        storage.stop();
+        drain.drain(drained -> server.close(closeResult -> itemCache.close(closed -> trafficCapture.close(captured -> {
+            guard.close();
+            responseCache.close();
+            shards.close();
+            if (virtualThreads != null) {
+                virtualThreads.close();
+                try {
+                    dataSourceProvider.close(dataSource);
+                } catch (SQLException e) {
+                    logger.warn("connection pool has failed on close", e);
+                }
+            }
+            logger.info("server has stopped");
+            stopFuture.complete();
+        }))));
     }
 
     /**
-     * Retrieves an async SQLConnection
+     * {@code "jdbc_execution": "virtual"} runs the queries on virtual threads (experimental), by default they run
+     * on the worker pool
      */
-    private Future<SQLConnection> getConnection() {
+    private boolean useVirtualThreads() {
+        if (!"virtual".equals(config().getString("jdbc_execution", "worker"))) return false;
+        if (VirtualThreadJdbc.isSupported()) return true;
+        logger.warn("virtual threads need JDK 21+, jdbc queries run on the worker pool");
+        return false;
+    }
+
+    /**
+     * Retrieves an async SQLConnection of the shard
+     */
+    private Future<SQLConnection> getConnection(JDBCClient client) {
         Future<SQLConnection> future = Future.future();
-        jdbc.getConnection(connection -> {
+        client.getConnection(connection -> {
             if (connection.failed()) future.fail(connection.cause());
             else future.complete(connection.result());
         });
@@ -80,43 +272,68 @@ public class WebSqlVerticle extends AbstractVerticle {
     }
 
     /**
-     * Initializes the database with default values
+     * Creates the table of the shard with the storage profile; several shards take ids from the sequence instead of IDENTITY.
+     * The table of an older version gets the column of the record version.
      *
      * @param sqlCon SQLConnection instance
      */
-    private Future<Void> initDefaultData(SQLConnection sqlCon) {
+    private Future<Void> createTable(SQLConnection sqlCon) {
         Future<Void> future = Future.future();
-        sqlCon.execute(CREATE_TABLE, createResult -> {
+        storage.apply(sqlCon, "whisky").setHandler(applyResult -> {
+            if (applyResult.failed()) {
+                sqlCon.close();
+                future.fail(applyResult.cause());
+            } else createTable(sqlCon, future);
+        });
+        return future;
+    }
+
+    private void createTable(SQLConnection sqlCon, Future<Void> future) {
+        String create = String.format(shards.isSingle() ? CREATE_TABLE : CREATE_SHARD_TABLE, storage.tableType());
+        sqlCon.execute(create, createResult -> {
             if (createResult.failed()) {
-                future.fail(createResult.cause());
                 sqlCon.close();
+                future.fail(createResult.cause());
                 return;
             }
-            sqlCon.query(SELECT_ALL, selectResult -> {
-                if (selectResult.failed()) {
-                    future.fail(selectResult.cause());
+            sqlCon.query(SELECT_VERSION_COLUMN, selectResult -> {
+                if (selectResult.failed() || selectResult.result().getResults().get(0).getInteger(0) > 0) {
                     sqlCon.close();
-                    return;
-                }
-                if (selectResult.result().getNumRows() == 0) {
-                    // add 2 whines
-                    insertOne(buildBowmore(), sqlCon, insertBowmoreResult -> {
-                        if (insertBowmoreResult.failed()) {
-                            future.fail(insertBowmoreResult.cause());
-                            sqlCon.close();
-                        } else insertOne(buildTalisker(), sqlCon, insertTaliskerResult -> {
-                            future.complete();
-                            sqlCon.close();
-                            logger.info("init default items for whisky store");
-                        });
-                    });
-                } else {
-                    future.complete();
+                    future.handle(selectResult.mapEmpty());
+                } else sqlCon.execute(ADD_VERSION_COLUMN, alterResult -> {
                     sqlCon.close();
-                }
+                    if (alterResult.succeeded()) logger.info("column 'version' is added to the table");
+                    future.handle(alterResult);
+                });
             });
         });
-        return future;
+    }
+
+    /**
+     * Initializes the database with default values; one row of any shard tells the store isn't empty
+     */
+    private Future<Void> initDefaultData() {
+        Future<List<Boolean>> anyRows = Future.future();
+        shards.<Boolean>scatter(client -> {
+            Future<Boolean> any = Future.future();
+            client.query(SELECT_ANY, selectResult -> any.handle(selectResult.map(rows -> rows.getNumRows() > 0)));
+            return any;
+        }, anyRows);
+        return anyRows.compose(shardRows -> {
+            Future<Void> future = Future.future();
+            if (shardRows.contains(true)) future.complete();
+            else {
+                // add 2 whines
+                insertWhisky(buildBowmore(), insertBowmoreResult -> {
+                    if (insertBowmoreResult.failed()) future.fail(insertBowmoreResult.cause());
+                    else insertWhisky(buildTalisker(), insertTaliskerResult -> {
+                        future.complete();
+                        logger.info("init default items for whisky store");
+                    });
+                });
+            }
+            return future;
+        });
     }
 
     /**
@@ -125,23 +342,50 @@ public class WebSqlVerticle extends AbstractVerticle {
     private Future<Void> startWeb() {
         Future<Void> future = Future.future();
         Router router = Router.router(vertx);
+        router.route().handler(AccessLogHandler.create(config()));
+        router.route().handler(drain::track);
+        router.route("/api/*").handler(rateLimiter);
+        router.route("/api/*").handler(health::requireInitialized);
+        router.route("/api/*").handler(serverTiming);
+        router.route("/api/*").handler(hotKeys);
+        router.route("/api/*").handler(trafficCapture);
         router.route("/").handler(this::welcomeRootHandler);
         router.route("/assets/*").handler(StaticHandler.create("assets"));
 
+        router.get("/api/whiskies").handler(Fields::validate);
+        router.get("/api/whiskies").handler(this::getManyHandler);
         router.get("/api/whiskies").handler(this::getAllHandler);
-        router.route("/api/whiskies*").handler(BodyHandler.create());
+        // export and import stream the body, only the routes with a JSON body parse it while it arrives
+        router.get("/api/whiskies/_export").handler(this::exportHandler);
+        router.post("/api/whiskies/_import").handler(this::importHandler);
+        JsonBodyHandler jsonBody = JsonBodyHandler.create(config());
 
+        router.post("/api/whiskies").handler(jsonBody);
+        router.post("/api/whiskies").handler(idempotency);
         router.post("/api/whiskies").handler(this::addOneHandler);
+        router.post("/api/whiskies/_mget").handler(Fields::validate);
+        router.post("/api/whiskies/_mget").handler(jsonBody);
+        router.post("/api/whiskies/_mget").handler(this::postManyHandler);
+        router.get("/api/whiskies/:id").handler(Fields::validate);
+        router.get("/api/whiskies/:id").handler(this::getOneFieldsHandler);
         router.get("/api/whiskies/:id").handler(this::getOneHandler);
+        router.put("/api/whiskies/:id").handler(jsonBody);
+        router.put("/api/whiskies/:id").handler(idempotency);
         router.put("/api/whiskies/:id").handler(this::updateOneHandler);
         router.delete("/api/whiskies/:id").handler(this::deleteOneHandler);
-        vertx.createHttpServer()
+        router.get("/admin/metrics").handler(Metrics::handle);
+        router.get("/admin/hotkeys").handler(HotKeys::report);
+        router.get("/health/live").handler(health::live);
+        router.get("/health/ready").handler(health::ready);
+        this.server = vertx.createHttpServer()
+                .connectionHandler(drain::connection)
                 .requestHandler(router::accept)
                 .listen(config().getInteger("http.port", 8080), serverResult -> {
                     if (serverResult.failed()) {
                         future.fail(serverResult.cause());
                         logger.info("server has failed on start");
                     } else {
+                        health.start();
                         future.complete();
                         logger.info("server has started successfully");
                     }
@@ -166,22 +410,61 @@ public class WebSqlVerticle extends AbstractVerticle {
                 .filter(n -> digits.matcher(n).find())
                 .map(Integer::valueOf)
                 .orElse(null);
-        JsonObject src = context.getBodyAsJson();
+        JsonObject src;
+        try {
+            src = Representation.decodeBodyAsJson(context);
+        } catch (DecodeException e) {
+            context.response().setStatusCode(400).setStatusMessage(e.getMessage()).end();
+            return;
+        }
         if (isNull(id) || isNull(src)) context.response().setStatusCode(400).end();
-        else jdbc.getConnection(conResult -> {
-            SQLConnection sqlCon = conResult.result();
-            updateOne(id, src, sqlCon, updateResult -> {
-                if (updateResult.failed()) context.response()
-                        .setStatusCode(404)
-                        .setStatusMessage(updateResult.cause().getMessage())
-                        .end();
-                else context.response()
-                        .setStatusCode(200)
-                        .putHeader("content-type", "application/json; charset=utf-8")
-                        .end(Json.encodePrettily(updateResult.result()));
-                sqlCon.close();
-            });
-        });
+        else guard.<Whisky>execute("update_one", null,
+                future -> withConnection(shards.of(id), (sqlCon, next) -> updateOne(id, src, sqlCon, next), con -> updateOne(id, src, con), future),
+                updateResult -> {
+                    if (updateResult.failed()) context.response()
+                            .setStatusCode(DbGuard.isUnavailable(updateResult.cause()) ? 503 : 404)
+                            .setStatusMessage(updateResult.cause().getMessage())
+                            .end();
+                    else {
+                        guard.evict(id, ALL);
+                        itemCache.evict(id);
+                        responseCache.invalidate();
+                        readYourWrites.wrote(context);
+                        Representation.end(context, 200, updateResult.result());
+                    }
+                });
+    }
+
+    /**
+     * curl -X GET localhost:8080/api/whiskies/1?fields=id,name
+     */
+    private void getOneFieldsHandler(RoutingContext context) {
+        Fields fields = Fields.of(context);
+        if (isNull(fields)) {
+            context.next();
+            return;
+        }
+        Integer id = Optional.of(context.request())
+                .map(r -> r.getParam("id"))
+                .filter(n -> digits.matcher(n).find())
+                .map(Integer::valueOf)
+                .orElse(null);
+        Whisky cached = isNull(id) ? null : itemCache.get(id);
+        if (isNull(id)) context.response().setStatusCode(400).end();
+        else if (cached != null) Representation.end(context, 200, fields.project(cached));
+        else guard.<JsonObject>execute("select_one", null,
+                future -> selectRows(reads(context).of(id), String.format(SELECT_FIELDS_BY_ID, fields.columns()), new JsonArray().add(id), selectResult -> {
+                    if (selectResult.failed()) future.fail(selectResult.cause());
+                    else if (selectResult.result().isEmpty()) future.fail(new AnswerException("not found whisky with id: " + id));
+                    else future.complete(fields.project(selectResult.result().get(0)));
+                }),
+                selectResult -> {
+                    if (selectResult.failed()) context.response()
+                            .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 404)
+                            .setStatusMessage(selectResult.cause().getMessage())
+                            .end();
+                    else Representation.end(context, 200, selectResult.result());
+                });
     }
 
     /**
@@ -193,21 +476,28 @@ public class WebSqlVerticle extends AbstractVerticle {
                 .filter(n -> digits.matcher(n).find())
                 .map(Integer::valueOf)
                 .orElse(null);
+        Whisky cached = isNull(id) ? null : itemCache.get(id);
         if (isNull(id)) context.response().setStatusCode(400).end();
-        else jdbc.getConnection(conResult -> {
-            SQLConnection sqlCon = conResult.result();
-            selectOne(id, sqlCon, selectResult -> {
-                if (selectResult.failed()) context.response()
-                        .setStatusCode(404)
-                        .setStatusMessage(selectResult.cause().getMessage())
-                        .end();
-                else context.response()
-                        .setStatusCode(200)
-                        .putHeader("content-type", "application/json; charset=utf-8")
-                        .end(Json.encodePrettily(selectResult.result()));
-                sqlCon.close();
-            });
-        });
+        else if (cached != null) Representation.end(context, 200, cached);
+        else {
+            boolean primary = readYourWrites.readsPrimary(context);
+            long generation = itemCache.generation();
+            Phases phases = ServerTiming.phases(context);
+            guard.<Whisky>execute("select_one", id,
+                    future -> withConnection((primary ? shards : shards.replicas()).of(id), phases,
+                            (sqlCon, next) -> selectOne(id, sqlCon, phases, next), con -> selectOne(id, con), future),
+                    selectResult -> {
+                        if (selectResult.failed()) context.response()
+                                .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 404)
+                                .setStatusMessage(selectResult.cause().getMessage())
+                                .end();
+                        else {
+                            // a replica which may lag behind the last write isn't cached, as in the response cache
+                            if (primary || readYourWrites.isSettled()) itemCache.put(generation, selectResult.result());
+                            Representation.end(context, 200, selectResult.result());
+                        }
+                    });
+        }
     }
 
     /**
@@ -220,33 +510,124 @@ public class WebSqlVerticle extends AbstractVerticle {
                 .map(Integer::valueOf)
                 .orElse(null);
         if (isNull(id)) context.response().setStatusCode(400).end();
-        else jdbc.getConnection(conResult -> {
-            SQLConnection sqlCon = conResult.result();
-            sqlCon.updateWithParams(DELETE_BY_ID, new JsonArray().add(id), deleteResult -> {
-                context.response().setStatusCode(204).end();
-                sqlCon.close();
-            });
-        });
+        else guard.<UpdateResult>execute("delete_one", null,
+                future -> withConnection(shards.of(id),
+                        (sqlCon, next) -> sqlCon.updateWithParams(DELETE_BY_ID, new JsonArray().add(id), next),
+                        con -> deleteOne(id, con),
+                        future),
+                deleteResult -> {
+                    if (deleteResult.failed() && DbGuard.isUnavailable(deleteResult.cause())) context.response()
+                            .setStatusCode(503)
+                            .setStatusMessage(deleteResult.cause().getMessage())
+                            .end();
+                    else {
+                        guard.evict(id, ALL);
+                        itemCache.evict(id);
+                        responseCache.invalidate();
+                        readYourWrites.wrote(context);
+                        context.response().setStatusCode(204).end();
+                    }
+                });
     }
 
     /**
      * curl -H "Content-Type: application/json" -X POST -d '{"id":2,"name":"WhiskyName","origin":"WhiskyOrigin"}' localhost:8080/api/whiskies
      */
     private void addOneHandler(RoutingContext context) {
-        Whisky whisky = Json.decodeValue(context.getBodyAsString(), Whisky.class);
-        jdbc.getConnection(conResult -> {
-            SQLConnection sqlCon = conResult.result();
-            insertOne(whisky, sqlCon, insertResult -> {
-                if (insertResult.failed()) context.response()
-                        .setStatusCode(400)
-                        .setStatusMessage(insertResult.cause().getMessage())
-                        .end();
-                else context.response()
-                        .setStatusCode(201)
-                        .putHeader("content-type", "application/json; charset=utf-8")
-                        .end(Json.encodePrettily(insertResult.result()));
-                sqlCon.close();
-            });
+        Whisky whisky;
+        try {
+            whisky = Representation.decodeBody(context, Whisky.class);
+        } catch (DecodeException e) {
+            context.response().setStatusCode(400).setStatusMessage(e.getMessage()).end();
+            return;
+        }
+        guard.<Whisky>execute("insert_one", null,
+                future -> insertWhisky(whisky, future),
+                insertResult -> {
+                    if (insertResult.failed()) context.response()
+                            .setStatusCode(DbGuard.isUnavailable(insertResult.cause()) ? 503 : 400)
+                            .setStatusMessage(insertResult.cause().getMessage())
+                            .end();
+                    else {
+                        guard.evict(ALL);
+                        responseCache.invalidate();
+                        readYourWrites.wrote(context);
+                        Representation.end(context, 201, insertResult.result());
+                    }
+                });
+    }
+
+    /**
+     * curl -X GET localhost:8080/api/whiskies?ids=1,2,3
+     */
+    private void getManyHandler(RoutingContext context) {
+        String ids = context.request().getParam("ids");
+        if (isNull(ids)) context.next();
+        else selectManyResponse(context, MultiGet.parseIds(ids));
+    }
+
+    /**
+     * curl -H "Content-Type: application/json" -X POST -d '[1,2,3]' localhost:8080/api/whiskies/_mget
+     */
+    private void postManyHandler(RoutingContext context) {
+        try {
+            selectManyResponse(context, MultiGet.parseIds(Representation.decodeBody(context, int[].class)));
+        } catch (DecodeException e) {
+            context.response().setStatusCode(400).setStatusMessage(e.getMessage()).end();
+        }
+    }
+
+    private void selectManyResponse(RoutingContext context, List<Integer> ids) {
+        Fields fields = Fields.of(context);
+        if (isNull(ids) || ids.isEmpty() || ids.size() > maxMultiGetIds) context.response().setStatusCode(400).end();
+        else if (nonNull(fields)) guard.<List<JsonObject>>execute("select_many", null,
+                future -> selectMany(reads(context), ids, fields, future),
+                selectResult -> {
+                    if (selectResult.failed()) context.response()
+                            .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 400)
+                            .setStatusMessage(selectResult.cause().getMessage())
+                            .end();
+                    else Representation.end(context, 200, MultiGet.inRequestOrder(ids, selectResult.result(), json -> json.getInteger("id")));
+                });
+        else guard.<List<Whisky>>execute("select_many", null,
+                future -> selectMany(reads(context), ids, future),
+                selectResult -> {
+                    if (selectResult.failed()) context.response()
+                            .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 400)
+                            .setStatusMessage(selectResult.cause().getMessage())
+                            .end();
+                    else Representation.end(context, 200, MultiGet.inRequestOrder(ids, selectResult.result()));
+                });
+    }
+
+    /**
+     * curl -X GET localhost:8080/api/whiskies/_export?format=ndjson
+     */
+    private void exportHandler(RoutingContext context) {
+        WhiskyFormat format = WhiskyFormat.of(context.request().getParam("format"));
+        if (isNull(format)) context.response().setStatusCode(400).end();
+        else shards.queryStream(SELECT_ALL_ORDERED, new SQLOptions().setFetchSize(exportFetchSize), streamResult -> {
+            if (streamResult.failed()) context.response()
+                    .setStatusCode(500)
+                    .setStatusMessage(streamResult.cause().getMessage())
+                    .end();
+            else CatalogStreams.export(context, exportDir, format, streamResult.result(),
+                    row -> new Whisky(row.getInteger(0), row.getString(1), row.getString(2)),
+                    v -> streamResult.result().close());
+        });
+    }
+
+    /**
+     * curl -H "Content-Type: application/x-ndjson" -X POST --data-binary @whiskies.ndjson localhost:8080/api/whiskies/_import
+     */
+    private void importHandler(RoutingContext context) {
+        WhiskyFormat format = WhiskyFormat.of(context.request().getParam("format"));
+        if (isNull(format)) context.response().setStatusCode(400).end();
+        else CatalogStreams.importFrom(context, exportDir, format, importBatchSize, this::importBatch, v -> {
+            guard.evictAll();
+            itemCache.clear();
+            responseCache.invalidate();
+            readYourWrites.wrote(context);
         });
     }
 
@@ -254,20 +635,40 @@ public class WebSqlVerticle extends AbstractVerticle {
      * curl -X GET localhost:8080/api/whiskies
      */
     private void getAllHandler(RoutingContext context) {
-        jdbc.getConnection(conResult -> {
-            SQLConnection sqlCon = conResult.result();
-            selectAll(sqlCon, selectResult -> {
-                if (selectResult.failed()) context.response()
-                        .setStatusCode(400)
-                        .setStatusMessage(selectResult.cause().getMessage())
-                        .end();
-                else context.response()
-                        .setStatusCode(200)
-                        .putHeader("content-type", "application/json; charset=utf-8")
-                        .end(Json.encodePrettily(selectResult.result()));
-                sqlCon.close();
-            });
-        });
+        String cacheKey = ResponseCache.key(context, ALL);
+        if (responseCache.serve(context, cacheKey)) return;
+        long generation = responseCache.generation();
+        boolean primary = readYourWrites.readsPrimary(context);
+        Fields fields = Fields.of(context);
+        // a projection isn't remembered by the fallback cache
+        guard.<List<?>>execute("select_all", isNull(fields) ? ALL : null, this::compact,
+                future -> {
+                    Shards reads = primary ? shards : shards.replicas();
+                    if (isNull(fields)) gatherAll(reads, gatherResult -> {
+                        if (gatherResult.succeeded() && gatherResult.result().isEmpty()) future.fail(new AnswerException("whiskies not found"));
+                        else future.handle(gatherResult.<List<?>>map(rows -> rows));
+                    });
+                    else gatherAll(reads, fields, gatherResult -> {
+                        if (gatherResult.succeeded() && gatherResult.result().isEmpty()) future.fail(new AnswerException("whiskies not found"));
+                        else future.handle(gatherResult.<List<?>>map(rows -> rows));
+                    });
+                },
+                selectResult -> {
+                    if (selectResult.failed()) context.response()
+                            .setStatusCode(DbGuard.isUnavailable(selectResult.cause()) ? 503 : 400)
+                            .setStatusMessage(selectResult.cause().getMessage())
+                            .end();
+                    else {
+                        Buffer body = Representation.encode(context, selectResult.result());
+                        if (primary || readYourWrites.isSettled()) {
+                            responseCache.store(generation, cacheKey, Representation.contentType(context), body);
+                        }
+                        context.response()
+                                .setStatusCode(200)
+                                .putHeader("content-type", Representation.contentType(context))
+                                .end(body);
+                    }
+                });
     }
 
     /**
@@ -279,6 +680,266 @@ public class WebSqlVerticle extends AbstractVerticle {
                 .end("<h1>Hello from my first Vert.x 3 application!</h1>");
     }
 
+    /**
+     * The cheapest query for the readiness check
+     */
+    private void ping(Future<Void> future) {
+        shards.<Void>scatter(client -> {
+            Future<Void> pinged = Future.future();
+            client.query(PING, pingResult -> pinged.handle(pingResult.mapEmpty()));
+            return pinged;
+        }, pingResult -> future.handle(pingResult.mapEmpty()));
+    }
+
+    /**
+     * Runs the query on a pooled connection of the shard or on a virtual thread if they are on
+     *
+     * @param query         the query through JDBCClient on the worker pool
+     * @param blockingQuery the same query as synchronous code for virtual threads
+     */
+    private <T> void withConnection(JDBCClient client,
+                                    BiConsumer<SQLConnection, Handler<AsyncResult<T>>> query,
+                                    JdbcCall<T> blockingQuery,
+                                    Handler<AsyncResult<T>> next) {
+        withConnection(client, Phases.NONE, query, blockingQuery, next);
+    }
+
+    /**
+     * Runs the query like {@link #withConnection(JDBCClient, BiConsumer, JdbcCall, Handler)},
+     * the checkout of the connection is the {@code pool} phase of the request
+     */
+    private <T> void withConnection(JDBCClient client,
+                                    Phases phases,
+                                    BiConsumer<SQLConnection, Handler<AsyncResult<T>>> query,
+                                    JdbcCall<T> blockingQuery,
+                                    Handler<AsyncResult<T>> next) {
+        if (virtualThreads != null) virtualThreads.execute(blockingQuery, phases, next);
+        else withConnection(client, phases, query, next);
+    }
+
+    /**
+     * Runs the query on a pooled connection of the shard
+     */
+    private <T> void withConnection(JDBCClient client,
+                                    BiConsumer<SQLConnection, Handler<AsyncResult<T>>> query,
+                                    Handler<AsyncResult<T>> next) {
+        withConnection(client, Phases.NONE, query, next);
+    }
+
+    private <T> void withConnection(JDBCClient client,
+                                    Phases phases,
+                                    BiConsumer<SQLConnection, Handler<AsyncResult<T>>> query,
+                                    Handler<AsyncResult<T>> next) {
+        long pool = phases.start();
+        client.getConnection(conResult -> {
+            phases.end(Phase.POOL, pool);
+            if (conResult.failed()) {
+                next.handle(Future.failedFuture(conResult.cause()));
+                return;
+            }
+            SQLConnection sqlCon = conResult.result();
+            query.accept(sqlCon, queryResult -> {
+                sqlCon.close();
+                next.handle(queryResult);
+            });
+        });
+    }
+
+    /**
+     * The list of all whiskies is remembered by the fallback cache, it's kept in the compact catalog;
+     * the response is encoded from the list as it's read
+     */
+    @SuppressWarnings("unchecked")
+    private List<?> compact(List<?> whiskies) {
+        return compactCatalog ? CompactCatalog.of((List<Whisky>) whiskies, offHeapCatalog).views() : whiskies;
+    }
+
+    /**
+     * Reads go to the replicas unless the client reads its own writes
+     */
+    private Shards reads(RoutingContext context) {
+        return readYourWrites.readsPrimary(context) ? shards : shards.replicas();
+    }
+
+    /**
+     * Scatters the query to all shards and merges the whiskies ordered by id
+     */
+    private void gatherAll(Shards shards, Handler<AsyncResult<List<Whisky>>> next) {
+        shards.<List<Whisky>>scatter(client -> {
+            Future<List<Whisky>> whiskies = Future.future();
+            withConnection(client, (sqlCon, selectNext) -> selectAll(sqlCon, selectNext), this::selectAll, whiskies);
+            return whiskies;
+        }, gatherResult -> next.handle(gatherResult.map(shardWhiskies -> shardWhiskies.stream()
+                .flatMap(List::stream)
+                .sorted(comparingInt(Whisky::getId))
+                .collect(toList()))));
+    }
+
+    /**
+     * Scatters the query of the fields to all shards and merges the projections ordered by id
+     */
+    private void gatherAll(Shards shards, Fields fields, Handler<AsyncResult<List<JsonObject>>> next) {
+        String sql = String.format(SELECT_FIELDS, fields.columns());
+        shards.<List<JsonObject>>scatter(client -> {
+            Future<List<JsonObject>> rows = Future.future();
+            selectRows(client, sql, new JsonArray(), rows);
+            return rows;
+        }, gatherResult -> next.handle(gatherResult.map(shardRows -> shardRows.stream()
+                .flatMap(List::stream)
+                .map(fields::project)
+                .sorted(comparingInt(json -> json.getInteger("id")))
+                .collect(toList()))));
+    }
+
+    /**
+     * One query per shard which holds any of the ids
+     */
+    private void selectMany(Shards shards, List<Integer> ids, Handler<AsyncResult<List<Whisky>>> next) {
+        Map<JDBCClient, List<Integer>> idsByShard = MultiGet.distinct(ids).stream().collect(groupingBy(shards::of));
+        shards.<List<Whisky>>scatter(client -> {
+            List<Integer> shardIds = idsByShard.get(client);
+            if (isNull(shardIds)) return Future.succeededFuture(emptyList());
+            Future<List<Whisky>> whiskies = Future.future();
+            withConnection(client, (sqlCon, selectNext) -> selectMany(shardIds, sqlCon, selectNext), con -> selectMany(shardIds, con), whiskies);
+            return whiskies;
+        }, gatherResult -> next.handle(gatherResult.map(shardWhiskies -> shardWhiskies.stream()
+                .flatMap(List::stream)
+                .collect(toList()))));
+    }
+
+    /**
+     * One query of the fields per shard which holds any of the ids
+     */
+    private void selectMany(Shards shards, List<Integer> ids, Fields fields, Handler<AsyncResult<List<JsonObject>>> next) {
+        Map<JDBCClient, List<Integer>> idsByShard = MultiGet.distinct(ids).stream().collect(groupingBy(shards::of));
+        shards.<List<JsonObject>>scatter(client -> {
+            List<Integer> shardIds = idsByShard.get(client);
+            if (isNull(shardIds)) return Future.succeededFuture(emptyList());
+            Future<List<JsonObject>> rows = Future.future();
+            String sql = String.format(SELECT_FIELDS_BY_IDS, fields.columns(), String.join(",", nCopies(shardIds.size(), "?")));
+            selectRows(client, sql, new JsonArray(shardIds), rows);
+            return rows;
+        }, gatherResult -> next.handle(gatherResult.map(shardRows -> shardRows.stream()
+                .flatMap(List::stream)
+                .map(fields::project)
+                .collect(toList()))));
+    }
+
+    /**
+     * Runs the query of a projection, the rows aren't mapped to whiskies
+     */
+    private void selectRows(JDBCClient client, String sql, JsonArray params, Handler<AsyncResult<List<JsonObject>>> next) {
+        withConnection(client,
+                (sqlCon, selectNext) -> sqlCon.queryWithParams(sql, params, selectResult -> selectNext.handle(selectResult.map(rows -> rows.getRows()))),
+                con -> selectRows(sql, params, con),
+                next);
+    }
+
+    /**
+     * The versions of the records on the primary, one query per shard which holds any of the ids
+     */
+    private void selectVersions(List<Integer> ids, Handler<AsyncResult<Map<Integer, Integer>>> next) {
+        Map<JDBCClient, List<Integer>> idsByShard = ids.stream().collect(groupingBy(shards::of));
+        shards.<List<JsonArray>>scatter(client -> {
+            List<Integer> shardIds = idsByShard.get(client);
+            if (isNull(shardIds)) return Future.succeededFuture(emptyList());
+            Future<List<JsonArray>> versions = Future.future();
+            String sql = String.format(SELECT_VERSIONS_BY_IDS, String.join(",", nCopies(shardIds.size(), "?")));
+            client.queryWithParams(sql, new JsonArray(shardIds), selectResult -> versions.handle(selectResult.map(rows -> rows.getResults())));
+            return versions;
+        }, gatherResult -> next.handle(gatherResult.map(shardVersions -> shardVersions.stream()
+                .flatMap(List::stream)
+                .collect(toMap(row -> row.getInteger(0), row -> row.getInteger(1))))));
+    }
+
+    /**
+     * Streams the first records of the shards one after another until the limit
+     */
+    private void selectFirst(int limit, Handler<AsyncResult<List<Whisky>>> next) {
+        shards.queryStream(String.format(SELECT_FIRST, limit), new SQLOptions().setFetchSize(exportFetchSize), streamResult -> {
+            if (streamResult.failed()) {
+                next.handle(Future.failedFuture(streamResult.cause()));
+                return;
+            }
+            Shards.ShardRows rows = streamResult.result();
+            List<Whisky> whiskies = new ArrayList<>();
+            Future<List<Whisky>> future = Future.future();
+            future.setHandler(next);
+            rows.exceptionHandler(e -> {
+                rows.close();
+                future.tryFail(e);
+            });
+            rows.endHandler(v -> future.tryComplete(whiskies));
+            rows.handler(row -> {
+                if (future.isComplete()) return;
+                Whisky whisky = new Whisky(row.getInteger(0), row.getString(1), row.getString(2));
+                whisky.setVersion(row.getInteger(3));
+                whiskies.add(whisky);
+                if (whiskies.size() < limit) return;
+                rows.pause();
+                rows.close();
+                future.tryComplete(whiskies);
+            });
+        });
+    }
+
+    /**
+     * A single shard inserts with IDENTITY, several shards take the id from the sequence
+     * and insert into the shard of the id
+     */
+    private void insertWhisky(Whisky src, Handler<AsyncResult<Whisky>> next) {
+        if (shards.isSingle()) {
+            withConnection(shards.get(0), (sqlCon, insertNext) -> insertOne(src, sqlCon, insertNext), con -> insertOne(src, con), next);
+            return;
+        }
+        shards.nextIds(1, idResult -> {
+            if (idResult.failed()) {
+                next.handle(Future.failedFuture(idResult.cause()));
+                return;
+            }
+            Whisky whisky = new Whisky(idResult.result().get(0), src.getName(), src.getOrigin());
+            withConnection(shards.of(whisky.getId()), (sqlCon, insertNext) -> sqlCon.updateWithParams(INSERT_ONE_WITH_ID,
+                    new JsonArray().add(whisky.getId()).add(whisky.getName()).add(whisky.getOrigin()),
+                    updateResult -> insertNext.handle(updateResult.map(whisky))), next);
+        });
+    }
+
+    /**
+     * Writes the batch into the shards; whiskies without id get ids from the sequence if there are several shards,
+     * the sequence is moved past the ids of the batch before that
+     */
+    private void importBatch(List<Whisky> batch, Handler<AsyncResult<Void>> next) {
+        if (shards.isSingle()) {
+            withConnection(shards.get(0), (sqlCon, importNext) -> importBatch(batch, sqlCon, importNext), next);
+            return;
+        }
+        List<Whisky> withoutId = batch.stream().filter(w -> w.getId() < 0).collect(toList());
+        int maxId = batch.stream().mapToInt(Whisky::getId).max().orElse(-1);
+        Future<Void> reserved = Future.future();
+        shards.reserveIds(maxId, reserved);
+        reserved.compose(v -> {
+            Future<List<Integer>> allocated = Future.future();
+            shards.nextIds(withoutId.size(), allocated);
+            return allocated;
+        }).setHandler(idsResult -> {
+            if (idsResult.failed()) {
+                next.handle(Future.failedFuture(idsResult.cause()));
+                return;
+            }
+            Iterator<Integer> ids = idsResult.result().iterator();
+            Map<JDBCClient, List<Whisky>> whiskiesByShard = batch.stream()
+                    .map(w -> w.getId() < 0 ? new Whisky(ids.next(), w.getName(), w.getOrigin()) : w)
+                    .collect(groupingBy(w -> shards.of(w.getId())));
+            shards.<Void>scatter(client -> {
+                List<Whisky> shardBatch = whiskiesByShard.get(client);
+                if (isNull(shardBatch)) return Future.succeededFuture();
+                Future<Void> imported = Future.future();
+                withConnection(client, (sqlCon, importNext) -> importBatch(shardBatch, sqlCon, importNext), imported);
+                return imported;
+            }, importResult -> next.handle(importResult.mapEmpty()));
+        });
+    }
+
     private void insertOne(Whisky src, SQLConnection sqlCon, Handler<AsyncResult<Whisky>> next) {
         sqlCon.updateWithParams(INSERT_ONE, new JsonArray().add(src.getName()).add(src.getOrigin()), updateResult -> {
             if (updateResult.failed()) {
@@ -290,6 +951,30 @@ public class WebSqlVerticle extends AbstractVerticle {
         });
     }
 
+    /**
+     * Whiskies with id are merged by id, others are inserted with a new id
+     */
+    private void importBatch(List<Whisky> batch, SQLConnection sqlCon, Handler<AsyncResult<Void>> next) {
+        List<JsonArray> merges = new ArrayList<>();
+        List<JsonArray> inserts = new ArrayList<>();
+        for (Whisky whisky : batch) {
+            if (whisky.getId() < 0) inserts.add(new JsonArray().add(whisky.getName()).add(whisky.getOrigin()));
+            else merges.add(new JsonArray().add(whisky.getId()).add(whisky.getName()).add(whisky.getOrigin()));
+        }
+        Future<List<Integer>> merged = Future.future();
+        if (merges.isEmpty()) merged.complete();
+        else sqlCon.batchWithParams(MERGE_ONE, merges, merged.completer());
+        merged.compose(v -> {
+            Future<List<Integer>> inserted = Future.future();
+            if (inserts.isEmpty()) inserted.complete();
+            else sqlCon.batchWithParams(INSERT_ONE, inserts, inserted.completer());
+            return inserted;
+        }).setHandler(batchResult -> {
+            if (batchResult.failed()) next.handle(Future.failedFuture(batchResult.cause()));
+            else next.handle(Future.succeededFuture());
+        });
+    }
+
     private void updateOne(Integer id, JsonObject src, SQLConnection sqlCon, Handler<AsyncResult<Whisky>> next) {
         sqlCon.updateWithParams(UPDATE_NAME_AND_ORIGIN_AND_ID,
                 new JsonArray().add(src.getString("name")).add(src.getString("origin")).add(id),
@@ -299,41 +984,138 @@ public class WebSqlVerticle extends AbstractVerticle {
                         return;
                     }
                     if (updateResult.result().getUpdated() == 0) {
-                        next.handle(Future.failedFuture("not found whisky: " + id));
+                        next.handle(Future.failedFuture(new AnswerException("not found whisky: " + id)));
                     } else {
                         next.handle(Future.succeededFuture(new Whisky(id, src.getString("name"), src.getString("origin"))));
                     }
                 });
     }
 
-    private void selectOne(Integer id, SQLConnection sqlCon, Handler<AsyncResult<Whisky>> next) {
+    private void selectOne(Integer id, SQLConnection sqlCon, Phases phases, Handler<AsyncResult<Whisky>> next) {
+        long db = phases.start();
         sqlCon.queryWithParams(SELECT_BY_ID, new JsonArray().add(id), selectResult -> {
+            phases.end(Phase.DB, db);
             if (selectResult.failed()) {
                 next.handle(Future.failedFuture(selectResult.cause()));
                 return;
             }
             if (selectResult.result().getNumRows() == 0) {
-                next.handle(Future.failedFuture("not found whisky with id: " + id));
+                next.handle(Future.failedFuture(new AnswerException("not found whisky with id: " + id)));
             } else if (selectResult.result().getNumRows() == 1) {
-                next.handle(Future.succeededFuture(Whisky.fromJson(selectResult.result().getRows().get(0))));
+                long map = phases.start();
+                Whisky whisky = Whisky.fromJson(selectResult.result().getRows().get(0));
+                phases.end(Phase.MAP, map);
+                next.handle(Future.succeededFuture(whisky));
             } else {
-                next.handle(Future.failedFuture("several whiskies with id: " + id));
+                next.handle(Future.failedFuture(new AnswerException("several whiskies with id: " + id)));
             }
         });
+    }
 
+    /**
+     * One query for all ids: {@code WHERE id IN (?, ?, ...)}
+     */
+    private void selectMany(List<Integer> ids, SQLConnection sqlCon, Handler<AsyncResult<List<Whisky>>> next) {
+        Collection<Integer> distinct = MultiGet.distinct(ids);
+        String sql = String.format(SELECT_BY_IDS, String.join(",", nCopies(distinct.size(), "?")));
+        sqlCon.queryWithParams(sql, new JsonArray(new ArrayList<>(distinct)), selectResult -> {
+            if (selectResult.failed()) next.handle(Future.failedFuture(selectResult.cause()));
+            else next.handle(Future.succeededFuture(selectResult.result().getRows().stream().map(Whisky::fromJson).collect(toList())));
+        });
     }
 
     private void selectAll(SQLConnection sqlCon, Handler<AsyncResult<List<Whisky>>> next) {
         sqlCon.query(SELECT_ALL, selectResult -> {
-            if (selectResult.failed()) {
-                next.handle(Future.failedFuture(selectResult.cause()));
-                return;
+            if (selectResult.failed()) next.handle(Future.failedFuture(selectResult.cause()));
+            else next.handle(Future.succeededFuture(selectResult.result().getRows().stream().map(Whisky::fromJson).collect(toList())));
+        });
+    }
+
+    private AsyncResult<Whisky> insertOne(Whisky src, Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(INSERT_ONE, Statement.RETURN_GENERATED_KEYS)) {
+            statement.setString(1, src.getName());
+            statement.setString(2, src.getOrigin());
+            statement.executeUpdate();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                keys.next();
+                return Future.succeededFuture(new Whisky(keys.getInt(1), src.getName(), src.getOrigin()));
             }
-            if (selectResult.result().getNumRows() == 0) {
-                next.handle(Future.failedFuture("whiskies not found"));
-            } else {
-                next.handle(Future.succeededFuture(selectResult.result().getRows().stream().map(Whisky::fromJson).collect(toList())));
+        }
+    }
+
+    private AsyncResult<Whisky> updateOne(Integer id, JsonObject src, Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(UPDATE_NAME_AND_ORIGIN_AND_ID)) {
+            statement.setString(1, src.getString("name"));
+            statement.setString(2, src.getString("origin"));
+            statement.setInt(3, id);
+            if (statement.executeUpdate() == 0) return Future.failedFuture(new AnswerException("not found whisky: " + id));
+            return Future.succeededFuture(new Whisky(id, src.getString("name"), src.getString("origin")));
+        }
+    }
+
+    private AsyncResult<UpdateResult> deleteOne(Integer id, Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(DELETE_BY_ID)) {
+            statement.setInt(1, id);
+            return Future.succeededFuture(new UpdateResult(statement.executeUpdate(), new JsonArray()));
+        }
+    }
+
+    private AsyncResult<Whisky> selectOne(Integer id, Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(SELECT_BY_ID)) {
+            statement.setInt(1, id);
+            List<Whisky> whiskies = readWhiskies(statement);
+            if (whiskies.isEmpty()) return Future.failedFuture(new AnswerException("not found whisky with id: " + id));
+            if (whiskies.size() > 1) return Future.failedFuture(new AnswerException("several whiskies with id: " + id));
+            return Future.succeededFuture(whiskies.get(0));
+        }
+    }
+
+    private AsyncResult<List<Whisky>> selectMany(List<Integer> ids, Connection con) throws SQLException {
+        Collection<Integer> distinct = MultiGet.distinct(ids);
+        String sql = String.format(SELECT_BY_IDS, String.join(",", nCopies(distinct.size(), "?")));
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            int index = 1;
+            for (Integer id : distinct) statement.setInt(index++, id);
+            return Future.succeededFuture(readWhiskies(statement));
+        }
+    }
+
+    private AsyncResult<List<Whisky>> selectAll(Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(SELECT_ALL)) {
+            return Future.succeededFuture(readWhiskies(statement));
+        }
+    }
+
+    /**
+     * Rows are JSON objects with the column labels as keys, as the rows of JDBCClient
+     */
+    private AsyncResult<List<JsonObject>> selectRows(String sql, JsonArray params, Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            for (int index = 0; index < params.size(); index++) statement.setObject(index + 1, params.getValue(index));
+            List<JsonObject> rows = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                ResultSetMetaData meta = resultSet.getMetaData();
+                while (resultSet.next()) {
+                    JsonObject row = new JsonObject();
+                    for (int column = 1; column <= meta.getColumnCount(); column++) {
+                        row.put(meta.getColumnLabel(column).toUpperCase(), resultSet.getObject(column));
+                    }
+                    rows.add(row);
+                }
             }
-        });
+            return Future.succeededFuture(rows);
+        }
+    }
+
+    private static List<Whisky> readWhiskies(PreparedStatement statement) throws SQLException {
+        List<Whisky> whiskies = new ArrayList<>();
+        try (ResultSet rows = statement.executeQuery()) {
+            while (rows.next()) {
+                Whisky whisky = new Whisky(rows.getInt("id"), rows.getString("name"), rows.getString("origin"));
+                whisky.setVersion(rows.getInt("version"));
+                whiskies.add(whisky);
+            }
+        }
+        return whiskies;
     }
 }
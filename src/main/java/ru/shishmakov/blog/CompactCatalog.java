@@ -0,0 +1,313 @@
+package ru.shishmakov.blog;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Whiskies held in parallel primitive arrays of dense slots instead of one object with two strings per record.
+ * <p>
+ * Origins repeat across almost every record and are encoded by a dictionary into ints, names are kept as UTF-8
+ * in one byte arena (on heap or off heap). The API layer reads the records through flyweight {@link Whisky} views
+ * which decode the strings on demand, the views are read-only.
+ * <p>
+ * An id is mapped to its slot by an open addressing table, so the arrays are as long as the number of records
+ * whatever the ids are; a removed record gives its slot to the last one.
+ * Not thread-safe; a catalog which isn't changed after it's built can be read by any thread.
+ */
+public class CompactCatalog {
+    private static final int NULL = -1;
+    private static final int EMPTY = 0;
+
+    private final boolean offHeap;
+    private final List<String> origins = new ArrayList<>();
+    private final Map<String, Integer> originCodes = new HashMap<>();
+    private int[] ids = new int[0];
+    private int[] nameOffsets = new int[0];
+    private int[] nameLengths = new int[0];
+    private int[] originIndexes = new int[0];
+    // slot + 1 by the hash of the id, EMPTY if there is none
+    private int[] table = new int[16];
+    private ByteBuffer arena;
+    private int arenaEnd;
+    private int garbage;
+    private int size;
+
+    /**
+     * @param offHeap keep names in a direct buffer outside of the heap
+     */
+    public CompactCatalog(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.arena = allocate(1024);
+    }
+
+    public static CompactCatalog of(Collection<Whisky> whiskies, boolean offHeap) {
+        CompactCatalog catalog = new CompactCatalog(offHeap);
+        for (Whisky whisky : whiskies) catalog.put(whisky);
+        catalog.trim();
+        return catalog;
+    }
+
+    /**
+     * Adds or replaces the record of the whisky id
+     */
+    public void put(Whisky whisky) {
+        int id = whisky.getId();
+        if (id < 0) throw new IllegalArgumentException("whisky has no id: " + whisky);
+        int slot = slot(id);
+        if (slot < 0) slot = add(id);
+        else if (nameLengths[slot] > 0) garbage += nameLengths[slot];
+        // the replaced name isn't copied if the arena is compacted
+        nameLengths[slot] = NULL;
+
+        String name = whisky.getName();
+        if (name != null) {
+            byte[] bytes = name.getBytes(UTF_8);
+            ensureArena(bytes.length);
+            for (int i = 0; i < bytes.length; i++) arena.put(arenaEnd + i, bytes[i]);
+            nameOffsets[slot] = arenaEnd;
+            nameLengths[slot] = bytes.length;
+            arenaEnd += bytes.length;
+        }
+        originIndexes[slot] = encodeOrigin(whisky.getOrigin());
+    }
+
+    /**
+     * @return view of the record or {@code null} if there is no whisky with the id
+     */
+    public Whisky get(int id) {
+        int slot = slot(id);
+        return slot < 0 ? null : new View(this, id, slot);
+    }
+
+    public boolean contains(int id) {
+        return slot(id) >= 0;
+    }
+
+    public void remove(int id) {
+        int slot = slot(id);
+        if (slot < 0) return;
+        if (nameLengths[slot] > 0) garbage += nameLengths[slot];
+        unlink(id);
+        int last = --size;
+        if (slot == last) return;
+        ids[slot] = ids[last];
+        nameOffsets[slot] = nameOffsets[last];
+        nameLengths[slot] = nameLengths[last];
+        originIndexes[slot] = originIndexes[last];
+        table[bucket(ids[slot])] = slot + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return views of all records in the order of ids; the views are valid until the catalog is changed
+     */
+    public List<Whisky> views() {
+        // ids aren't negative, the order of (id, slot) is the order of ids
+        long[] records = new long[size];
+        for (int slot = 0; slot < size; slot++) records[slot] = (long) ids[slot] << 32 | slot;
+        Arrays.sort(records);
+        return new AbstractList<Whisky>() {
+            @Override
+            public Whisky get(int index) {
+                long record = records[index];
+                return new View(CompactCatalog.this, (int) (record >>> 32), (int) record);
+            }
+
+            @Override
+            public int size() {
+                return records.length;
+            }
+        };
+    }
+
+    /**
+     * Drops the spare room of the arrays and the arena, e.g. when the catalog is built and won't grow
+     */
+    public void trim() {
+        resize(size);
+        rehash(tableLength(size));
+        copyArena(arenaEnd - garbage);
+    }
+
+    /**
+     * @return distinct origins in the dictionary
+     */
+    public int originCount() {
+        return origins.size();
+    }
+
+    /**
+     * @return bytes of the arena taken by names, including names which were replaced or removed
+     */
+    public int arenaBytes() {
+        return arenaEnd;
+    }
+
+    String name(int slot) {
+        int length = nameLengths[slot];
+        if (length == NULL) return null;
+        int offset = nameOffsets[slot];
+        if (arena.hasArray()) return new String(arena.array(), arena.arrayOffset() + offset, length, UTF_8);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = arena.get(offset + i);
+        return new String(bytes, UTF_8);
+    }
+
+    String origin(int slot) {
+        int index = originIndexes[slot];
+        return index == NULL ? null : origins.get(index);
+    }
+
+    private int encodeOrigin(String origin) {
+        if (origin == null) return NULL;
+        Integer index = originCodes.get(origin);
+        if (index != null) return index;
+        origins.add(origin);
+        originCodes.put(origin, origins.size() - 1);
+        return origins.size() - 1;
+    }
+
+    /**
+     * @return the slot of the id or -1
+     */
+    private int slot(int id) {
+        int entry = table[bucket(id)];
+        return entry == EMPTY ? -1 : entry - 1;
+    }
+
+    /**
+     * @return the bucket of the table which holds the id or the empty one where it goes
+     */
+    private int bucket(int id) {
+        int mask = table.length - 1;
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            if (table[i] == EMPTY || ids[table[i] - 1] == id) return i;
+        }
+    }
+
+    private int add(int id) {
+        if (size == ids.length) resize(Math.max(size + (size >> 1), 16));
+        if ((size + 1) * 2 > table.length) rehash(table.length * 2);
+        int slot = size++;
+        ids[slot] = id;
+        table[bucket(id)] = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Removes the id from the table, the entries after it are shifted back so that lookups don't stop early
+     */
+    private void unlink(int id) {
+        int mask = table.length - 1;
+        int hole = bucket(id);
+        table[hole] = EMPTY;
+        for (int i = (hole + 1) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            int home = hash(ids[table[i] - 1]) & mask;
+            // the entry stays if its home is within (hole, i]
+            if (((i - home) & mask) < ((i - hole) & mask)) continue;
+            table[hole] = table[i];
+            table[i] = EMPTY;
+            hole = i;
+        }
+    }
+
+    private void resize(int length) {
+        ids = Arrays.copyOf(ids, length);
+        nameOffsets = Arrays.copyOf(nameOffsets, length);
+        nameLengths = Arrays.copyOf(nameLengths, length);
+        originIndexes = Arrays.copyOf(originIndexes, length);
+    }
+
+    private void rehash(int length) {
+        table = new int[length];
+        for (int slot = 0; slot < size; slot++) table[bucket(ids[slot])] = slot + 1;
+    }
+
+    /**
+     * @return a power of two at least twice the number of records
+     */
+    private static int tableLength(int records) {
+        return Math.max(Integer.highestOneBit(Math.max(records * 2 - 1, 1)) << 1, 16);
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Makes room for the bytes, names which were replaced or removed are dropped when the arena is copied
+     */
+    private void ensureArena(int bytes) {
+        if (arenaEnd + bytes <= arena.capacity()) return;
+        int live = arenaEnd - garbage;
+        int capacity = Math.max(arena.capacity(), 1024);
+        while (capacity < live + bytes + (live >> 1)) capacity <<= 1;
+        copyArena(capacity);
+    }
+
+    private void copyArena(int capacity) {
+        ByteBuffer copy = allocate(capacity);
+        int end = 0;
+        for (int slot = 0; slot < size; slot++) {
+            int length = nameLengths[slot];
+            if (length <= 0) continue;
+            int offset = nameOffsets[slot];
+            for (int i = 0; i < length; i++) copy.put(end + i, arena.get(offset + i));
+            nameOffsets[slot] = end;
+            end += length;
+        }
+        arena = copy;
+        arenaEnd = end;
+        garbage = 0;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Flyweight of one record, the strings are decoded on every call
+     */
+    private static class View extends Whisky {
+        private final CompactCatalog catalog;
+        private final int slot;
+
+        View(CompactCatalog catalog, int id, int slot) {
+            super(id, null, null);
+            this.catalog = catalog;
+            this.slot = slot;
+        }
+
+        @Override
+        public String getName() {
+            return catalog.name(slot);
+        }
+
+        @Override
+        public void setName(String name) {
+            throw new UnsupportedOperationException("view of the catalog is read-only");
+        }
+
+        @Override
+        public String getOrigin() {
+            return catalog.origin(slot);
+        }
+
+        @Override
+        public void setOrigin(String origin) {
+            throw new UnsupportedOperationException("view of the catalog is read-only");
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ru.shishmakov.blog;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.vertx.core.json.JsonObject;
 
 import java.util.Optional;
@@ -10,6 +11,7 @@ public class Whisky {
     private final int id;
     private String name;
     private String origin;
+    private int version;
 
     public Whisky(int id, String name, String origin) {
         this.id = id;
@@ -45,11 +47,26 @@ public class Whisky {
         this.origin = origin;
     }
 
+    /**
+     * @return version of the record in the database, it's incremented by every update and isn't a part of the API
+     */
+    @JsonIgnore
+    public int getVersion() {
+        return version;
+    }
+
+    @JsonIgnore
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     public static Whisky fromJson(JsonObject json) {
-        return new Whisky(
+        Whisky whisky = new Whisky(
                 Optional.of(json).map(j -> j.getInteger("_id", j.getInteger("ID"))).orElse(-1),
                 Optional.of(json).map(j -> j.getString("NAME")).orElse(null),
                 Optional.of(json).map(j -> j.getString("ORIGIN")).orElse(null));
+        whisky.setVersion(json.getInteger("VERSION", 0));
+        return whisky;
     }
 
     public JsonObject toJson() {
@@ -57,16 +74,16 @@ public class Whisky {
     }
 
     public JsonObject toJson(boolean useMongo) {
-        JsonObject json = new JsonObject().put(useMongo ? "_id" : "ID", id);
-        ofNullable(name).ifPresent(t -> json.put("NAME", t));
-        ofNullable(origin).ifPresent(t -> json.put("ORIGIN", t));
+        JsonObject json = new JsonObject().put(useMongo ? "_id" : "ID", getId());
+        ofNullable(getName()).ifPresent(t -> json.put("NAME", t));
+        ofNullable(getOrigin()).ifPresent(t -> json.put("ORIGIN", t));
         return json;
     }
 
     @Override
     public String toString() {
-        return "id=" + id +
-                ", name='" + name + '\'' +
-                ", origin='" + origin + '\'';
+        return "id=" + getId() +
+                ", name='" + getName() + '\'' +
+                ", origin='" + getOrigin() + '\'';
     }
 }
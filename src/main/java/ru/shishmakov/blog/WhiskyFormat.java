@@ -0,0 +1,159 @@
+package ru.shishmakov.blog;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line based file formats of the catalog: one whisky per record, a record is one line unless the format
+ * continues it on the next lines (see {@link #isComplete(String)})
+ */
+public enum WhiskyFormat {
+    /**
+     * {"id":1,"name":"Talisker 57° North","origin":"Scotland, Island"}
+     */
+    NDJSON("application/x-ndjson") {
+        @Override
+        public Buffer header() {
+            return null;
+        }
+
+        @Override
+        public Buffer encode(Whisky whisky) {
+            return Buffer.buffer(Json.encode(whisky)).appendString("\n");
+        }
+
+        @Override
+        public Whisky decode(String line) {
+            return Json.decodeValue(line, Whisky.class);
+        }
+    },
+    /**
+     * 1,Talisker 57° North,"Scotland, Island"
+     * <p>
+     * Fields are quoted by RFC 4180: a field with a comma, a quote, a line break or leading or trailing
+     * whitespace is quoted, a quoted field spans several lines if it holds line breaks
+     */
+    CSV("text/csv; charset=utf-8") {
+        private static final String HEADER = "id,name,origin";
+
+        @Override
+        public Buffer header() {
+            return Buffer.buffer(HEADER + "\n");
+        }
+
+        @Override
+        public Buffer encode(Whisky whisky) {
+            return Buffer.buffer(whisky.getId() + "," + quote(whisky.getName()) + "," + quote(whisky.getOrigin()) + "\n");
+        }
+
+        @Override
+        public Whisky decode(String line) {
+            if (HEADER.equalsIgnoreCase(line)) return null;
+            List<String> fields = split(line);
+            if (fields.size() != 3) throw new IllegalArgumentException("expected 3 fields but found " + fields.size());
+            String id = fields.get(0).trim();
+            return id.isEmpty()
+                    ? new Whisky(emptyToNull(fields.get(1)), emptyToNull(fields.get(2)))
+                    : new Whisky(Integer.parseInt(id), emptyToNull(fields.get(1)), emptyToNull(fields.get(2)));
+        }
+
+        /**
+         * @return false while a quote is open, i.e. the number of quotes is odd
+         */
+        @Override
+        public boolean isComplete(String record) {
+            int quotes = 0;
+            for (int i = 0; i < record.length(); i++) {
+                if (record.charAt(i) == '"') quotes++;
+            }
+            return (quotes & 1) == 0;
+        }
+    };
+
+    private final String contentType;
+
+    WhiskyFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the first line of the file or {@code null} if the format has no header
+     */
+    public abstract Buffer header();
+
+    public abstract Buffer encode(Whisky whisky);
+
+    /**
+     * @return the whisky or {@code null} if the line is the header
+     * @throws RuntimeException if the line is malformed
+     */
+    public abstract Whisky decode(String line);
+
+    /**
+     * @param record the lines read so far joined by {@code \n}, without the line break of the last one
+     * @return false if the record continues on the next line
+     */
+    public boolean isComplete(String record) {
+        return true;
+    }
+
+    /**
+     * @return the format by name or {@code null} if the name is unknown; NDJSON by default
+     */
+    public static WhiskyFormat of(String name) {
+        if (name == null) return NDJSON;
+        for (WhiskyFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name)) return format;
+        }
+        return null;
+    }
+
+    private static String quote(String value) {
+        if (value == null) return "";
+        if (!needsQuotes(value)) return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static boolean needsQuotes(String value) {
+        if (value.isEmpty()) return false;
+        if (value.charAt(0) <= ' ' || value.charAt(value.length() - 1) <= ' ') return true;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') return true;
+        }
+        return false;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') field.append(c);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"') field.append(line.charAt(++i));
+                else quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else field.append(c);
+        }
+        if (quoted) throw new IllegalArgumentException("unterminated quote");
+        fields.add(field.toString());
+        return fields;
+    }
+}
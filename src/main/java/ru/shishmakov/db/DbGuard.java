@@ -0,0 +1,223 @@
+package ru.shishmakov.db;
+
+import com.codahale.metrics.Counter;
+import io.vertx.circuitbreaker.CircuitBreaker;
+import io.vertx.circuitbreaker.CircuitBreakerOptions;
+import io.vertx.circuitbreaker.CircuitBreakerState;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.metrics.Metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeoutException;
+import java.util.function.UnaryOperator;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Protects database calls by per-operation deadlines and a circuit breaker.
+ * <p>
+ * Results of reads are remembered in a bounded LRU cache which is served instead of the failure
+ * while the circuit is open or the call has failed; a value which is expensive to keep (e.g. the list of all whiskies
+ * in the compact catalog) is converted when it's remembered, at most once in {@code fallback_refresh} ms per key
+ * unless a write evicts it. Failures by {@link AnswerException} are answers of the database
+ * (e.g. "not found whisky") and don't trip the circuit.
+ * <p>
+ * The state of the circuit is reported per name as the worst state of the breakers of all verticle instances.
+ * <p>
+ * Config:
+ * <pre>
+ * "deadlines": {"default": 5000, "select_one": 2000, ...},
+ * "circuit_breaker": {"max_failures": 5, "reset_timeout": 10000, "fallback_cache_size": 1000, "fallback_refresh": 1000}
+ * </pre>
+ */
+public class DbGuard {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final Map<String, Set<DbGuard>> guards = new ConcurrentHashMap<>();
+
+    private final Vertx vertx;
+    private final String name;
+    private final CircuitBreaker breaker;
+    private final JsonObject deadlines;
+    private final long defaultDeadline;
+    private final Map<Object, Remembered> fallbackCache;
+    private final long fallbackRefresh;
+    private final Counter fallbackHits;
+
+    public DbGuard(Vertx vertx, String name, JsonObject config) {
+        JsonObject breakerConf = config.getJsonObject("circuit_breaker", new JsonObject());
+        this.vertx = vertx;
+        this.name = name;
+        this.deadlines = config.getJsonObject("deadlines", new JsonObject());
+        this.defaultDeadline = deadlines.getLong("default", 5000L);
+        this.fallbackCache = buildLruCache(breakerConf.getInteger("fallback_cache_size", 1000));
+        this.fallbackRefresh = breakerConf.getLong("fallback_refresh", 1000L);
+        this.fallbackHits = Metrics.counter("breaker." + name + ".fallback_hits");
+        this.breaker = CircuitBreaker.create(name, vertx, new CircuitBreakerOptions()
+                .setMaxFailures(breakerConf.getInteger("max_failures", 5))
+                .setResetTimeout(breakerConf.getLong("reset_timeout", 10_000L))
+                .setTimeout(-1)
+                .setFallbackOnFailure(true))
+                .openHandler(v -> transition(CircuitBreakerState.OPEN))
+                .halfOpenHandler(v -> transition(CircuitBreakerState.HALF_OPEN))
+                .closeHandler(v -> transition(CircuitBreakerState.CLOSED));
+        Set<DbGuard> named = guards.computeIfAbsent(name, n -> new CopyOnWriteArraySet<>());
+        named.add(this);
+        Metrics.gauge("breaker." + name + ".state", () -> worstState(named).name());
+    }
+
+    /**
+     * Runs the command within the deadline of the operation
+     *
+     * @param operation name of the operation, key of the deadline in config
+     * @param cacheKey  key to remember the result for fallback, {@code null} for writes
+     * @param command   the database call
+     * @param next      the result or the failure; {@link #isUnavailable(Throwable)} tells the database is unreachable
+     */
+    public <T> void execute(String operation, Object cacheKey, Handler<Future<T>> command, Handler<AsyncResult<T>> next) {
+        execute(operation, cacheKey, null, command, next);
+    }
+
+    /**
+     * Runs the command within the deadline of the operation, the result is converted when it's remembered
+     *
+     * @param remember converts the result kept for fallback, {@code null} keeps the result itself;
+     *                 a converted result is refreshed at most once in {@code fallback_refresh} ms
+     */
+    public <T> void execute(String operation, Object cacheKey, UnaryOperator<T> remember,
+                            Handler<Future<T>> command, Handler<AsyncResult<T>> next) {
+        breaker.<AsyncResult<T>>executeCommandWithFallback(breakerFuture -> {
+            long deadline = deadlines.getLong(operation, defaultDeadline);
+            long timerId = vertx.setTimer(deadline, t -> {
+                if (breakerFuture.tryFail(new TimeoutException(operation + " exceeded deadline " + deadline + " ms"))) {
+                    Metrics.counter("db." + name + "." + operation + ".timeouts").inc();
+                }
+            });
+            Future<T> commandFuture = Future.future();
+            commandFuture.setHandler(commandResult -> {
+                vertx.cancelTimer(timerId);
+                if (commandResult.succeeded() || commandResult.cause() instanceof AnswerException) {
+                    breakerFuture.tryComplete(commandResult);
+                } else breakerFuture.tryFail(commandResult.cause());
+            });
+            command.handle(commandFuture);
+        }, failure -> {
+            Remembered cached = nonNull(cacheKey) ? fallbackCache.get(cacheKey) : null;
+            if (nonNull(cached)) {
+                fallbackHits.inc();
+                @SuppressWarnings("unchecked") T value = (T) cached.value;
+                return Future.succeededFuture(value);
+            }
+            return Future.failedFuture(new UnavailableException(failure));
+        }, breakerResult -> {
+            AsyncResult<T> result = breakerResult.succeeded()
+                    ? breakerResult.result()
+                    : Future.failedFuture(new UnavailableException(breakerResult.cause()));
+            if (result.succeeded() && nonNull(cacheKey)) remember(cacheKey, result.result(), remember);
+            next.handle(result);
+        });
+    }
+
+    /**
+     * Forgets the cached results changed by a write
+     */
+    public void evict(Object... cacheKeys) {
+        for (Object key : cacheKeys) fallbackCache.remove(key);
+    }
+
+    public void evictAll() {
+        fallbackCache.clear();
+    }
+
+    public void close() {
+        Set<DbGuard> named = guards.get(name);
+        if (named != null) named.remove(this);
+        breaker.close();
+        fallbackCache.clear();
+    }
+
+    /**
+     * @return true if the database has not answered: open circuit, deadline or connection failure
+     */
+    public static boolean isUnavailable(Throwable cause) {
+        return cause instanceof UnavailableException;
+    }
+
+    private <T> void remember(Object cacheKey, T value, UnaryOperator<T> remember) {
+        long now = System.currentTimeMillis();
+        if (remember == null) {
+            fallbackCache.put(cacheKey, new Remembered(value, now));
+            return;
+        }
+        Remembered cached = fallbackCache.get(cacheKey);
+        if (cached == null || now - cached.at >= fallbackRefresh) {
+            fallbackCache.put(cacheKey, new Remembered(remember.apply(value), now));
+        }
+    }
+
+    /**
+     * @return OPEN if a breaker is open, then HALF_OPEN, CLOSED if all breakers are closed or there are none
+     */
+    private static CircuitBreakerState worstState(Set<DbGuard> named) {
+        CircuitBreakerState worst = CircuitBreakerState.CLOSED;
+        for (DbGuard guard : named) {
+            CircuitBreakerState state = guard.breaker.state();
+            if (state == CircuitBreakerState.OPEN) return state;
+            if (state == CircuitBreakerState.HALF_OPEN) worst = state;
+        }
+        return worst;
+    }
+
+    private void transition(CircuitBreakerState state) {
+        Metrics.counter("breaker." + name + ".transitions." + state.name().toLowerCase()).inc();
+        logger.warn("circuit breaker {} is {}", name, state);
+    }
+
+    private static Map<Object, Remembered> buildLruCache(int maxSize) {
+        return new LinkedHashMap<Object, Remembered>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Remembered> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static final class Remembered {
+        private final Object value;
+        private final long at;
+
+        Remembered(Object value, long at) {
+            this.value = value;
+            this.at = at;
+        }
+    }
+
+    /**
+     * A failure which is an answer of the database, e.g. no whisky with the id; it has no stack trace
+     */
+    public static class AnswerException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public AnswerException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    public static class UnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException(Throwable cause) {
+            super("database is unavailable: " + cause.getMessage(), cause);
+        }
+    }
+}
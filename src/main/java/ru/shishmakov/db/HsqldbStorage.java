@@ -0,0 +1,184 @@
+package ru.shishmakov.db;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.metrics.Metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Storage profile of a file-mode HSQLDB database and the background checkpoints of its shards.
+ * <p>
+ * {@code MEMORY} tables (the default) are loaded whole on open and written whole by every checkpoint;
+ * {@code CACHED} tables keep {@code cache_rows} rows or {@code cache_size} KB in memory and write only
+ * the changed rows, so the data may be larger than the heap. The data file is accessed through nio
+ * up to {@code nio_max_size} MB. {@code write_delay} ms is the delay of the log sync after a commit,
+ * 0 syncs every commit. The database checkpoints itself when the log exceeds {@code log_size} MB.
+ * A missing key keeps the setting of the database.
+ * <p>
+ * With {@code checkpoint_interval} the shards are checkpointed in the background ({@code CHECKPOINT DEFRAG}
+ * with {@code checkpoint_defrag}) at quiet times: when the node has served no request for {@code quiet_period} ms,
+ * otherwise the checkpoint waits for the next interval. The verticle instances of one name share the database:
+ * the first started instance checkpoints it while none of the instances has served a request for the quiet period,
+ * the next one takes over when it stops. Settings apply to {@code jdbc:hsqldb:file:} urls only.
+ * Not thread-safe, belongs to the context of the verticle.
+ * <p>
+ * Config: {@code "hsqldb": {"table_type": "memory", "cache_rows": 50000, "cache_size": 10000, "nio_data_file": true,
+ * "nio_max_size": 256, "write_delay": 500, "log_size": 50, "checkpoint_interval": 0, "checkpoint_defrag": true,
+ * "quiet_period": 5000}}
+ */
+public class HsqldbStorage {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final String SELECT_TABLE_TYPE = "SELECT HSQLDB_TYPE FROM INFORMATION_SCHEMA.SYSTEM_TABLES"
+            + " WHERE TABLE_SCHEM = 'PUBLIC' AND TABLE_NAME = '%s'";
+    private static final String SET_TABLE_TYPE = "SET TABLE %s TYPE %s";
+    // started storages of the verticle instances by name, the first one checkpoints
+    private static final Map<String, Set<HsqldbStorage>> storages = new ConcurrentHashMap<>();
+
+    private final Vertx vertx;
+    private final String name;
+    private final boolean fileMode;
+    private final JsonObject conf;
+    private final String tableType;
+    private final long checkpointInterval;
+    private final boolean defrag;
+    private final long quietPeriod;
+    private final Timer checkpoints;
+    private final Counter deferred;
+    private boolean checkpointing;
+    private long timerId = -1;
+    private LongSupplier idleMillis = () -> 0;
+
+    public HsqldbStorage(Vertx vertx, String name, JsonObject config, String url) {
+        this.vertx = vertx;
+        this.name = name;
+        this.fileMode = url.startsWith("jdbc:hsqldb:file:");
+        this.conf = config.getJsonObject("hsqldb", new JsonObject());
+        this.tableType = fileMode && "cached".equalsIgnoreCase(conf.getString("table_type", "memory")) ? "CACHED" : "MEMORY";
+        this.checkpointInterval = conf.getLong("checkpoint_interval", 0L);
+        this.defrag = conf.getBoolean("checkpoint_defrag", true);
+        this.quietPeriod = conf.getLong("quiet_period", 5000L);
+        this.checkpoints = Metrics.timer("hsqldb." + name + ".checkpoints");
+        this.deferred = Metrics.counter("hsqldb." + name + ".checkpoints_deferred");
+    }
+
+    /**
+     * @return {@code MEMORY} or {@code CACHED}, the type of the tables created by the app
+     */
+    public String tableType() {
+        return tableType;
+    }
+
+    /**
+     * @return statements of the file settings of the database
+     */
+    public List<String> settings() {
+        List<String> settings = new ArrayList<>();
+        if (!fileMode) return settings;
+        if (conf.containsKey("cache_rows")) settings.add("SET FILES CACHE ROWS " + conf.getInteger("cache_rows"));
+        if (conf.containsKey("cache_size")) settings.add("SET FILES CACHE SIZE " + conf.getInteger("cache_size"));
+        if (conf.containsKey("nio_data_file")) settings.add("SET FILES NIO " + (conf.getBoolean("nio_data_file") ? "TRUE" : "FALSE"));
+        if (conf.containsKey("nio_max_size")) settings.add("SET FILES NIO SIZE " + conf.getInteger("nio_max_size"));
+        if (conf.containsKey("write_delay")) settings.add("SET FILES WRITE DELAY " + conf.getInteger("write_delay") + " MILLIS");
+        if (conf.containsKey("log_size")) settings.add("SET FILES LOG SIZE " + conf.getInteger("log_size"));
+        return settings;
+    }
+
+    /**
+     * Applies the file settings and converts the table of another type, the connection is left open
+     */
+    public Future<Void> apply(SQLConnection sqlCon, String table) {
+        Future<Void> applied = Future.succeededFuture();
+        for (String setting : settings()) {
+            applied = applied.compose(v -> {
+                Future<Void> executed = Future.future();
+                sqlCon.execute(setting, executed.completer());
+                return executed;
+            });
+        }
+        if (!fileMode) return applied;
+        return applied.compose(v -> {
+            Future<Void> converted = Future.future();
+            sqlCon.query(String.format(SELECT_TABLE_TYPE, table.toUpperCase()), selectResult -> {
+                if (selectResult.failed()) converted.fail(selectResult.cause());
+                else if (selectResult.result().getNumRows() == 0
+                        || tableType.equals(selectResult.result().getResults().get(0).getString(0))) converted.complete();
+                else {
+                    logger.info("table {} is converted to {}", table, tableType);
+                    sqlCon.execute(String.format(SET_TABLE_TYPE, table, tableType), converted.completer());
+                }
+            });
+            return converted;
+        });
+    }
+
+    /**
+     * Starts the background checkpoints of the shards
+     *
+     * @param idleMillis the time since the verticle has served its last request, 0 while requests are in flight;
+     *                   called from the timers of the other instances too
+     */
+    public void start(Shards shards, LongSupplier idleMillis) {
+        if (!fileMode || checkpointInterval <= 0) return;
+        this.idleMillis = idleMillis;
+        Set<HsqldbStorage> named = storages.computeIfAbsent(name, n -> new CopyOnWriteArraySet<>());
+        named.add(this);
+        timerId = vertx.setPeriodic(checkpointInterval, id -> {
+            if (checkpointing || named.iterator().next() != this) return;
+            if (idleMillis(named) < quietPeriod) {
+                deferred.inc();
+                return;
+            }
+            checkpointing = true;
+            long start = System.nanoTime();
+            shards.<Void>scatter(client -> {
+                Future<Void> checkpointed = Future.future();
+                client.getConnection(conResult -> {
+                    if (conResult.failed()) {
+                        checkpointed.fail(conResult.cause());
+                        return;
+                    }
+                    SQLConnection sqlCon = conResult.result();
+                    sqlCon.execute(defrag ? "CHECKPOINT DEFRAG" : "CHECKPOINT", executeResult -> {
+                        sqlCon.close();
+                        checkpointed.handle(executeResult);
+                    });
+                });
+                return checkpointed;
+            }, checkpointResult -> {
+                checkpointing = false;
+                if (checkpointResult.failed()) logger.warn("checkpoint has failed", checkpointResult.cause());
+                else checkpoints.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            });
+        });
+    }
+
+    public void stop() {
+        vertx.cancelTimer(timerId);
+        Set<HsqldbStorage> named = storages.get(name);
+        if (named != null) named.remove(this);
+    }
+
+    /**
+     * @return the time since the last request of all instances, 0 while any of them has requests in flight
+     */
+    private static long idleMillis(Set<HsqldbStorage> named) {
+        long idle = Long.MAX_VALUE;
+        for (HsqldbStorage storage : named) idle = Math.min(idle, storage.idleMillis.getAsLong());
+        return idle;
+    }
+}
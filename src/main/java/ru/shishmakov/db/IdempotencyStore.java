@@ -0,0 +1,34 @@
+package ru.shishmakov.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Responses of idempotent writes kept by the database, they survive restarts and are shared by the nodes.
+ * A stored response is a JSON object: {@code {"fingerprint": "...", "status": 201, "content_type": "...", "body": "<base64>"}}
+ */
+public interface IdempotencyStore {
+
+    /**
+     * Creates the table or the index of the store
+     */
+    void init(Handler<AsyncResult<Void>> next);
+
+    /**
+     * @param next the stored response or {@code null} if there is none or it has expired
+     */
+    void get(String key, Handler<AsyncResult<JsonObject>> next);
+
+    /**
+     * Stores or replaces the response of the key
+     *
+     * @param expiresAt epoch millis
+     */
+    void put(String key, JsonObject response, long expiresAt, Handler<AsyncResult<Void>> next);
+
+    /**
+     * Deletes the responses which have expired by now
+     */
+    void purge(long now, Handler<AsyncResult<Void>> next);
+}
@@ -0,0 +1,293 @@
+package ru.shishmakov.db;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import com.mongodb.ConnectionString;
+import com.mongodb.async.client.MongoClientSettings;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoDatabase;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.impl.MongoClientImpl;
+import org.bson.BsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.metrics.Metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Shared MongoClient with the pool settings of the config and metrics of the commands on the wire.
+ * <p>
+ * The settings of {@code mongo} config are passed to the Vert.x client through its supported options:
+ * the pool and socket settings are options of {@code connection_string} over the ones it has
+ * (the Vert.x client reads its own pool keys only without a connection string), the read preference,
+ * the write and read concerns are the keys of the Vert.x client, the connection string takes precedence.
+ * Without a connection string the wait queue of the Vert.x client is a multiple of 500 requests,
+ * so {@code max_wait_queue_size} is rounded up to it.
+ * <p>
+ * The Vert.x client has no options for the listeners of the driver, so the driver client of the shared data source
+ * is replaced once by a client with the same settings and the listeners. It takes the private fields of the Vert.x
+ * client, so it is done for the tested version of vertx-mongo-client only, another version isn't instrumented
+ * and keeps the settings without the metrics:
+ * <ul>
+ * <li>{@code mongo.command.<name>} timer of the round trip of a command, e.g. find, insert, findAndModify</li>
+ * <li>{@code mongo.command.<name>.documents} histogram of documents returned or written by a command</li>
+ * <li>{@code mongo.command.<name>.failed} counter</li>
+ * <li>{@code mongo.pool.checkout_wait} timer of a checkout which waited for a free connection,
+ * checkouts served at once are counted by {@code mongo.pool.checkouts} only</li>
+ * <li>{@code mongo.pool.checked_out} gauge of connections in use</li>
+ * </ul>
+ * Config: {@code "mongo": {"max_pool_size": 20, "min_pool_size": 2, "max_wait_queue_size": 200, "max_wait_time": 2000,
+ * "max_idle_time": 60000, "max_life_time": 0, "connect_timeout": 3000, "socket_timeout": 5000,
+ * "read_preference": "primary", "write_concern": "acknowledged", "read_concern": "local"}}
+ * <p>
+ * Another data source of the same deployment, e.g. the client which reads the secondaries,
+ * gets its own prefix of the metrics instead of {@code mongo}.
+ */
+public final class InstrumentedMongo {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    /**
+     * Version of vertx-mongo-client whose fields are known, see {@code InstrumentedMongoTest}
+     */
+    static final String TESTED_VERSION = "3.5.4";
+    private static final int WAIT_QUEUE_STEP = 500;
+    private static final int DEFAULT_POOL_SIZE = 100;
+
+    private InstrumentedMongo() {
+    }
+
+    public static MongoClient createShared(Vertx vertx, JsonObject config, String dsName) {
+        return createShared(vertx, config, dsName, "mongo");
+    }
+
+    /**
+     * @param metricPrefix prefix of the metrics of the data source, e.g. "mongo.replica"
+     */
+    public static MongoClient createShared(Vertx vertx, JsonObject config, String dsName, String metricPrefix) {
+        MongoClient client = MongoClient.createShared(vertx, options(config), dsName);
+        String version = MongoClientImpl.class.getPackage().getImplementationVersion();
+        if (!(client instanceof MongoClientImpl) || !TESTED_VERSION.equals(version)) {
+            logger.warn("mongo client of {} isn't instrumented: vertx-mongo-client {} isn't {}", dsName, version, TESTED_VERSION);
+            return client;
+        }
+        try {
+            instrument((MongoClientImpl) client, metricPrefix);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("mongo client of {} isn't instrumented", dsName, e);
+        }
+        return client;
+    }
+
+    /**
+     * @return config of the Vert.x client with its options taken from {@code mongo} config
+     */
+    static JsonObject options(JsonObject config) {
+        JsonObject conf = config.getJsonObject("mongo", new JsonObject());
+        JsonObject options = config.copy();
+        copy(conf, "read_preference", options.getMap(), "readPreference");
+        copy(conf, "write_concern", options.getMap(), "writeConcern");
+        copy(conf, "read_concern", options.getMap(), "readConcernLevel");
+        // the names are the same for the keys of the Vert.x client and the options of a connection string
+        Map<String, Object> pool = new LinkedHashMap<>();
+        copy(conf, "max_pool_size", pool, "maxPoolSize");
+        copy(conf, "min_pool_size", pool, "minPoolSize");
+        copy(conf, "max_wait_time", pool, "waitQueueTimeoutMS");
+        copy(conf, "max_idle_time", pool, "maxIdleTimeMS");
+        copy(conf, "max_life_time", pool, "maxLifeTimeMS");
+        copy(conf, "connect_timeout", pool, "connectTimeoutMS");
+        copy(conf, "socket_timeout", pool, "socketTimeoutMS");
+        String connectionString = config.getString("connection_string");
+        Integer waitQueueSize = conf.getInteger("max_wait_queue_size");
+        if (connectionString == null) {
+            if (waitQueueSize != null) pool.put("waitQueueMultiple", multiple(waitQueueSize, WAIT_QUEUE_STEP));
+            options.getMap().putAll(pool);
+            return options;
+        }
+        if (waitQueueSize != null) {
+            // the driver multiplies the option by the pool size
+            Integer poolSize = conf.getInteger("max_pool_size", new ConnectionString(connectionString).getMaxConnectionPoolSize());
+            pool.put("waitQueueMultiple", multiple(waitQueueSize, poolSize == null ? DEFAULT_POOL_SIZE : poolSize));
+        }
+        return options.put("connection_string", withOptions(connectionString, pool));
+    }
+
+    /**
+     * @return the connection string with the options, they replace the options of the same names
+     */
+    static String withOptions(String connectionString, Map<String, Object> options) {
+        if (options.isEmpty()) return connectionString;
+        int query = connectionString.indexOf('?');
+        List<String> merged = new ArrayList<>();
+        if (query >= 0) {
+            for (String option : connectionString.substring(query + 1).split("[&;]")) {
+                String name = option.split("=", 2)[0];
+                if (!option.isEmpty() && options.keySet().stream().noneMatch(name::equalsIgnoreCase)) merged.add(option);
+            }
+        }
+        options.forEach((name, value) -> merged.add(name + '=' + value));
+        String base = query >= 0 ? connectionString.substring(0, query) : connectionString;
+        // options follow the database or the slash after the hosts
+        if (base.indexOf('/', base.indexOf("://") + 3) < 0) base += '/';
+        return base + '?' + String.join("&", merged);
+    }
+
+    private static void copy(JsonObject from, String key, Map<String, Object> to, String option) {
+        if (from.containsKey(key)) to.put(option, from.getValue(key));
+    }
+
+    private static int multiple(int size, int step) {
+        return Math.max((size + step - 1) / step, 1);
+    }
+
+    /**
+     * The driver client of the shared data source is replaced by the first verticle only
+     */
+    private static void instrument(MongoClientImpl client, String metricPrefix) throws ReflectiveOperationException {
+        Field holderField = MongoClientImpl.class.getDeclaredField("holder");
+        holderField.setAccessible(true);
+        Object holder = holderField.get(client);
+        Field mongoField = holder.getClass().getDeclaredField("mongo");
+        Field dbField = holder.getClass().getDeclaredField("db");
+        Field clientMongoField = MongoClientImpl.class.getDeclaredField("mongo");
+        mongoField.setAccessible(true);
+        dbField.setAccessible(true);
+        clientMongoField.setAccessible(true);
+
+        synchronized (holder) {
+            com.mongodb.async.client.MongoClient current = (com.mongodb.async.client.MongoClient) mongoField.get(holder);
+            if (current.getSettings().getCommandListeners().stream().noneMatch(CommandMetrics.class::isInstance)) {
+                String database = ((MongoDatabase) dbField.get(holder)).getName();
+                com.mongodb.async.client.MongoClient instrumented = MongoClients.create(withListeners(current.getSettings(), metricPrefix));
+                mongoField.set(holder, instrumented);
+                dbField.set(holder, instrumented.getDatabase(database));
+                current.close();
+            }
+            clientMongoField.set(client, mongoField.get(holder));
+        }
+    }
+
+    /**
+     * @return the settings of the Vert.x client with the listeners of the metrics
+     */
+    static MongoClientSettings withListeners(MongoClientSettings settings, String metricPrefix) {
+        return MongoClientSettings.builder(settings)
+                .addCommandListener(new CommandMetrics(metricPrefix))
+                .connectionPoolSettings(ConnectionPoolSettings.builder(settings.getConnectionPoolSettings())
+                        .addConnectionPoolListener(new PoolMetrics(metricPrefix))
+                        .build())
+                .build();
+    }
+
+    /**
+     * @return settings of the driver client which serves the Vert.x client
+     */
+    static MongoClientSettings driverSettings(MongoClient client) throws ReflectiveOperationException {
+        Field clientMongoField = MongoClientImpl.class.getDeclaredField("mongo");
+        clientMongoField.setAccessible(true);
+        return ((com.mongodb.async.client.MongoClient) clientMongoField.get(client)).getSettings();
+    }
+
+    /**
+     * Round trips of the commands, called by the threads of the driver
+     */
+    private static class CommandMetrics implements CommandListener {
+        private final String prefix;
+
+        CommandMetrics(String metricPrefix) {
+            this.prefix = metricPrefix + ".command.";
+        }
+
+        @Override
+        public void commandStarted(CommandStartedEvent event) {
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+            String name = prefix + event.getCommandName();
+            Metrics.timer(name).update(event.getElapsedTime(NANOSECONDS), NANOSECONDS);
+            int documents = documents(event.getResponse());
+            if (documents >= 0) Metrics.histogram(name + ".documents").update(documents);
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event) {
+            String name = prefix + event.getCommandName();
+            Metrics.timer(name).update(event.getElapsedTime(NANOSECONDS), NANOSECONDS);
+            Metrics.counter(name + ".failed").inc();
+        }
+
+        /**
+         * @return documents of a batch of the cursor, of findAndModify or affected by a write; -1 for other replies
+         */
+        private static int documents(BsonDocument response) {
+            if (response.isDocument("cursor")) {
+                BsonDocument cursor = response.getDocument("cursor");
+                if (cursor.isArray("firstBatch")) return cursor.getArray("firstBatch").size();
+                if (cursor.isArray("nextBatch")) return cursor.getArray("nextBatch").size();
+            }
+            if (response.containsKey("value")) return response.isNull("value") ? 0 : 1;
+            if (response.isNumber("n")) return response.getNumber("n").intValue();
+            return -1;
+        }
+    }
+
+    /**
+     * Waits for a free connection: the driver enters and exits the wait queue on the thread which waits
+     */
+    private static class PoolMetrics extends ConnectionPoolListenerAdapter {
+        private final ThreadLocal<Long> waitStart = new ThreadLocal<>();
+        private final AtomicInteger checkedOut = new AtomicInteger();
+        private final Timer checkoutWait;
+        private final Counter checkouts;
+
+        PoolMetrics(String metricPrefix) {
+            this.checkoutWait = Metrics.timer(metricPrefix + ".pool.checkout_wait");
+            this.checkouts = Metrics.counter(metricPrefix + ".pool.checkouts");
+            Metrics.gauge(metricPrefix + ".pool.checked_out", checkedOut::get);
+        }
+
+        @Override
+        public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+            waitStart.set(System.nanoTime());
+        }
+
+        @Override
+        public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+            Long start = waitStart.get();
+            waitStart.remove();
+            if (start != null) checkoutWait.update(System.nanoTime() - start, NANOSECONDS);
+        }
+
+        @Override
+        public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+            checkouts.inc();
+            checkedOut.incrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+            checkedOut.decrementAndGet();
+        }
+    }
+}
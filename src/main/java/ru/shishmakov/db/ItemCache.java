@@ -0,0 +1,417 @@
+package ru.shishmakov.db;
+
+import com.codahale.metrics.Counter;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.blog.Whisky;
+import ru.shishmakov.metrics.Metrics;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.BiConsumer;
+import java.util.function.IntPredicate;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Read-through cache of single items with the working set kept across restarts.
+ * <p>
+ * The cache holds the most recently used items and counts the hits of every item. The working set is written
+ * to a local snapshot file on a timer and on stop: the hottest items first, written sequentially
+ * through a direct buffer to a temporary file which replaces the snapshot at once.
+ * On start the snapshot is mapped into memory and loaded before the node is ready; every item is checked against
+ * the version of its record in the database and items updated or deleted since the snapshot are dropped.
+ * Without a snapshot (the first start, a lost or a broken file) the first {@code prefetch_size} records
+ * are streamed from the database instead: the hits aren't known then, the cache learns them from the traffic.
+ * <p>
+ * The writes of the node evict their items; items read after the write has started aren't stored.
+ * Items live for {@code ttl} ms since they are read or checked, it bounds the time the cache serves
+ * an item written by another node. Pinned items (the hot keys of the node) outlive colder items on eviction
+ * but not their ttl. Not thread-safe, belongs to the context of the verticle.
+ * The number of items is reported per name as the sum over the caches of all verticle instances.
+ * <p>
+ * Config: {@code "item_cache": {"enabled": false, "max_entries": 10000, "ttl": 60000, "snapshot_dir": "db/cache",
+ * "snapshot_interval": 60000, "prefetch_size": 1000}}
+ */
+public class ItemCache {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    // "WSN1"
+    private static final int MAGIC = 0x57534E31;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int IDS_PER_QUERY = 1000;
+    private static final int MAX_PINNED_SKIPS = 64;
+    private static final Map<String, Set<ItemCache>> caches = new ConcurrentHashMap<>();
+
+    private final Vertx vertx;
+    private final String name;
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttl;
+    private final Path snapshotFile;
+    private final long snapshotInterval;
+    private final int prefetchSize;
+    private final Map<Integer, Entry> entries;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter loaded;
+    private final Counter dropped;
+    private final Counter prefetched;
+    // the size of the entries, read by the reporter of the metrics
+    private volatile int size;
+    private IntPredicate pinned = id -> false;
+    private long generation;
+    private boolean dirty;
+    private boolean writing;
+    private long timerId = -1;
+
+    public ItemCache(Vertx vertx, String name, JsonObject config) {
+        JsonObject conf = config.getJsonObject("item_cache", new JsonObject());
+        this.vertx = vertx;
+        this.name = name;
+        this.enabled = conf.getBoolean("enabled", false);
+        this.maxEntries = conf.getInteger("max_entries", 10_000);
+        this.ttl = conf.getLong("ttl", 60_000L);
+        this.snapshotFile = Paths.get(conf.getString("snapshot_dir", "db/cache"), name + ".snapshot");
+        this.snapshotInterval = conf.getLong("snapshot_interval", 60_000L);
+        this.prefetchSize = conf.getInteger("prefetch_size", 1000);
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            /**
+             * Evicts the least recently used item which isn't pinned, the oldest pinned items are skipped
+             */
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                if (size() <= maxEntries) return false;
+                Iterator<Map.Entry<Integer, Entry>> lru = entrySet().iterator();
+                for (int i = 0; i < MAX_PINNED_SKIPS && lru.hasNext(); i++) {
+                    Map.Entry<Integer, Entry> entry = lru.next();
+                    if (!pinned.test(entry.getKey())) {
+                        lru.remove();
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+        this.hits = Metrics.counter("item_cache." + name + ".hits");
+        this.misses = Metrics.counter("item_cache." + name + ".misses");
+        this.loaded = Metrics.counter("item_cache." + name + ".loaded");
+        this.dropped = Metrics.counter("item_cache." + name + ".dropped");
+        this.prefetched = Metrics.counter("item_cache." + name + ".prefetched");
+        Set<ItemCache> named = caches.computeIfAbsent(name, n -> new CopyOnWriteArraySet<>());
+        named.add(this);
+        Metrics.gauge("item_cache." + name + ".entries", () -> totalSize(named));
+    }
+
+    /**
+     * Loads the snapshot or prefetches the records, then starts to write the snapshot on the context of the caller.
+     * The future never fails: the cache which isn't warmed up only costs the first reads.
+     *
+     * @param versions the current versions of the records by id, a deleted record isn't in the result
+     * @param prefetch the given number of records
+     */
+    public Future<Void> warmUp(BiConsumer<List<Integer>, Handler<AsyncResult<Map<Integer, Integer>>>> versions,
+                               BiConsumer<Integer, Handler<AsyncResult<List<Whisky>>>> prefetch) {
+        Future<Void> future = Future.future();
+        if (!enabled) {
+            future.complete();
+            return future;
+        }
+        long started = System.currentTimeMillis();
+        vertx.<List<Entry>>executeBlocking(f -> {
+            try {
+                f.complete(read(snapshotFile));
+            } catch (IOException | RuntimeException e) {
+                f.fail(e);
+            }
+        }, false, readResult -> {
+            if (readResult.failed()) logger.warn("snapshot of the item cache isn't read: {}", snapshotFile, readResult.cause());
+            List<Entry> snapshot = readResult.succeeded() ? readResult.result() : null;
+            Future<Void> warmed = snapshot == null || snapshot.isEmpty()
+                    ? prefetch(prefetch)
+                    : load(snapshot.subList(0, Math.min(snapshot.size(), maxEntries)), versions);
+            warmed.setHandler(warmResult -> {
+                if (warmResult.failed()) logger.warn("item cache isn't warmed up", warmResult.cause());
+                else logger.info("item cache is warmed up: {} items in {} ms", entries.size(), System.currentTimeMillis() - started);
+                timerId = vertx.setPeriodic(snapshotInterval, id -> snapshot(snapshotResult -> {
+                }));
+                future.complete();
+            });
+        });
+        return future;
+    }
+
+    /**
+     * Writes the last snapshot
+     */
+    public void close(Handler<AsyncResult<Void>> closed) {
+        vertx.cancelTimer(timerId);
+        Set<ItemCache> named = caches.get(name);
+        if (named != null) named.remove(this);
+        if (enabled) snapshot(closed);
+        else closed.handle(Future.succeededFuture());
+    }
+
+    /**
+     * @return the item or null if it isn't cached or has expired
+     */
+    public Whisky get(int id) {
+        if (!enabled) return null;
+        Entry entry = entries.get(id);
+        if (entry == null || entry.expiresAt <= System.currentTimeMillis()) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        entry.hits++;
+        dirty = true;
+        return entry.whisky;
+    }
+
+    /**
+     * Keeps the items of the predicate (e.g. hot keys) when the least recently used item is evicted
+     */
+    public void pin(IntPredicate pinned) {
+        this.pinned = pinned;
+    }
+
+    /**
+     * @return the generation of the writes, it's taken before the read of an item
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores the item read from the database unless the node has written since the generation
+     */
+    public void put(long generation, Whisky whisky) {
+        if (!enabled || generation != this.generation) return;
+        Entry entry = entries.get(whisky.getId());
+        entries.put(whisky.getId(), new Entry(whisky, entry == null ? 1 : entry.hits + 1, System.currentTimeMillis() + ttl));
+        size = entries.size();
+        dirty = true;
+    }
+
+    public void evict(int id) {
+        generation++;
+        if (entries.remove(id) == null) return;
+        size = entries.size();
+        dirty = true;
+    }
+
+    public void clear() {
+        generation++;
+        entries.clear();
+        size = 0;
+        dirty = true;
+    }
+
+    /**
+     * The snapshot items are checked in chunks; the checked items are put from the coldest to the hottest,
+     * so the hottest are the last to be evicted
+     */
+    private Future<Void> load(List<Entry> snapshot, BiConsumer<List<Integer>, Handler<AsyncResult<Map<Integer, Integer>>>> versions) {
+        List<Entry> valid = new ArrayList<>(snapshot.size());
+        Future<Void> chain = Future.succeededFuture();
+        for (int from = 0; from < snapshot.size(); from += IDS_PER_QUERY) {
+            List<Entry> chunk = snapshot.subList(from, Math.min(snapshot.size(), from + IDS_PER_QUERY));
+            chain = chain.compose(v -> {
+                Future<Map<Integer, Integer>> current = Future.future();
+                List<Integer> ids = new ArrayList<>(chunk.size());
+                for (Entry entry : chunk) ids.add(entry.whisky.getId());
+                versions.accept(ids, current);
+                return current.map(versionsById -> {
+                    for (Entry entry : chunk) {
+                        Integer version = versionsById.get(entry.whisky.getId());
+                        if (version != null && version == entry.whisky.getVersion()) valid.add(entry);
+                        else dropped.inc();
+                    }
+                    return null;
+                });
+            });
+        }
+        return chain.map(v -> {
+            long expiresAt = System.currentTimeMillis() + ttl;
+            for (int i = valid.size() - 1; i >= 0; i--) {
+                Entry entry = valid.get(i);
+                entries.put(entry.whisky.getId(), new Entry(entry.whisky, entry.hits, expiresAt));
+            }
+            size = entries.size();
+            loaded.inc(valid.size());
+            return null;
+        });
+    }
+
+    private Future<Void> prefetch(BiConsumer<Integer, Handler<AsyncResult<List<Whisky>>>> prefetch) {
+        Future<List<Whisky>> future = Future.future();
+        if (prefetchSize <= 0) future.complete(new ArrayList<>());
+        else prefetch.accept(Math.min(prefetchSize, maxEntries), future);
+        return future.map(whiskies -> {
+            long expiresAt = System.currentTimeMillis() + ttl;
+            for (Whisky whisky : whiskies) entries.put(whisky.getId(), new Entry(whisky, 0, expiresAt));
+            size = entries.size();
+            prefetched.inc(whiskies.size());
+            dirty = true;
+            return null;
+        });
+    }
+
+    private static long totalSize(Set<ItemCache> named) {
+        long total = 0;
+        for (ItemCache cache : named) total += cache.size;
+        return total;
+    }
+
+    /**
+     * Copies the entries on the context and writes them on a worker; skipped if nothing has changed
+     */
+    private void snapshot(Handler<AsyncResult<Void>> done) {
+        if (!dirty || writing) {
+            done.handle(Future.succeededFuture());
+            return;
+        }
+        List<Entry> copy = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) copy.add(new Entry(entry.whisky, entry.hits, entry.expiresAt));
+        dirty = false;
+        writing = true;
+        vertx.<Void>executeBlocking(f -> {
+            try {
+                copy.sort(Comparator.comparingInt((Entry e) -> e.hits).reversed());
+                write(snapshotFile, copy);
+                f.complete();
+            } catch (IOException | RuntimeException e) {
+                f.fail(e);
+            }
+        }, false, writeResult -> {
+            writing = false;
+            if (writeResult.failed()) {
+                dirty = true;
+                logger.warn("snapshot of the item cache isn't written: {}", snapshotFile, writeResult.cause());
+            }
+            done.handle(Future.succeededFuture());
+        });
+    }
+
+    /**
+     * Format: magic, count, records {id, version, hits, name, origin}, CRC32 of the preceding bytes;
+     * strings are UTF-8 with the length ahead, -1 is null
+     */
+    static void write(Path file, List<Entry> snapshot) throws IOException {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(snapshot.size());
+            for (Entry entry : snapshot) {
+                byte[] name = bytes(entry.whisky.getName());
+                byte[] origin = bytes(entry.whisky.getOrigin());
+                int size = 20 + (name == null ? 0 : name.length) + (origin == null ? 0 : origin.length);
+                if (buffer.remaining() < size) flush(buffer, channel, crc);
+                if (buffer.remaining() < size) throw new IOException("item is too large for the snapshot: " + entry.whisky.getId());
+                buffer.putInt(entry.whisky.getId()).putInt(entry.whisky.getVersion()).putInt(entry.hits);
+                putBytes(buffer, name);
+                putBytes(buffer, origin);
+            }
+            flush(buffer, channel, crc);
+            buffer.putLong(crc.getValue());
+            ((Buffer) buffer).flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the records of the snapshot read through a memory-mapped buffer, null if there is no snapshot
+     */
+    static List<Entry> read(Path file) throws IOException {
+        if (!Files.exists(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            long size = channel.size();
+            if (size < 16 || size > Integer.MAX_VALUE) throw new IOException("snapshot has the wrong size: " + size);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer data = buffer.duplicate();
+            ((Buffer) data).limit((int) size - 8);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if (crc.getValue() != buffer.getLong((int) size - 8)) throw new IOException("snapshot is corrupted");
+            if (buffer.getInt() != MAGIC) throw new IOException("snapshot has an unknown format");
+            int count = buffer.getInt();
+            List<Entry> snapshot = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Whisky whisky = new Whisky(buffer.getInt(), null, null);
+                whisky.setVersion(buffer.getInt());
+                int entryHits = buffer.getInt();
+                whisky.setName(getString(buffer));
+                whisky.setOrigin(getString(buffer));
+                snapshot.add(new Entry(whisky, entryHits, 0));
+            }
+            return snapshot;
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel, CRC32 crc) throws IOException {
+        ((Buffer) buffer).flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) channel.write(buffer);
+        ((Buffer) buffer).clear();
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) buffer.putInt(-1);
+        else buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static class Entry {
+        private final Whisky whisky;
+        private final long expiresAt;
+        private int hits;
+
+        Entry(Whisky whisky, int hits, long expiresAt) {
+            this.whisky = whisky;
+            this.hits = hits;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.shishmakov.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+
+/**
+ * Responses in the table {@code idempotency_key} of the first shard, expired rows are deleted by {@link #purge}
+ */
+public class JdbcIdempotencyStore implements IdempotencyStore {
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS idempotency_key "
+            + "(idem_key varchar(600) PRIMARY KEY, response LONGVARCHAR, expires_at BIGINT)";
+    private static final String SELECT_ONE = "SELECT response FROM idempotency_key WHERE idem_key = ? AND expires_at > ?";
+    private static final String MERGE_ONE = "MERGE INTO idempotency_key USING (VALUES(CAST(? AS VARCHAR(600)), CAST(? AS LONGVARCHAR), CAST(? AS BIGINT)))"
+            + " AS v(idem_key, response, expires_at) ON idempotency_key.idem_key = v.idem_key"
+            + " WHEN MATCHED THEN UPDATE SET response = v.response, expires_at = v.expires_at"
+            + " WHEN NOT MATCHED THEN INSERT (idem_key, response, expires_at) VALUES (v.idem_key, v.response, v.expires_at)";
+    private static final String DELETE_EXPIRED = "DELETE FROM idempotency_key WHERE expires_at <= ?";
+
+    private final JDBCClient client;
+
+    public JdbcIdempotencyStore(JDBCClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void init(Handler<AsyncResult<Void>> next) {
+        client.getConnection(conResult -> {
+            if (conResult.failed()) {
+                next.handle(Future.failedFuture(conResult.cause()));
+                return;
+            }
+            conResult.result().execute(CREATE_TABLE, createResult -> {
+                conResult.result().close();
+                next.handle(createResult);
+            });
+        });
+    }
+
+    @Override
+    public void get(String key, Handler<AsyncResult<JsonObject>> next) {
+        client.queryWithParams(SELECT_ONE, new JsonArray().add(key).add(System.currentTimeMillis()),
+                selectResult -> next.handle(selectResult.map(rows -> rows.getNumRows() == 0
+                        ? null
+                        : new JsonObject(rows.getResults().get(0).getString(0)))));
+    }
+
+    @Override
+    public void put(String key, JsonObject response, long expiresAt, Handler<AsyncResult<Void>> next) {
+        client.updateWithParams(MERGE_ONE, new JsonArray().add(key).add(response.encode()).add(expiresAt),
+                mergeResult -> next.handle(mergeResult.mapEmpty()));
+    }
+
+    @Override
+    public void purge(long now, Handler<AsyncResult<Void>> next) {
+        client.updateWithParams(DELETE_EXPIRED, new JsonArray().add(now), deleteResult -> next.handle(deleteResult.mapEmpty()));
+    }
+}
@@ -0,0 +1,56 @@
+package ru.shishmakov.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.IndexOptions;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.UpdateOptions;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Responses in the collection {@code idempotency_keys}, expired documents are deleted by the TTL index of Mongo
+ */
+public class MongoIdempotencyStore implements IdempotencyStore {
+    private static final String COLLECTION = "idempotency_keys";
+
+    private final MongoClient client;
+
+    public MongoIdempotencyStore(MongoClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void init(Handler<AsyncResult<Void>> next) {
+        client.createIndexWithOptions(COLLECTION, new JsonObject().put("expires_at", 1),
+                new IndexOptions().expireAfter(0L, TimeUnit.SECONDS), next);
+    }
+
+    @Override
+    public void get(String key, Handler<AsyncResult<JsonObject>> next) {
+        // the TTL monitor of Mongo runs once a minute, an expired document may be still there
+        JsonObject query = new JsonObject()
+                .put("_id", key)
+                .put("expires_at", new JsonObject().put("$gt", new JsonObject().put("$date", Instant.now().toString())));
+        client.findOne(COLLECTION, query, new JsonObject().put("response", 1),
+                findResult -> next.handle(findResult.map(document -> document == null ? null : document.getJsonObject("response"))));
+    }
+
+    @Override
+    public void put(String key, JsonObject response, long expiresAt, Handler<AsyncResult<Void>> next) {
+        JsonObject document = new JsonObject()
+                .put("_id", key)
+                .put("response", response)
+                .put("expires_at", new JsonObject().put("$date", Instant.ofEpochMilli(expiresAt).toString()));
+        client.replaceDocumentsWithOptions(COLLECTION, new JsonObject().put("_id", key), document,
+                new UpdateOptions().setUpsert(true), replaceResult -> next.handle(replaceResult.mapEmpty()));
+    }
+
+    @Override
+    public void purge(long now, Handler<AsyncResult<Void>> next) {
+        next.handle(Future.succeededFuture());
+    }
+}
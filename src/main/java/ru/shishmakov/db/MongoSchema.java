@@ -0,0 +1,234 @@
+package ru.shishmakov.db;
+
+import com.codahale.metrics.Counter;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.metrics.Metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Canonical schema of a whisky document: {@code {"_id": 1, "NAME": "...", "ORIGIN": "...", "VERSION": 3}}.
+ * <p>
+ * Writes take only the fields of the schema from the request, a missing field is unset instead of stored as null.
+ * Documents written before the schema may hold the fields of the request body ({@code name}, {@code origin}
+ * and any other field a client has sent); the migration rewrites them online in the background:
+ * the collection is scanned in batches of {@code batch_size} by {@code _id} with a pause of {@code batch_pause} ms,
+ * the extra fields of a document are unset unless the document has been updated since it was read.
+ * The migration starts over on every start of the verticle until no document is skipped;
+ * a clean collection is recorded in {@code whisky_schema} with the report of the sizes of the collection
+ * (the bytes of the documents a scan transfers and the bytes on disk) before and after.
+ * <p>
+ * Config: {@code "mongo_schema": {"migrate": true, "batch_size": 500, "batch_pause": 100}}
+ */
+public class MongoSchema {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final Set<String> FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("_id", "NAME", "ORIGIN", "VERSION")));
+    private static final String SCHEMA_COLLECTION = "whisky_schema";
+    private static final int SCHEMA_VERSION = 1;
+
+    private final Vertx vertx;
+    private final MongoClient client;
+    private final String collection;
+    private final boolean migrate;
+    private final int batchSize;
+    private final long batchPause;
+    private final Counter migrated;
+    private final Counter removedFields;
+    private boolean stopped;
+    private long timerId = -1;
+
+    public MongoSchema(Vertx vertx, MongoClient client, String collection, JsonObject config) {
+        JsonObject conf = config.getJsonObject("mongo_schema", new JsonObject());
+        this.vertx = vertx;
+        this.client = client;
+        this.collection = collection;
+        this.migrate = conf.getBoolean("migrate", true);
+        this.batchSize = conf.getInteger("batch_size", 500);
+        this.batchPause = conf.getLong("batch_pause", 100L);
+        this.migrated = Metrics.counter("mongo_schema." + collection + ".migrated");
+        this.removedFields = Metrics.counter("mongo_schema." + collection + ".removed_fields");
+    }
+
+    /**
+     * @param src the body of a request: {@code {"name": "...", "origin": "..."}}
+     * @return the update of the canonical fields; the fields of the body left by older writes are unset
+     */
+    public static JsonObject update(JsonObject src) {
+        JsonObject set = new JsonObject();
+        JsonObject unset = new JsonObject().put("name", "").put("origin", "");
+        canonical(set, unset, "NAME", src.getValue("name"));
+        canonical(set, unset, "ORIGIN", src.getValue("origin"));
+        JsonObject update = new JsonObject().put("$unset", unset);
+        if (!set.isEmpty()) update.put("$set", set);
+        return update;
+    }
+
+    /**
+     * Migrates the collection in the background unless it's already clean
+     */
+    public void start() {
+        if (!migrate) return;
+        client.findOne(SCHEMA_COLLECTION, new JsonObject().put("_id", collection), null, findResult -> {
+            if (findResult.failed()) logger.warn("schema of {} isn't read, documents aren't migrated", collection, findResult.cause());
+            else if (findResult.result() == null || findResult.result().getInteger("version", 0) < SCHEMA_VERSION) {
+                migrate().setHandler(migrateResult -> {
+                    if (migrateResult.failed()) logger.warn("migration of {} has failed, it's resumed on next start", collection, migrateResult.cause());
+                });
+            }
+        });
+    }
+
+    public void stop() {
+        stopped = true;
+        vertx.cancelTimer(timerId);
+    }
+
+    /**
+     * Scans the whole collection and records the schema version unless a document has been skipped
+     *
+     * @return the report: {@code {"migrated": 42, "removed_fields": 84, "skipped": 0, "before": {"size": ..., "storage_size": ...,
+     * "avg_obj_size": ...}, "after": {...}}}
+     */
+    public Future<JsonObject> migrate() {
+        JsonObject report = new JsonObject().put("migrated", 0L).put("removed_fields", 0L).put("skipped", 0L);
+        long started = System.currentTimeMillis();
+        return stats()
+                .compose(before -> {
+                    report.put("before", before);
+                    Future<Void> scanned = Future.future();
+                    migrateBatch(Integer.MIN_VALUE, report, scanned);
+                    return scanned;
+                })
+                .compose(v -> stats())
+                .compose(after -> {
+                    report.put("after", after);
+                    logger.info("{} is migrated to schema {} in {} ms: {}", collection, SCHEMA_VERSION,
+                            System.currentTimeMillis() - started, report.encode());
+                    if (report.getLong("skipped") > 0) return Future.succeededFuture(report);
+                    Future<String> recorded = Future.future();
+                    client.save(SCHEMA_COLLECTION, new JsonObject()
+                            .put("_id", collection)
+                            .put("version", SCHEMA_VERSION)
+                            .put("report", report), recorded.completer());
+                    return recorded.map(report);
+                });
+    }
+
+    /**
+     * Rewrites the batch after the id, the next batch is read after the pause
+     */
+    private void migrateBatch(int afterId, JsonObject report, Future<Void> scanned) {
+        if (stopped) {
+            scanned.fail("migration of " + collection + " is stopped");
+            return;
+        }
+        client.findWithOptions(collection,
+                new JsonObject().put("_id", new JsonObject().put("$gt", afterId)),
+                new FindOptions().setSort(new JsonObject().put("_id", 1)).setLimit(batchSize),
+                findResult -> {
+                    if (findResult.failed()) {
+                        scanned.fail(findResult.cause());
+                        return;
+                    }
+                    List<JsonObject> documents = findResult.result();
+                    if (documents.isEmpty()) {
+                        scanned.complete();
+                        return;
+                    }
+                    int lastId = documents.get(documents.size() - 1).getInteger("_id");
+                    List<BulkOperation> operations = new ArrayList<>();
+                    long fields = 0;
+                    for (JsonObject document : documents) {
+                        BulkOperation operation = migration(document);
+                        if (operation == null) continue;
+                        operations.add(operation);
+                        fields += operation.getDocument().getJsonObject("$unset").size();
+                    }
+                    long removed = fields;
+                    Future<Void> written = Future.future();
+                    if (operations.isEmpty()) written.complete();
+                    else client.bulkWrite(collection, operations, bulkResult -> {
+                        if (bulkResult.failed()) written.fail(bulkResult.cause());
+                        else {
+                            long modified = bulkResult.result().getModifiedCount();
+                            migrated.inc(modified);
+                            removedFields.inc(removed);
+                            report.put("migrated", report.getLong("migrated") + modified);
+                            report.put("removed_fields", report.getLong("removed_fields") + removed);
+                            // updated or deleted since the read, an updated one is migrated on next start
+                            report.put("skipped", report.getLong("skipped") + operations.size() - bulkResult.result().getMatchedCount());
+                            written.complete();
+                        }
+                    });
+                    written.setHandler(writeResult -> {
+                        if (writeResult.failed()) scanned.fail(writeResult.cause());
+                        else if (documents.size() < batchSize) scanned.complete();
+                        else timerId = vertx.setTimer(Math.max(batchPause, 1), id -> migrateBatch(lastId, report, scanned));
+                    });
+                });
+    }
+
+    /**
+     * @return the update of the document or null if it's canonical; the filter skips the document updated since the read
+     */
+    private static BulkOperation migration(JsonObject document) {
+        JsonObject set = new JsonObject();
+        JsonObject unset = new JsonObject();
+        for (String field : document.fieldNames()) {
+            if (!FIELDS.contains(field)) unset.put(field, "");
+        }
+        if (unset.isEmpty()) return null;
+        // a document of the body fields only keeps its values in the canonical fields
+        if (!document.containsKey("NAME") && document.getValue("name") != null) set.put("NAME", document.getValue("name"));
+        if (!document.containsKey("ORIGIN") && document.getValue("origin") != null) set.put("ORIGIN", document.getValue("origin"));
+        JsonObject filter = new JsonObject().put("_id", document.getValue("_id"))
+                .put("VERSION", document.containsKey("VERSION")
+                        ? document.getValue("VERSION")
+                        : new JsonObject().put("$exists", false));
+        JsonObject update = new JsonObject().put("$unset", unset);
+        if (!set.isEmpty()) update.put("$set", set);
+        return BulkOperation.createUpdate(filter, update, false, false);
+    }
+
+    /**
+     * @return the size of the documents, the size on disk and the average document size, bytes
+     */
+    private Future<JsonObject> stats() {
+        Future<JsonObject> future = Future.future();
+        client.runCommand("collStats", new JsonObject().put("collStats", collection), statsResult -> {
+            if (statsResult.failed()) future.fail(statsResult.cause());
+            else {
+                JsonObject stats = statsResult.result();
+                future.complete(new JsonObject()
+                        .put("count", number(stats, "count"))
+                        .put("size", number(stats, "size"))
+                        .put("storage_size", number(stats, "storageSize"))
+                        .put("avg_obj_size", number(stats, "avgObjSize")));
+            }
+        });
+        return future;
+    }
+
+    private static void canonical(JsonObject set, JsonObject unset, String field, Object value) {
+        if (value == null) unset.put(field, "");
+        else set.put(field, value);
+    }
+
+    private static long number(JsonObject stats, String field) {
+        Object value = stats.getValue(field);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
@@ -0,0 +1,460 @@
+package ru.shishmakov.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.SQLOptions;
+import io.vertx.ext.sql.SQLRowStream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * HSQLDB databases which hold the rows of one table spread by the hash of id, one JDBCClient pool per shard.
+ * <p>
+ * Ids are unique across the shards: they are taken in blocks from the sequence of the first shard (hi/lo)
+ * instead of the IDENTITY of each shard. A single shard keeps the IDENTITY and doesn't use the sequence.
+ * The current block belongs to the data source and is shared by the verticle instances, an allocation
+ * and a move of the sequence past the ids written by an import take their turns one at a time.
+ * <p>
+ * Config: {@code "shards": 4, "id_block_size": 100}; shard {@code i} uses {@code url} with the database name
+ * suffixed by {@code _i}, e.g. {@code jdbc:hsqldb:file:db/whisky_store_2}
+ * <p>
+ * Every shard may have a read-only replica with its own pool, the replicas are sharded the same way:
+ * {@code "replica": {"enabled": true, "url": "jdbc:hsqldb:file:db/whisky_store_replica", "max_pool_size": 10}}
+ */
+public class Shards {
+    private static final String CREATE_SEQUENCE = "CREATE SEQUENCE IF NOT EXISTS whisky_id_seq AS INTEGER START WITH %d INCREMENT BY %d";
+    private static final String SELECT_SEQUENCE = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = 'WHISKY_ID_SEQ'";
+    private static final String NEXT_BLOCK = "VALUES (NEXT VALUE FOR whisky_id_seq)";
+    private static final String RESTART_SEQUENCE = "ALTER SEQUENCE whisky_id_seq RESTART WITH %d";
+    private static final String SELECT_MAX_ID = "SELECT MAX(id) FROM whisky";
+    // blocks of the data sources in use
+    private static final Map<String, IdBlock> blocks = new HashMap<>();
+
+    private final List<JDBCClient> clients;
+    private final int idBlockSize;
+    private final Shards replicas;
+    private final String dsName;
+    private final IdBlock block;
+
+    public Shards(List<JDBCClient> clients, int idBlockSize) {
+        this(clients, idBlockSize, null, null);
+    }
+
+    private Shards(List<JDBCClient> clients, int idBlockSize, String dsName, List<JDBCClient> replicaClients) {
+        this.clients = Collections.unmodifiableList(new ArrayList<>(clients));
+        this.idBlockSize = idBlockSize;
+        this.replicas = replicaClients == null ? this : new Shards(replicaClients, idBlockSize);
+        this.dsName = dsName;
+        this.block = dsName == null ? new IdBlock() : acquire(dsName);
+    }
+
+    /**
+     * @param jdbcConf config of JDBCClient, {@code url} is the url of the database without sharding
+     * @param dsName   name of the shared data source, suffixed by the shard number if there are several shards
+     */
+    public static Shards create(Vertx vertx, JsonObject jdbcConf, String dsName) {
+        int count = jdbcConf.getInteger("shards", 1);
+        int idBlockSize = jdbcConf.getInteger("id_block_size", 100);
+        List<JDBCClient> clients = createClients(vertx, jdbcConf, dsName, count);
+        JsonObject replicaConf = jdbcConf.getJsonObject("replica", new JsonObject());
+        if (!replicaConf.getBoolean("enabled", false)) return new Shards(clients, idBlockSize, dsName, null);
+
+        JsonObject replicaJdbcConf = jdbcConf.copy().mergeIn(replicaConf);
+        return new Shards(clients, idBlockSize, dsName, createClients(vertx, replicaJdbcConf, dsName + "-replica", count));
+    }
+
+    private static List<JDBCClient> createClients(Vertx vertx, JsonObject jdbcConf, String dsName, int count) {
+        List<JDBCClient> clients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (count == 1) clients.add(JDBCClient.createShared(vertx, jdbcConf, dsName));
+            else clients.add(JDBCClient.createShared(vertx,
+                    jdbcConf.copy().put("url", shardUrl(jdbcConf.getString("url"), i)), dsName + "-" + i));
+        }
+        return clients;
+    }
+
+    /**
+     * @return url of the shard: the database name gets the suffix, url properties after ';' are kept
+     */
+    public static String shardUrl(String url, int index) {
+        int properties = url.indexOf(';');
+        return properties < 0
+                ? url + '_' + index
+                : url.substring(0, properties) + '_' + index + url.substring(properties);
+    }
+
+    /**
+     * @return number of the shard which holds the id
+     */
+    public static int index(int id, int count) {
+        // spread sequential ids evenly whatever the id block size is
+        int hash = id * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), count);
+    }
+
+    public int count() {
+        return clients.size();
+    }
+
+    public boolean isSingle() {
+        return clients.size() == 1;
+    }
+
+    public JDBCClient get(int index) {
+        return clients.get(index);
+    }
+
+    /**
+     * @return the shard which holds the id
+     */
+    public JDBCClient of(int id) {
+        return clients.get(index(id, clients.size()));
+    }
+
+    public List<JDBCClient> all() {
+        return clients;
+    }
+
+    /**
+     * @return read-only replicas of the shards, or these shards if there are no replicas
+     */
+    public Shards replicas() {
+        return replicas;
+    }
+
+    public boolean hasReplicas() {
+        return replicas != this;
+    }
+
+    /**
+     * Runs the query on every shard, the results are in the order of shards
+     */
+    public <T> void scatter(Function<JDBCClient, Future<T>> query, Handler<AsyncResult<List<T>>> next) {
+        List<Future<T>> results = clients.stream().map(query).collect(toList());
+        all(results).setHandler(gatherResult -> {
+            if (gatherResult.failed()) next.handle(Future.failedFuture(gatherResult.cause()));
+            else next.handle(Future.succeededFuture(gatherResult.result().list()));
+        });
+    }
+
+    /**
+     * Creates the id sequence once; it starts after the greatest id of all shards.
+     * Instances which start together may all find no sequence, the first one creates it and the others keep it
+     */
+    public void initIdSequence(Handler<AsyncResult<Void>> next) {
+        if (isSingle()) {
+            next.handle(Future.succeededFuture());
+            return;
+        }
+        query(clients.get(0), SELECT_SEQUENCE).compose(rows -> {
+            if (rows.get(0).getInteger(0) > 0) return Future.<Void>succeededFuture();
+            Future<List<List<JsonArray>>> maxIds = Future.future();
+            scatter(client -> query(client, SELECT_MAX_ID), maxIds);
+            return maxIds.compose(shardRows -> {
+                int maxId = shardRows.stream()
+                        .map(rowsOfShard -> rowsOfShard.get(0).getInteger(0))
+                        .filter(Objects::nonNull)
+                        .reduce(-1, Math::max);
+                return execute(clients.get(0), String.format(CREATE_SEQUENCE, maxId + 1, idBlockSize));
+            });
+        }).setHandler(next);
+    }
+
+    /**
+     * Allocates unique ids; a new block is taken from the sequence when the current block is over
+     */
+    public void nextIds(int count, Handler<AsyncResult<List<Integer>>> next) {
+        block.inTurn(turnOver -> {
+            List<Integer> allocated = new ArrayList<>(count);
+            Future<Void> done = Future.future();
+            done.setHandler(allocateResult -> {
+                turnOver.run();
+                next.handle(allocateResult.map(allocated));
+            });
+            allocate(allocated, count, done);
+        });
+    }
+
+    /**
+     * Moves the allocation past the ids written with the rows (e.g. imported with their ids): the current block
+     * skips them, the sequence restarts after them unless its next block is already past them
+     *
+     * @param maxId the greatest id written
+     */
+    public void reserveIds(int maxId, Handler<AsyncResult<Void>> next) {
+        if (isSingle()) {
+            next.handle(Future.succeededFuture());
+            return;
+        }
+        block.inTurn(turnOver -> {
+            Future<Void> done = Future.future();
+            done.setHandler(reserveResult -> {
+                turnOver.run();
+                next.handle(reserveResult);
+            });
+            // the sequence is past the current block
+            if (maxId < block.blockEnd) {
+                block.nextId = Math.max(block.nextId, maxId + 1);
+                done.complete();
+                return;
+            }
+            block.nextId = block.blockEnd;
+            query(clients.get(0), NEXT_BLOCK).compose(rows -> {
+                int start = rows.get(0).getInteger(0);
+                if (start <= maxId) return execute(clients.get(0), String.format(RESTART_SEQUENCE, maxId + 1));
+                block.nextId = start;
+                block.blockEnd = start + idBlockSize;
+                return Future.<Void>succeededFuture();
+            }).setHandler(done);
+        });
+    }
+
+    public void close() {
+        clients.forEach(JDBCClient::close);
+        if (hasReplicas()) replicas.close();
+        if (dsName != null) release(dsName);
+    }
+
+    /**
+     * Opens cursors of the shards one after another, the rows are ordered within a shard only
+     *
+     * @param next the rows of all shards; closing the stream releases the connection of the current shard
+     */
+    public void queryStream(String sql, SQLOptions options, Handler<AsyncResult<ShardRows>> next) {
+        ShardRows rows = new ShardRows(clients.iterator(), sql, options);
+        rows.openNext(openResult -> next.handle(openResult.map(rows)));
+    }
+
+    private void allocate(List<Integer> allocated, int count, Future<Void> done) {
+        while (allocated.size() < count && block.nextId < block.blockEnd) allocated.add(block.nextId++);
+        if (allocated.size() == count) {
+            done.complete();
+            return;
+        }
+        query(clients.get(0), NEXT_BLOCK).setHandler(blockResult -> {
+            if (blockResult.failed()) {
+                done.fail(blockResult.cause());
+                return;
+            }
+            block.nextId = blockResult.result().get(0).getInteger(0);
+            block.blockEnd = block.nextId + idBlockSize;
+            allocate(allocated, count, done);
+        });
+    }
+
+    private static IdBlock acquire(String dsName) {
+        synchronized (blocks) {
+            IdBlock block = blocks.computeIfAbsent(dsName, n -> new IdBlock());
+            block.users++;
+            return block;
+        }
+    }
+
+    /**
+     * The block is forgotten with the last instance, the database may be gone (e.g. an in-memory one)
+     */
+    private static void release(String dsName) {
+        synchronized (blocks) {
+            IdBlock block = blocks.get(dsName);
+            if (block != null && --block.users == 0) blocks.remove(dsName);
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <T> CompositeFuture all(List<Future<T>> futures) {
+        return CompositeFuture.all((List<Future>) (List) futures);
+    }
+
+    private static Future<Void> execute(JDBCClient client, String sql) {
+        Future<Void> future = Future.future();
+        client.getConnection(conResult -> {
+            if (conResult.failed()) {
+                future.fail(conResult.cause());
+                return;
+            }
+            SQLConnection sqlCon = conResult.result();
+            sqlCon.execute(sql, executeResult -> {
+                sqlCon.close();
+                future.handle(executeResult);
+            });
+        });
+        return future;
+    }
+
+    private static Future<List<JsonArray>> query(JDBCClient client, String sql) {
+        Future<List<JsonArray>> future = Future.future();
+        client.getConnection(conResult -> {
+            if (conResult.failed()) {
+                future.fail(conResult.cause());
+                return;
+            }
+            SQLConnection sqlCon = conResult.result();
+            sqlCon.query(sql, queryResult -> {
+                sqlCon.close();
+                if (queryResult.failed()) future.fail(queryResult.cause());
+                else future.complete(queryResult.result().getResults());
+            });
+        });
+        return future;
+    }
+
+    /**
+     * The current block of ids of a data source; a turn runs on the context of its caller
+     * and the block is changed within turns only
+     */
+    private static final class IdBlock {
+        private final Deque<Runnable> waiting = new ArrayDeque<>();
+        private boolean busy;
+        private int users;
+        private int nextId;
+        private int blockEnd;
+
+        /**
+         * @param turn called when the previous turns are over, it runs the given handler when it's over itself
+         */
+        void inTurn(Handler<Runnable> turn) {
+            Context context = Vertx.currentContext();
+            Runnable start = () -> context.runOnContext(v -> turn.handle(this::next));
+            synchronized (this) {
+                if (busy) {
+                    waiting.add(start);
+                    return;
+                }
+                busy = true;
+            }
+            turn.handle(this::next);
+        }
+
+        private void next() {
+            Runnable start;
+            synchronized (this) {
+                start = waiting.poll();
+                if (start == null) {
+                    busy = false;
+                    return;
+                }
+            }
+            start.run();
+        }
+    }
+
+    /**
+     * Rows of all shards as one stream
+     */
+    public static class ShardRows implements ReadStream<JsonArray> {
+        private final Iterator<JDBCClient> shards;
+        private final String sql;
+        private final SQLOptions options;
+        private SQLConnection connection;
+        private SQLRowStream current;
+        private Handler<JsonArray> handler;
+        private Handler<Throwable> exceptionHandler;
+        private Handler<Void> endHandler;
+        private boolean paused;
+
+        ShardRows(Iterator<JDBCClient> shards, String sql, SQLOptions options) {
+            this.shards = shards;
+            this.sql = sql;
+            this.options = options;
+        }
+
+        @Override
+        public ShardRows exceptionHandler(Handler<Throwable> handler) {
+            this.exceptionHandler = handler;
+            return this;
+        }
+
+        @Override
+        public ShardRows handler(Handler<JsonArray> handler) {
+            this.handler = handler;
+            if (current != null) current.handler(handler);
+            return this;
+        }
+
+        @Override
+        public ShardRows pause() {
+            paused = true;
+            if (current != null) current.pause();
+            return this;
+        }
+
+        @Override
+        public ShardRows resume() {
+            paused = false;
+            if (current != null) current.resume();
+            return this;
+        }
+
+        @Override
+        public ShardRows endHandler(Handler<Void> handler) {
+            this.endHandler = handler;
+            return this;
+        }
+
+        /**
+         * Closes the cursor of the current shard, then releases its connection
+         */
+        public void close() {
+            SQLConnection sqlCon = connection;
+            SQLRowStream stream = current;
+            connection = null;
+            current = null;
+            if (stream != null) stream.close(closeResult -> sqlCon.close());
+            else if (sqlCon != null) sqlCon.close();
+        }
+
+        private void openNext(Handler<AsyncResult<Void>> opened) {
+            close();
+            if (!shards.hasNext()) {
+                opened.handle(Future.succeededFuture());
+                if (endHandler != null) endHandler.handle(null);
+                return;
+            }
+            shards.next().getConnection(conResult -> {
+                if (conResult.failed()) {
+                    opened.handle(Future.failedFuture(conResult.cause()));
+                    return;
+                }
+                connection = conResult.result();
+                connection.setOptions(options);
+                connection.queryStream(sql, streamResult -> {
+                    if (streamResult.failed()) {
+                        close();
+                        opened.handle(Future.failedFuture(streamResult.cause()));
+                        return;
+                    }
+                    current = streamResult.result();
+                    if (paused) current.pause();
+                    current.exceptionHandler(e -> {
+                        if (exceptionHandler != null) exceptionHandler.handle(e);
+                    });
+                    current.endHandler(v -> openNext(nextResult -> {
+                        if (nextResult.failed() && exceptionHandler != null) exceptionHandler.handle(nextResult.cause());
+                    }));
+                    if (handler != null) current.handler(handler);
+                    opened.handle(Future.succeededFuture());
+                });
+            });
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ru.shishmakov.db;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import ru.shishmakov.metrics.ServerTiming.Phase;
+import ru.shishmakov.metrics.ServerTiming.Phases;
+
+import javax.sql.DataSource;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs blocking JDBC calls on virtual threads, a new thread per call with plain synchronous code inside.
+ * <p>
+ * Experimental: the calls aren't queued for the worker pool, but c3p0 and HSQLDB synchronize internally,
+ * so a virtual thread in a query pins its carrier on JDK 21 and concurrency is bounded by the carriers
+ * as well as by the connection pool. The result is handed back to the context of the caller.
+ * <p>
+ * Virtual threads need JDK 21+, the project is built for Java 8 so the executor is looked up at runtime,
+ * see {@link #isSupported()}.
+ */
+public class VirtualThreadJdbc {
+    private static final MethodHandle newVirtualThreadPerTaskExecutor = lookupVirtualThreadExecutor();
+
+    private final Vertx vertx;
+    private final DataSource dataSource;
+    private final ExecutorService executor;
+
+    public VirtualThreadJdbc(Vertx vertx, DataSource dataSource) {
+        if (!isSupported()) {
+            throw new IllegalStateException("virtual threads need JDK 21+, current: " + System.getProperty("java.version"));
+        }
+        this.vertx = vertx;
+        this.dataSource = dataSource;
+        try {
+            this.executor = (ExecutorService) newVirtualThreadPerTaskExecutor.invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("could not create virtual thread executor", e);
+        }
+    }
+
+    /**
+     * @return true if the running JDK has virtual threads
+     */
+    public static boolean isSupported() {
+        return newVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * Runs the call with a pooled connection on a virtual thread
+     *
+     * @param call synchronous JDBC code, the connection is closed after the call
+     * @param next the result on the context of the caller
+     */
+    public <T> void execute(JdbcCall<T> call, Handler<AsyncResult<T>> next) {
+        execute(call, Phases.NONE, next);
+    }
+
+    /**
+     * Runs the call with a pooled connection on a virtual thread, the checkout is the {@code pool} phase
+     * and the call is the {@code db} phase, which includes the mapping of the rows
+     */
+    public <T> void execute(JdbcCall<T> call, Phases phases, Handler<AsyncResult<T>> next) {
+        Context context = vertx.getOrCreateContext();
+        try {
+            executor.execute(() -> {
+                AsyncResult<T> result;
+                long pool = phases.start();
+                try (Connection connection = dataSource.getConnection()) {
+                    phases.end(Phase.POOL, pool);
+                    long db = phases.start();
+                    result = call.apply(connection);
+                    phases.end(Phase.DB, db);
+                } catch (Exception e) {
+                    result = Future.failedFuture(e);
+                }
+                AsyncResult<T> callResult = result;
+                context.runOnContext(v -> next.handle(callResult));
+            });
+        } catch (RejectedExecutionException e) {
+            next.handle(Future.failedFuture(e));
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static MethodHandle lookupVirtualThreadExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Synchronous JDBC code; a failed result without exception is an answer of the database (e.g. "not found whisky")
+     */
+    @FunctionalInterface
+    public interface JdbcCall<T> {
+        AsyncResult<T> apply(Connection connection) throws SQLException;
+    }
+}
@@ -0,0 +1,75 @@
+package ru.shishmakov.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxInternal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how late a periodic timer fires on the event loop of the verticle.
+ * <p>
+ * The lag of every tick goes to the {@code event_loop.lag_ms} histogram; a lag longer than the blocked threshold
+ * is counted in {@code event_loop.blocked} as the loop was blocked for that time.
+ * The queue of the worker pool is reported by the {@code worker_pool.queue_depth} gauge.
+ */
+public class EventLoopMonitor {
+    private final Vertx vertx;
+    private final long interval;
+    private final long blockedThreshold;
+    private final Histogram lagHistogram = Metrics.histogram("event_loop.lag_ms");
+    private final Counter blocked = Metrics.counter("event_loop.blocked");
+    private long timerId = -1;
+    private long windowMaxLag;
+
+    /**
+     * @param interval         period of the timer, ms
+     * @param blockedThreshold lag which is counted as a blocked event loop, ms
+     */
+    public EventLoopMonitor(Vertx vertx, long interval, long blockedThreshold) {
+        this.vertx = vertx;
+        this.interval = interval;
+        this.blockedThreshold = blockedThreshold;
+        Metrics.gauge("worker_pool.queue_depth", () -> workerQueueDepth(vertx));
+    }
+
+    /**
+     * Starts the timer on the context of the caller
+     */
+    public void start() {
+        long start = System.nanoTime();
+        long[] ticks = {0};
+        timerId = vertx.setPeriodic(interval, id -> {
+            long expected = start + TimeUnit.MILLISECONDS.toNanos(++ticks[0] * interval);
+            long lag = Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - expected));
+            lagHistogram.update(lag);
+            if (lag >= blockedThreshold) blocked.inc();
+            windowMaxLag = Math.max(windowMaxLag, lag);
+        });
+    }
+
+    /**
+     * @return the longest lag since the previous call, ms
+     */
+    public long takeMaxLag() {
+        long maxLag = windowMaxLag;
+        windowMaxLag = 0;
+        return maxLag;
+    }
+
+    public void stop() {
+        vertx.cancelTimer(timerId);
+    }
+
+    /**
+     * @return tasks waiting for a worker thread or -1 if the pool doesn't tell
+     */
+    public static int workerQueueDepth(Vertx vertx) {
+        if (!(vertx instanceof VertxInternal)) return -1;
+        ExecutorService workerPool = ((VertxInternal) vertx).getWorkerPool();
+        return workerPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) workerPool).getQueue().size() : -1;
+    }
+}
@@ -0,0 +1,130 @@
+package ru.shishmakov.metrics;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Streaming heavy hitters of a key stream in fixed memory: a count-min sketch of {@code depth} rows
+ * of {@code width} counters and a min-heap of the {@code capacity} keys with the highest estimates.
+ * <p>
+ * The estimate of a key is the minimum of its counters, it never underestimates and overestimates by collisions only.
+ * Sketches of the same size are merged by adding the counters, the candidates of the merge are
+ * the union of the candidates and are ranked by the merged estimates. Not thread-safe.
+ */
+final class HeavyHitters {
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F, 0x165667B1, 0xD3A2646C, 0xFD7046C5, 0xB55A4F09};
+
+    private final int depth;
+    private final int width;
+    private final int capacity;
+    private final int[] counts;
+    private final Map<Object, Candidate> candidates;
+    private final PriorityQueue<Candidate> heap;
+
+    /**
+     * @param depth    rows of the sketch, up to 8
+     * @param width    counters of a row
+     * @param capacity keys kept as the candidates of the top
+     */
+    HeavyHitters(int depth, int width, int capacity) {
+        this.depth = Math.min(Math.max(depth, 1), SEEDS.length);
+        this.width = width;
+        this.capacity = capacity;
+        this.counts = new int[this.depth * width];
+        this.candidates = new HashMap<>(capacity * 2);
+        this.heap = new PriorityQueue<>(capacity, (a, b) -> Integer.compare(a.count, b.count));
+    }
+
+    /**
+     * Counts one occurrence of the key
+     */
+    void add(Object key) {
+        int hash = key.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + index(hash, row);
+            if (counts[index] < Integer.MAX_VALUE) counts[index]++;
+            estimate = Math.min(estimate, counts[index]);
+        }
+        Candidate candidate = candidates.get(key);
+        if (candidate != null) {
+            heap.remove(candidate);
+            candidate.count = estimate;
+            heap.add(candidate);
+        } else if (candidates.size() < capacity) {
+            offer(key, estimate);
+        } else if (estimate > heap.peek().count) {
+            candidates.remove(heap.poll().key);
+            offer(key, estimate);
+        }
+    }
+
+    int estimate(Object key) {
+        int hash = key.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) estimate = Math.min(estimate, counts[row * width + index(hash, row)]);
+        return estimate;
+    }
+
+    /**
+     * Adds the counters and the candidates of a sketch of the same size
+     */
+    void merge(HeavyHitters other) {
+        for (int i = 0; i < counts.length; i++) counts[i] = (int) Math.min((long) counts[i] + other.counts[i], Integer.MAX_VALUE);
+        for (Object key : other.candidates.keySet()) candidates.putIfAbsent(key, new Candidate(key, 0));
+    }
+
+    /**
+     * @return an empty sketch of the same size
+     */
+    HeavyHitters empty() {
+        return new HeavyHitters(depth, width, capacity);
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0);
+        candidates.clear();
+        heap.clear();
+    }
+
+    /**
+     * @return the candidates with the highest estimates, the hottest first
+     */
+    List<Map.Entry<Object, Integer>> top(int limit) {
+        List<Map.Entry<Object, Integer>> top = new ArrayList<>(candidates.size());
+        for (Object key : candidates.keySet()) top.add(new SimpleImmutableEntry<>(key, estimate(key)));
+        top.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        return top.size() > limit ? top.subList(0, limit) : top;
+    }
+
+    private void offer(Object key, int estimate) {
+        Candidate candidate = new Candidate(key, estimate);
+        candidates.put(key, candidate);
+        heap.add(candidate);
+    }
+
+    private int index(int hash, int row) {
+        int h = hash ^ SEEDS[row];
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, width);
+    }
+
+    private static final class Candidate {
+        private final Object key;
+        private int count;
+
+        Candidate(Object key, int count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+}
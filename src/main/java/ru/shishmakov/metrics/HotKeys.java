@@ -0,0 +1,204 @@
+package ru.shishmakov.metrics;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hot keys of the API over a sliding window: the ids read and written most often and the busiest routes,
+ * the handler of the router ahead of the API routes.
+ * <p>
+ * Every stream is counted by {@link HeavyHitters} in {@code buckets} buckets of {@code window / buckets} ms,
+ * the oldest bucket is cleared as the window slides, so the memory doesn't depend on the number of keys.
+ * A verticle instance counts on its own event loop without locks; {@code /admin/hotkeys} takes the window of every
+ * instance on its context and merges them. The counts are estimates which may exceed the true counts by collisions.
+ * <p>
+ * The {@code pin_top} hottest reads of the instance are recomputed as the window slides, see {@link #isHot(int)}
+ * for the item cache to keep them.
+ * <p>
+ * Config: {@code "hot_keys": {"enabled": false, "window": 60000, "buckets": 6, "depth": 4, "width": 1024,
+ * "capacity": 64, "pin_top": 16}}
+ */
+public class HotKeys implements Handler<RoutingContext> {
+    private static final Map<String, List<HotKeys>> instances = new ConcurrentHashMap<>();
+    private static final int READS = 0;
+    private static final int WRITES = 1;
+    private static final int ROUTES = 2;
+
+    private final Vertx vertx;
+    private final String name;
+    private final boolean enabled;
+    private final long window;
+    private final int pinTop;
+    private final HeavyHitters[][] buckets;
+    private Context context;
+    private Set<Integer> hot = Collections.emptySet();
+    private int current;
+    private long timerId = -1;
+
+    public HotKeys(Vertx vertx, String name, JsonObject config) {
+        JsonObject conf = config.getJsonObject("hot_keys", new JsonObject());
+        this.vertx = vertx;
+        this.name = name;
+        this.enabled = conf.getBoolean("enabled", false);
+        this.window = conf.getLong("window", 60_000L);
+        this.pinTop = conf.getInteger("pin_top", 16);
+        int depth = conf.getInteger("depth", 4);
+        int width = conf.getInteger("width", 1024);
+        int capacity = conf.getInteger("capacity", 64);
+        this.buckets = new HeavyHitters[enabled ? Math.max(conf.getInteger("buckets", 6), 1) : 0][];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new HeavyHitters[]{new HeavyHitters(depth, width, capacity),
+                    new HeavyHitters(depth, width, capacity), new HeavyHitters(depth, width, capacity)};
+        }
+    }
+
+    /**
+     * Starts to slide the window on the context of the caller
+     */
+    public void start() {
+        if (!enabled) return;
+        this.context = vertx.getOrCreateContext();
+        timerId = vertx.setPeriodic(Math.max(window / buckets.length, 1), id -> slide());
+        instances.computeIfAbsent(name, n -> new CopyOnWriteArrayList<>()).add(this);
+    }
+
+    public void stop() {
+        vertx.cancelTimer(timerId);
+        List<HotKeys> named = instances.get(name);
+        if (named != null) named.remove(this);
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        if (enabled) context.addBodyEndHandler(v -> record(context));
+        context.next();
+    }
+
+    /**
+     * @return true if the id is one of the hottest reads of the instance in the last window
+     */
+    public boolean isHot(int id) {
+        return hot.contains(id);
+    }
+
+    /**
+     * The hot keys of all instances by the name of the verticle:
+     * {@code {"sql": {"window": 60000, "instances": 2, "reads": [{"id": 1, "count": 42}], "writes": [...],
+     * "routes": [{"route": "GET /api/whiskies/:id", "count": 42}]}}}; {@code ?limit=10} is the length of a top.
+     * <p>
+     * curl -X GET localhost:8080/admin/hotkeys
+     */
+    public static void report(RoutingContext context) {
+        int limit;
+        try {
+            limit = Math.max(Integer.parseInt(context.request().getParam("limit")), 1);
+        } catch (NumberFormatException e) {
+            limit = 10;
+        }
+        int top = limit;
+        Context caller = context.vertx().getOrCreateContext();
+        Map<String, List<Future<HeavyHitters[]>>> windows = new HashMap<>();
+        Map<String, Long> spans = new HashMap<>();
+        List<Future<HeavyHitters[]>> all = new ArrayList<>();
+        instances.forEach((name, named) -> {
+            for (HotKeys hotKeys : named) {
+                Future<HeavyHitters[]> future = Future.future();
+                hotKeys.context.runOnContext(v -> future.complete(hotKeys.window()));
+                windows.computeIfAbsent(name, n -> new ArrayList<>()).add(future);
+                spans.put(name, hotKeys.window);
+                all.add(future);
+            }
+        });
+        all(all).setHandler(allResult -> caller.runOnContext(v -> {
+            JsonObject json = new JsonObject();
+            windows.forEach((name, futures) -> {
+                HeavyHitters[] merged = futures.get(0).result();
+                for (Future<HeavyHitters[]> future : futures.subList(1, futures.size())) {
+                    for (int i = 0; i < merged.length; i++) merged[i].merge(future.result()[i]);
+                }
+                json.put(name, new JsonObject()
+                        .put("window", spans.get(name))
+                        .put("instances", futures.size())
+                        .put("reads", toJson(merged[READS], "id", top))
+                        .put("writes", toJson(merged[WRITES], "id", top))
+                        .put("routes", toJson(merged[ROUTES], "route", top)));
+            });
+            context.response()
+                    .setStatusCode(200)
+                    .putHeader("content-type", "application/json; charset=utf-8")
+                    .end(json.encodePrettily());
+        }));
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <T> CompositeFuture all(List<Future<T>> futures) {
+        return CompositeFuture.all((List<Future>) (List) futures);
+    }
+
+    private void record(RoutingContext context) {
+        HttpMethod method = context.request().method();
+        Route route = context.currentRoute();
+        String path = route == null || route.getPath() == null ? context.normalisedPath() : route.getPath();
+        HeavyHitters[] bucket = buckets[current];
+        bucket[ROUTES].add(method + " " + path);
+        Integer id = parseId(context.pathParam("id"));
+        if (id != null) bucket[method == HttpMethod.GET ? READS : WRITES].add(id);
+    }
+
+    /**
+     * The buckets merged into one window per stream
+     */
+    private HeavyHitters[] window() {
+        HeavyHitters[] merged = {buckets[0][READS].empty(), buckets[0][WRITES].empty(), buckets[0][ROUTES].empty()};
+        for (HeavyHitters[] bucket : buckets) {
+            for (int i = 0; i < merged.length; i++) merged[i].merge(bucket[i]);
+        }
+        return merged;
+    }
+
+    /**
+     * Recomputes the hottest reads and clears the oldest bucket, it becomes the current one
+     */
+    private void slide() {
+        Set<Integer> hottest = new HashSet<>();
+        for (Map.Entry<Object, Integer> entry : window()[READS].top(pinTop)) hottest.add((Integer) entry.getKey());
+        hot = hottest;
+        current = (current + 1) % buckets.length;
+        for (HeavyHitters stream : buckets[current]) stream.clear();
+    }
+
+    private static JsonArray toJson(HeavyHitters stream, String key, int limit) {
+        JsonArray json = new JsonArray();
+        for (Map.Entry<Object, Integer> entry : stream.top(limit)) {
+            json.add(new JsonObject().put(key, entry.getKey()).put("count", entry.getValue()));
+        }
+        return json;
+    }
+
+    private static Integer parseId(String id) {
+        if (id == null) return null;
+        try {
+            return Integer.valueOf(id);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
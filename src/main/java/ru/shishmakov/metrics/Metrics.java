@@ -0,0 +1,99 @@
+package ru.shishmakov.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the application shared by all verticles of the process
+ */
+public final class Metrics {
+    private static final MetricRegistry registry = SharedMetricRegistries.getOrCreate("vertx-tutor-app");
+    private static final double NANOS_IN_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private Metrics() {
+    }
+
+    public static MetricRegistry registry() {
+        return registry;
+    }
+
+    public static Counter counter(String name) {
+        return registry.counter(name);
+    }
+
+    public static Histogram histogram(String name) {
+        return registry.histogram(name);
+    }
+
+    public static Timer timer(String name) {
+        return registry.timer(name);
+    }
+
+    /**
+     * Registers the gauge; a gauge of the previous deployment with the same name is replaced
+     */
+    public static <T> void gauge(String name, Gauge<T> gauge) {
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    /**
+     * curl -X GET localhost:8080/admin/metrics
+     */
+    public static void handle(RoutingContext context) {
+        context.response()
+                .setStatusCode(200)
+                .putHeader("content-type", "application/json; charset=utf-8")
+                .end(toJson().encodePrettily());
+    }
+
+    /**
+     * Snapshot of all metrics; timer durations are in milliseconds
+     */
+    public static JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        for (Map.Entry<String, Metric> entry : registry.getMetrics().entrySet()) {
+            Metric metric = entry.getValue();
+            if (metric instanceof Counter) {
+                json.put(entry.getKey(), ((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                json.put(entry.getKey(), ((Gauge<?>) metric).getValue());
+            } else if (metric instanceof Timer) {
+                json.put(entry.getKey(), toJson(((Timer) metric).getCount(), ((Timer) metric).getSnapshot(), NANOS_IN_MILLI));
+            } else if (metric instanceof Histogram) {
+                json.put(entry.getKey(), toJson(((Histogram) metric).getCount(), ((Histogram) metric).getSnapshot(), 1));
+            } else if (metric instanceof Meter) {
+                Meter meter = (Meter) metric;
+                json.put(entry.getKey(), new JsonObject()
+                        .put("count", meter.getCount())
+                        .put("m1_rate", meter.getOneMinuteRate())
+                        .put("m5_rate", meter.getFiveMinuteRate()));
+            }
+        }
+        return json;
+    }
+
+    private static JsonObject toJson(long count, Snapshot snapshot, double scale) {
+        return new JsonObject()
+                .put("count", count)
+                .put("min", snapshot.getMin() / scale)
+                .put("max", snapshot.getMax() / scale)
+                .put("mean", snapshot.getMean() / scale)
+                .put("p50", snapshot.getMedian() / scale)
+                .put("p95", snapshot.get95thPercentile() / scale)
+                .put("p99", snapshot.get99thPercentile() / scale)
+                .put("p999", snapshot.get999thPercentile() / scale);
+    }
+}
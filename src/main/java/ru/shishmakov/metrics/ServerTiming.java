@@ -0,0 +1,145 @@
+package ru.shishmakov.metrics;
+
+import com.codahale.metrics.Timer;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request latency of the phases of an API request, the handler of the router ahead of the API routes.
+ * <p>
+ * A timed request gets the {@code Server-Timing} header: {@code pool;dur=0.052, db;dur=0.731, map;dur=0.014,
+ * encode;dur=0.098, total;dur=1.120} (ms) with the phases it has gone through, the same phases are recorded by
+ * {@code server_timing.<name>.<phase>} timers. Requests are timed with {@code enabled} or with the request header
+ * {@code X-Server-Timing} if {@code on_header} is on. Untimed requests get {@link Phases#NONE} which doesn't read
+ * the clock, a request without the header doesn't even look up the data of the context unless any verticle times all.
+ * <p>
+ * Config: {@code "server_timing": {"enabled": false, "on_header": true}}
+ */
+public class ServerTiming implements Handler<RoutingContext> {
+    private static final String HEADER = "x-server-timing";
+    private static final String PHASES = "server_timing_phases";
+    private static volatile boolean timeAll;
+
+    private final boolean enabled;
+    private final boolean onHeader;
+    private final Timer[] timers = new Timer[Phase.values().length];
+    private final Timer total;
+
+    public ServerTiming(String name, JsonObject config) {
+        JsonObject conf = config.getJsonObject("server_timing", new JsonObject());
+        this.enabled = conf.getBoolean("enabled", false);
+        this.onHeader = conf.getBoolean("on_header", true);
+        for (Phase phase : Phase.values()) timers[phase.ordinal()] = Metrics.timer("server_timing." + name + "." + phase.label);
+        this.total = Metrics.timer("server_timing." + name + ".total");
+        if (enabled) timeAll = true;
+    }
+
+    /**
+     * @return phases of the request or {@link Phases#NONE} if it isn't timed
+     */
+    public static Phases phases(RoutingContext context) {
+        if (!timeAll && context.request().getHeader(HEADER) == null) return Phases.NONE;
+        Phases phases = context.get(PHASES);
+        return phases == null ? Phases.NONE : phases;
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        if (enabled || onHeader && context.request().getHeader(HEADER) != null) {
+            Phases phases = new Phases();
+            context.put(PHASES, phases);
+            context.addHeadersEndHandler(v -> {
+                long elapsed = System.nanoTime() - phases.started;
+                StringBuilder header = new StringBuilder(96);
+                for (Phase phase : Phase.values()) {
+                    long nanos = phases.nanos[phase.ordinal()];
+                    if (nanos < 0) continue;
+                    timers[phase.ordinal()].update(nanos, TimeUnit.NANOSECONDS);
+                    append(header, phase.label, nanos);
+                }
+                total.update(elapsed, TimeUnit.NANOSECONDS);
+                append(header, "total", elapsed);
+                context.response().putHeader("server-timing", header.toString());
+            });
+        }
+        context.next();
+    }
+
+    private static void append(StringBuilder header, String label, long nanos) {
+        if (header.length() > 0) header.append(", ");
+        header.append(label).append(";dur=").append(String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0));
+    }
+
+    public enum Phase {
+        /**
+         * Checkout of a pooled connection
+         */
+        POOL("pool"),
+        /**
+         * The query from sending to the result
+         */
+        DB("db"),
+        /**
+         * Mapping of the rows or documents to whiskies
+         */
+        MAP("map"),
+        /**
+         * Encoding of the response body
+         */
+        ENCODE("encode");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Sums of the phases of one request; a phase runs on the context of the verticle
+     * or on a virtual thread which hands its result over to the context
+     */
+    public static class Phases {
+        /**
+         * Phases of an untimed request, nothing is recorded
+         */
+        public static final Phases NONE = new Phases() {
+            @Override
+            public long start() {
+                return 0;
+            }
+
+            @Override
+            public void end(Phase phase, long start) {
+            }
+        };
+
+        private final long started = System.nanoTime();
+        private final long[] nanos = new long[Phase.values().length];
+
+        Phases() {
+            Arrays.fill(nanos, -1);
+        }
+
+        /**
+         * @return the start of a phase
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Adds the time since the start to the phase
+         */
+        public void end(Phase phase, long start) {
+            long elapsed = System.nanoTime() - start;
+            int index = phase.ordinal();
+            nanos[index] = nanos[index] < 0 ? elapsed : nanos[index] + elapsed;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ru.shishmakov.web;
+
+import com.codahale.metrics.Counter;
+import io.vertx.core.http.HttpMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lossy ring buffer of access log records drained by a background thread.
+ * <p>
+ * Event loops only claim a preallocated slot and copy the fields, the line is formatted and written
+ * to the {@code access} logger by the "access-log" thread. A record is dropped when the ring is full.
+ */
+public final class AccessLog {
+    private static final Logger accessLogger = LoggerFactory.getLogger("access");
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static volatile AccessLog shared;
+
+    private final Entry[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final Counter dropped = Metrics.counter("access_log.dropped");
+    private volatile long head;
+
+    private AccessLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Entry[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) ring[i] = new Entry();
+        Thread drainer = new Thread(this::drain, "access-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * @param capacity capacity of the ring, rounded up to a power of two; used by the first call only
+     */
+    public static AccessLog shared(int capacity) {
+        if (shared == null) {
+            synchronized (AccessLog.class) {
+                if (shared == null) shared = new AccessLog(capacity);
+            }
+        }
+        return shared;
+    }
+
+    public static boolean isEnabled() {
+        return accessLogger.isInfoEnabled();
+    }
+
+    /**
+     * Lock-free, doesn't allocate
+     *
+     * @return false if the ring is full and the record is dropped
+     */
+    public boolean record(HttpMethod method, String path, String route, int status, long bytes, long latencyNanos) {
+        long claim;
+        do {
+            claim = tail.get();
+            if (claim - head >= ring.length) {
+                dropped.inc();
+                return false;
+            }
+        } while (!tail.compareAndSet(claim, claim + 1));
+        Entry entry = ring[(int) claim & mask];
+        entry.method = method;
+        entry.path = path;
+        entry.route = route;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.latencyNanos = latencyNanos;
+        entry.published = claim + 1;
+        return true;
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        while (!Thread.currentThread().isInterrupted()) {
+            long next = head;
+            Entry entry = ring[(int) next & mask];
+            if (entry.published != next + 1) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            line.setLength(0);
+            line.append("method=").append(entry.method)
+                    .append(" path=").append(entry.path)
+                    .append(" route=").append(entry.route)
+                    .append(" status=").append(entry.status)
+                    .append(" bytes=").append(entry.bytes)
+                    .append(" latency_us=").append(TimeUnit.NANOSECONDS.toMicros(entry.latencyNanos));
+            entry.path = null;
+            entry.route = null;
+            head = next + 1;
+            accessLogger.info(line.toString());
+        }
+    }
+
+    private static final class Entry {
+        private volatile long published;
+        private HttpMethod method;
+        private String path;
+        private String route;
+        private int status;
+        private long bytes;
+        private long latencyNanos;
+    }
+}
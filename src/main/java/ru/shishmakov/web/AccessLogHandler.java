@@ -0,0 +1,44 @@
+package ru.shishmakov.web;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Access log of the router: one key=value line per request with route, status, bytes and latency.
+ * <p>
+ * Records go through the lossy {@link AccessLog} ring buffer; nothing is recorded when
+ * the {@code access} logger is disabled.
+ * <p>
+ * Config: {@code "access_log": {"buffer_size": 8192}}
+ */
+public class AccessLogHandler implements Handler<RoutingContext> {
+    private final AccessLog log;
+
+    private AccessLogHandler(AccessLog log) {
+        this.log = log;
+    }
+
+    public static AccessLogHandler create(JsonObject config) {
+        JsonObject conf = config.getJsonObject("access_log", new JsonObject());
+        return new AccessLogHandler(AccessLog.shared(conf.getInteger("buffer_size", 8192)));
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        if (AccessLog.isEnabled()) {
+            long start = System.nanoTime();
+            context.addBodyEndHandler(v -> {
+                Route route = context.currentRoute();
+                log.record(context.request().method(),
+                        context.request().path(),
+                        route != null ? route.getPath() : null,
+                        context.response().getStatusCode(),
+                        context.response().bytesWritten(),
+                        System.nanoTime() - start);
+            });
+        }
+        context.next();
+    }
+}
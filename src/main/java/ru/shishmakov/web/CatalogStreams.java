@@ -0,0 +1,282 @@
+package ru.shishmakov.web;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.blog.Whisky;
+import ru.shishmakov.blog.WhiskyFormat;
+
+import java.io.File;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Streaming export and import of the catalog.
+ * <p>
+ * Export writes rows of a database cursor into the response or a file of the export directory,
+ * the cursor is paused while the write queue is full. Import parses the request body or a file
+ * line by line and writes whiskies in batches, the source is paused while a batch is written; a CSV record
+ * with quoted line breaks is joined from its lines up to {@code MAX_RECORD_LENGTH} chars.
+ * Neither holds the whole catalog in memory.
+ */
+public final class CatalogStreams {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final Pattern fileName = Pattern.compile("^[\\w.-]+$");
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private CatalogStreams() {
+    }
+
+    /**
+     * curl -X GET localhost:8080/api/whiskies/_export?format=csv[&file=whiskies.csv]
+     *
+     * @param exportDir directory of files given by the "file" parameter
+     * @param rows      database cursor
+     * @param release   releases the cursor when the export is over
+     */
+    public static <T> void export(RoutingContext context, String exportDir, WhiskyFormat format,
+                                  ReadStream<T> rows, Function<T, Whisky> mapper, Handler<Void> release) {
+        String file = context.request().getParam("file");
+        if (isNull(file)) {
+            Future<Long> exported = Future.future();
+            exported.setHandler(exportResult -> {
+                release.handle(null);
+                if (exportResult.succeeded()) context.response().end();
+                else {
+                    // the status is already sent, the client sees a truncated body
+                    logger.error("export has failed", exportResult.cause());
+                    context.response().close();
+                }
+            });
+            context.response()
+                    .setChunked(true)
+                    .putHeader("content-type", format.getContentType())
+                    .closeHandler(v -> {
+                        rows.pause();
+                        exported.tryFail("client has closed the connection");
+                    });
+            pipe(rows, mapper, format, context.response(), pipeResult -> {
+                if (pipeResult.succeeded()) exported.tryComplete(pipeResult.result());
+                else exported.tryFail(pipeResult.cause());
+            });
+            return;
+        }
+        openFile(context, exportDir, file, new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(true), openResult -> {
+            if (openResult.failed()) {
+                release.handle(null);
+                return;
+            }
+            AsyncFile target = openResult.result();
+            pipe(rows, mapper, format, target, pipeResult -> {
+                release.handle(null);
+                target.close(closeResult -> {
+                    if (pipeResult.failed() || closeResult.failed()) context.response()
+                            .setStatusCode(500)
+                            .setStatusMessage(String.valueOf((pipeResult.failed() ? pipeResult : closeResult).cause().getMessage()))
+                            .end();
+                    else Representation.end(context, 200, new JsonObject()
+                            .put("file", new File(exportDir, file).getPath())
+                            .put("exported", pipeResult.result()));
+                });
+            });
+        });
+    }
+
+    /**
+     * curl -H "Content-Type: text/csv" -X POST --data-binary @whiskies.csv localhost:8080/api/whiskies/_import?format=csv
+     * <p>
+     * The request must be paused by the caller if the writer was prepared asynchronously.
+     *
+     * @param exportDir directory of files given by the "file" parameter
+     * @param writer    writes a batch of whiskies; a whisky with id is upserted, others get a new id
+     * @param release   releases the writer when the import is over
+     */
+    public static void importFrom(RoutingContext context, String exportDir, WhiskyFormat format, int batchSize,
+                                  BiConsumer<List<Whisky>, Handler<AsyncResult<Void>>> writer, Handler<Void> release) {
+        Handler<AsyncResult<Long>> done = importResult -> {
+            release.handle(null);
+            if (importResult.failed()) context.response()
+                    .setStatusCode(400)
+                    .setStatusMessage(String.valueOf(importResult.cause().getMessage()))
+                    .end();
+            else Representation.end(context, 200, new JsonObject().put("imported", importResult.result()));
+        };
+        String file = context.request().getParam("file");
+        if (isNull(file)) {
+            parse(context.request(), format, batchSize, writer, done);
+            context.request().resume();
+            return;
+        }
+        context.request().resume();
+        openFile(context, exportDir, file, new OpenOptions().setRead(true), openResult -> {
+            if (openResult.failed()) release.handle(null);
+            else parse(openResult.result(), format, batchSize, writer, importResult -> {
+                openResult.result().close();
+                done.handle(importResult);
+            });
+        });
+    }
+
+    /**
+     * Writes the header and the rows, the rows are paused while the write queue of the target is full
+     */
+    public static <T> void pipe(ReadStream<T> rows, Function<T, Whisky> mapper, WhiskyFormat format,
+                                WriteStream<Buffer> target, Handler<AsyncResult<Long>> done) {
+        long[] count = {0};
+        Buffer header = format.header();
+        if (header != null) target.write(header);
+        rows.exceptionHandler(e -> done.handle(Future.failedFuture(e)));
+        rows.endHandler(v -> done.handle(Future.succeededFuture(count[0])));
+        rows.handler(row -> {
+            target.write(format.encode(mapper.apply(row)));
+            count[0]++;
+            if (target.writeQueueFull()) {
+                rows.pause();
+                target.drainHandler(v -> rows.resume());
+            }
+        });
+        rows.resume();
+    }
+
+    /**
+     * Parses the source line by line and writes whiskies in batches of the given size
+     */
+    public static void parse(ReadStream<Buffer> source, WhiskyFormat format, int batchSize,
+                             BiConsumer<List<Whisky>, Handler<AsyncResult<Void>>> writer, Handler<AsyncResult<Long>> done) {
+        new BatchImport(RecordParser.newDelimited("\n", source), format, batchSize, writer, done).start();
+    }
+
+    private static void openFile(RoutingContext context, String exportDir, String file, OpenOptions options,
+                                 Handler<AsyncResult<AsyncFile>> next) {
+        if (!fileName.matcher(file).matches()) {
+            context.response().setStatusCode(400).setStatusMessage("illegal file name: " + file).end();
+            next.handle(Future.failedFuture("illegal file name: " + file));
+            return;
+        }
+        context.vertx().fileSystem().mkdirs(exportDir, mkdirResult -> context.vertx().fileSystem()
+                .open(new File(exportDir, file).getPath(), options, openResult -> {
+                    if (openResult.failed()) context.response()
+                            .setStatusCode(404)
+                            .setStatusMessage(String.valueOf(openResult.cause().getMessage()))
+                            .end();
+                    next.handle(openResult);
+                }));
+    }
+
+    /**
+     * State of one import, lines keep arriving from the current chunk while a batch is written
+     */
+    private static class BatchImport {
+        private final RecordParser lines;
+        private final WhiskyFormat format;
+        private final int batchSize;
+        private final BiConsumer<List<Whisky>, Handler<AsyncResult<Void>>> writer;
+        private final Handler<AsyncResult<Long>> done;
+
+        private List<Whisky> batch;
+        // lines of a record which continues on the next line
+        private StringBuilder record;
+        private long lineNumber;
+        private long imported;
+        private boolean writing;
+        private boolean ended;
+        private boolean finished;
+
+        BatchImport(RecordParser lines, WhiskyFormat format, int batchSize,
+                    BiConsumer<List<Whisky>, Handler<AsyncResult<Void>>> writer, Handler<AsyncResult<Long>> done) {
+            this.lines = lines;
+            this.format = format;
+            this.batchSize = batchSize;
+            this.writer = writer;
+            this.done = done;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        void start() {
+            lines.exceptionHandler(e -> finish(Future.failedFuture(e)));
+            lines.endHandler(v -> {
+                if (record != null) {
+                    finish(Future.failedFuture("malformed line " + lineNumber + ": unterminated quote"));
+                    return;
+                }
+                ended = true;
+                if (!writing) flush();
+            });
+            lines.handler(this::onLine);
+        }
+
+        private void onLine(Buffer line) {
+            lineNumber++;
+            if (finished) return;
+            String text = line.toString(StandardCharsets.UTF_8);
+            if (record != null) text = record.append('\n').append(text).toString();
+            else if (text.trim().isEmpty()) return;
+            if (!format.isComplete(text)) {
+                if (text.length() > MAX_RECORD_LENGTH) {
+                    finish(Future.failedFuture("malformed line " + lineNumber + ": record is longer than " + MAX_RECORD_LENGTH));
+                } else record = new StringBuilder(text);
+                return;
+            }
+            record = null;
+            // the line break of CRLF files, a line break within a record is a part of it
+            if (text.endsWith("\r")) text = text.substring(0, text.length() - 1);
+            Whisky whisky;
+            try {
+                whisky = format.decode(text);
+            } catch (RuntimeException e) {
+                finish(Future.failedFuture("malformed line " + lineNumber + ": " + e.getMessage()));
+                return;
+            }
+            if (whisky == null) return;
+            batch.add(whisky);
+            if (!writing && batch.size() >= batchSize) flush();
+        }
+
+        private void flush() {
+            if (finished) return;
+            List<Whisky> toWrite = batch;
+            if (toWrite.isEmpty()) {
+                if (ended) finish(Future.succeededFuture(imported));
+                return;
+            }
+            batch = new ArrayList<>(batchSize);
+            writing = true;
+            lines.pause();
+            writer.accept(toWrite, writeResult -> {
+                writing = false;
+                if (writeResult.failed()) {
+                    finish(Future.failedFuture(writeResult.cause()));
+                    return;
+                }
+                imported += toWrite.size();
+                if (ended || batch.size() >= batchSize) flush();
+                else lines.resume();
+            });
+        }
+
+        private void finish(AsyncResult<Long> result) {
+            if (finished) return;
+            finished = true;
+            // drain the rest of the source after a failure
+            lines.resume();
+            done.handle(result);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package ru.shishmakov.web;
+
+import com.codahale.metrics.Counter;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelPromise;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpConnection;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.impl.ConnectionBase;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.metrics.Metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drain phase of the http server before the verticle closes its database client.
+ * <p>
+ * While draining, readiness is down (see {@link Health}). The http server of Vert.x can't stop listening without
+ * closing the connections of the requests in flight, so the node tells the load balancer first: if readiness
+ * has been probed, new connections are still served for {@code drain_delay} ms while the probes see the node
+ * not ready and the load balancer stops routing to it. Then new connections are closed at once.
+ * Requests in flight finish within {@code drain_timeout} and their connections are closed with
+ * {@code Connection: close} once the response is written out, requests still in flight at the deadline are dropped.
+ * Without probes of readiness nobody routes by it, new connections are closed from the start.
+ * Not thread-safe, belongs to the context of the verticle.
+ * <p>
+ * Config: {@code "drain_timeout": 10000, "drain_delay": 5000}
+ */
+public class Drain {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final Vertx vertx;
+    private final long timeout;
+    private final long delay;
+    private final Counter drained;
+    private final Counter dropped;
+    // responses in flight and their connections
+    private final Map<HttpServerResponse, HttpConnection> inFlight = new IdentityHashMap<>();
+    private boolean draining;
+    private boolean accepting = true;
+    private boolean probed;
+    private Handler<Void> drainedHandler;
+    private long timerId = -1;
+    // read by the instances of other contexts (see idleMillis)
+    private volatile int requests;
+    private volatile long lastActive = System.nanoTime();
+
+    public Drain(Vertx vertx, String name, JsonObject config) {
+        this.vertx = vertx;
+        this.timeout = config.getLong("drain_timeout", 10_000L);
+        this.delay = config.getLong("drain_delay", 5_000L);
+        this.drained = Metrics.counter("drain." + name + ".drained");
+        this.dropped = Metrics.counter("drain." + name + ".dropped");
+    }
+
+    /**
+     * Tracks the request in flight, the first handler of the router.
+     * <p>
+     * The close handler of the response belongs to the handlers of the routes (a streamed export sets its own),
+     * the request is done when the body has ended or the connection has been closed.
+     */
+    public void track(RoutingContext context) {
+        HttpServerResponse response = context.response();
+        HttpConnection connection = context.request().connection();
+        if (draining) response.putHeader("connection", "close");
+        inFlight.put(response, connection);
+        requests = inFlight.size();
+        // sendFile of StaticHandler ends the response without the end handler of the response
+        context.addBodyEndHandler(v -> requestEnded(response, connection));
+        // the same handler for every request of the connection
+        connection.closeHandler(v -> connectionClosed(connection));
+        context.next();
+    }
+
+    /**
+     * Closes connections opened after the load balancer has been told the node isn't ready
+     */
+    public void connection(HttpConnection connection) {
+        if (!accepting) connection.close();
+    }
+
+    /**
+     * Readiness has been probed, somebody routes by it
+     */
+    public void probed() {
+        probed = true;
+    }
+
+    /**
+     * @return ms since the last request has ended, 0 while requests are in flight; may be called from any thread
+     */
+    public long idleMillis() {
+        return requests == 0 ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActive) : 0;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Starts draining
+     *
+     * @param done called when new connections aren't accepted and there is no request in flight
+     *             or the deadline is exceeded
+     */
+    public void drain(Handler<Void> done) {
+        draining = true;
+        drainedHandler = done;
+        for (HttpServerResponse response : inFlight.keySet()) {
+            if (!response.headWritten()) response.putHeader("connection", "close");
+        }
+        if (probed && delay > 0) {
+            logger.info("node isn't ready, new connections are served for {} ms", delay);
+            timerId = vertx.setTimer(delay, t -> stopAccepting());
+        } else stopAccepting();
+    }
+
+    private void stopAccepting() {
+        accepting = false;
+        if (inFlight.isEmpty()) {
+            complete();
+            return;
+        }
+        logger.info("draining {} requests in flight", inFlight.size());
+        timerId = vertx.setTimer(timeout, t -> {
+            dropped.inc(inFlight.size());
+            logger.warn("drain exceeded deadline {} ms, {} requests are dropped", timeout, inFlight.size());
+            complete();
+        });
+    }
+
+    /**
+     * While draining, the request stays in flight until its connection is closed
+     */
+    private void requestEnded(HttpServerResponse response, HttpConnection connection) {
+        lastActive = System.nanoTime();
+        if (!inFlight.containsKey(response)) return;
+        if (draining) closeAfterWrite(connection);
+        else inFlight.remove(response);
+        requests = inFlight.size();
+    }
+
+    /**
+     * Vert.x 3.5 closes the connection after the response only if the request has asked for it,
+     * and {@link HttpConnection#close()} drops the bytes still queued in Netty;
+     * so the connection is closed when an empty write behind the response is complete
+     */
+    private void closeAfterWrite(HttpConnection connection) {
+        ConnectionBase base = (ConnectionBase) connection;
+        ChannelPromise written = base.channelFuture();
+        base.writeToChannel(Unpooled.EMPTY_BUFFER, written);
+        written.addListener(f -> {
+            if (f.isSuccess()) drained.inc();
+            connection.close();
+        });
+    }
+
+    /**
+     * Requests aborted by the client are neither drained nor dropped, drained ones are counted when written out
+     */
+    private void connectionClosed(HttpConnection connection) {
+        lastActive = System.nanoTime();
+        boolean removed = inFlight.values().removeIf(c -> c == connection);
+        requests = inFlight.size();
+        if (removed && draining) completeIfDrained();
+    }
+
+    private void completeIfDrained() {
+        if (inFlight.isEmpty() && !accepting && drainedHandler != null) {
+            vertx.cancelTimer(timerId);
+            complete();
+        }
+    }
+
+    private void complete() {
+        Handler<Void> done = drainedHandler;
+        drainedHandler = null;
+        if (done != null) done.handle(null);
+    }
+}
@@ -0,0 +1,95 @@
+package ru.shishmakov.web;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import ru.shishmakov.blog.Whisky;
+
+import java.util.regex.Pattern;
+
+/**
+ * Sparse fieldset of a read: {@code ?fields=id,name}.
+ * <p>
+ * Only the requested columns or document fields are read from the database, the rows are projected
+ * straight to the JSON of the answer without whiskies in between. The id is always a part of the answer.
+ */
+public final class Fields {
+    private static final Pattern csvNames = Pattern.compile("^[a-z]+(,[a-z]+)*$");
+
+    private final boolean name;
+    private final boolean origin;
+
+    private Fields(boolean name, boolean origin) {
+        this.name = name;
+        this.origin = origin;
+    }
+
+    /**
+     * @return fields of the request or {@code null} if all fields are requested
+     */
+    public static Fields of(RoutingContext context) {
+        String csv = context.request().getParam("fields");
+        return csv == null ? null : parse(csv);
+    }
+
+    /**
+     * Answers 400 to a request with unknown fields, the handler ahead of the reads
+     */
+    public static void validate(RoutingContext context) {
+        String csv = context.request().getParam("fields");
+        if (csv != null && parse(csv) == null) context.response().setStatusCode(400).setStatusMessage("unknown fields: " + csv).end();
+        else context.next();
+    }
+
+    /**
+     * @param csv fields as "id,name"
+     * @return fields or {@code null} if the value is malformed or has an unknown field
+     */
+    static Fields parse(String csv) {
+        if (!csvNames.matcher(csv).matches()) return null;
+        boolean name = false;
+        boolean origin = false;
+        for (String field : csv.split(",")) {
+            if ("name".equals(field)) name = true;
+            else if ("origin".equals(field)) origin = true;
+            else if (!"id".equals(field)) return null;
+        }
+        return new Fields(name, origin);
+    }
+
+    /**
+     * @return the column list of the SQL query
+     */
+    public String columns() {
+        return "id" + (name ? ", name" : "") + (origin ? ", origin" : "");
+    }
+
+    /**
+     * @return the projection of the Mongo query
+     */
+    public JsonObject projection() {
+        JsonObject projection = new JsonObject().put("_id", 1);
+        if (name) projection.put("NAME", 1);
+        if (origin) projection.put("ORIGIN", 1);
+        return projection;
+    }
+
+    /**
+     * @param row a row of the SQL query or a document of the Mongo query
+     */
+    public JsonObject project(JsonObject row) {
+        JsonObject json = new JsonObject().put("id", row.getInteger("_id", row.getInteger("ID")));
+        if (name) json.put("name", row.getString("NAME"));
+        if (origin) json.put("origin", row.getString("ORIGIN"));
+        return json;
+    }
+
+    /**
+     * @param whisky an item of the cache
+     */
+    public JsonObject project(Whisky whisky) {
+        JsonObject json = new JsonObject().put("id", whisky.getId());
+        if (name) json.put("name", whisky.getName());
+        if (origin) json.put("origin", whisky.getOrigin());
+        return json;
+    }
+}
@@ -0,0 +1,159 @@
+package ru.shishmakov.web;
+
+import com.codahale.metrics.Timer;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.metrics.EventLoopMonitor;
+import ru.shishmakov.metrics.Metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness and readiness of the node for the load balancer.
+ * <p>
+ * Every check interval the node takes the longest event loop lag, the queue depth of the worker pool
+ * and pings the database. The ping takes a pooled connection, so it also slows down when the pool is saturated.
+ * The node is not ready while draining, while the database is initialized in the background
+ * or when any value exceeds its limit.
+ * <p>
+ * Config:
+ * <pre>
+ * "health": {"check_interval": 1000, "lag_interval": 100, "blocked_threshold": 2000,
+ *            "max_event_loop_lag": 200, "max_db_ping": 500, "max_worker_queue": 100}
+ * </pre>
+ */
+public class Health {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final Vertx vertx;
+    private final Drain drain;
+    private final Handler<Future<Void>> dbPing;
+    private final EventLoopMonitor monitor;
+    private final Timer pingTimer;
+    private final long checkInterval;
+    private final long maxEventLoopLag;
+    private final long maxDbPing;
+    private final int maxWorkerQueue;
+    private long timerId = -1;
+    private long pingStart = -1;
+    private long pingMillis;
+    private boolean pingSucceeded = true;
+    private boolean initialized = true;
+    private JsonObject readiness = new JsonObject().put("ready", true);
+
+    /**
+     * @param dbPing the cheapest query to the database
+     */
+    public Health(Vertx vertx, String name, JsonObject config, Drain drain, Handler<Future<Void>> dbPing) {
+        JsonObject conf = config.getJsonObject("health", new JsonObject());
+        this.vertx = vertx;
+        this.drain = drain;
+        this.dbPing = dbPing;
+        this.checkInterval = conf.getLong("check_interval", 1000L);
+        this.maxEventLoopLag = conf.getLong("max_event_loop_lag", 200L);
+        this.maxDbPing = conf.getLong("max_db_ping", 500L);
+        this.maxWorkerQueue = conf.getInteger("max_worker_queue", 100);
+        this.monitor = new EventLoopMonitor(vertx, conf.getLong("lag_interval", 100L), conf.getLong("blocked_threshold", 2000L));
+        this.pingTimer = Metrics.timer("db." + name + ".ping");
+    }
+
+    /**
+     * Starts the checks on the context of the caller
+     */
+    public void start() {
+        monitor.start();
+        ping();
+        timerId = vertx.setPeriodic(checkInterval, id -> check());
+    }
+
+    public void stop() {
+        monitor.stop();
+        vertx.cancelTimer(timerId);
+    }
+
+    /**
+     * The node isn't ready and answers 503 to the API until the returned handler is called on the context of the caller
+     */
+    public Handler<AsyncResult<Void>> initializing() {
+        initialized = false;
+        return initResult -> {
+            if (initResult.failed()) logger.error("database has failed on init, the node stays not ready", initResult.cause());
+            else {
+                initialized = true;
+                logger.info("database has been initialized");
+            }
+        };
+    }
+
+    /**
+     * Passes the request on once the database is initialized
+     */
+    public void requireInitialized(RoutingContext context) {
+        if (initialized) {
+            context.next();
+            return;
+        }
+        context.response()
+                .setStatusCode(503)
+                .putHeader("retry-after", "1")
+                .end();
+    }
+
+    /**
+     * curl -X GET localhost:8080/health/live
+     */
+    public void live(RoutingContext context) {
+        context.response()
+                .setStatusCode(200)
+                .putHeader("content-type", "application/json; charset=utf-8")
+                .end(new JsonObject().put("live", true).encode());
+    }
+
+    /**
+     * curl -X GET localhost:8080/health/ready
+     */
+    public void ready(RoutingContext context) {
+        drain.probed();
+        JsonObject body = readiness.copy().put("draining", drain.isDraining()).put("initialized", initialized);
+        if (drain.isDraining() || !initialized) body.put("ready", false);
+        context.response()
+                .setStatusCode(body.getBoolean("ready") ? 200 : 503)
+                .putHeader("content-type", "application/json; charset=utf-8")
+                .end(body.encodePrettily());
+    }
+
+    private void check() {
+        // a ping which hasn't answered yet is as slow as it has been waiting
+        long ping = pingStart < 0 ? pingMillis : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pingStart);
+        long lag = monitor.takeMaxLag();
+        int workerQueue = EventLoopMonitor.workerQueueDepth(vertx);
+        readiness = new JsonObject()
+                .put("ready", pingSucceeded && ping <= maxDbPing && lag <= maxEventLoopLag && workerQueue <= maxWorkerQueue)
+                .put("event_loop_lag_ms", lag)
+                .put("db_ping_ms", ping)
+                .put("db_ping_ok", pingSucceeded)
+                .put("worker_queue", workerQueue);
+        if (pingStart < 0) ping();
+    }
+
+    private void ping() {
+        long start = System.nanoTime();
+        pingStart = start;
+        Future<Void> future = Future.future();
+        future.setHandler(pingResult -> {
+            long elapsed = System.nanoTime() - start;
+            pingTimer.update(elapsed, TimeUnit.NANOSECONDS);
+            pingMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+            pingSucceeded = pingResult.succeeded();
+            pingStart = -1;
+        });
+        dbPing.handle(future);
+    }
+}
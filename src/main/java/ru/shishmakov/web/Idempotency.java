@@ -0,0 +1,271 @@
+package ru.shishmakov.web;
+
+import com.codahale.metrics.Counter;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.db.IdempotencyStore;
+import ru.shishmakov.metrics.Metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Deduplication of retried writes by the {@code Idempotency-Key} header, the handler after {@link JsonBodyHandler}.
+ * <p>
+ * The first request with a key runs the write, its response is stored for {@code ttl} ms and replayed
+ * to every retry with the same key without touching the database (with {@code Idempotent-Replayed: true}).
+ * A retry which comes while the first request is in flight waits for its response instead of running the write again.
+ * The key is scoped by the method and the path; a retry with another body gets 422.
+ * Server errors aren't stored: the waiting retries run the write again one by one.
+ * The number of responses in memory is capped, the oldest are evicted first.
+ * <p>
+ * With {@code persistent} the responses are written through to the {@link IdempotencyStore} of the database
+ * which is read when a key isn't in memory, so a retry which comes to another node or after a restart is replayed too.
+ * Not thread-safe, belongs to the context of the verticle.
+ * The number of responses in memory is reported per name as the sum over all verticle instances.
+ * <p>
+ * Config: {@code "idempotency": {"enabled": true, "ttl": 86400000, "max_entries": 10000, "persistent": false,
+ * "purge_interval": 60000}}
+ */
+public class Idempotency implements Handler<RoutingContext> {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final String HEADER = "idempotency-key";
+    private static final String PENDING = "idempotency_pending";
+    private static final int MAX_KEY_LENGTH = 255;
+    private static final Map<String, Set<Idempotency>> instances = new ConcurrentHashMap<>();
+
+    private final Vertx vertx;
+    private final String name;
+    private final boolean enabled;
+    private final long ttl;
+    private final int maxEntries;
+    private final long purgeInterval;
+    private final IdempotencyStore store;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Counter replayed;
+    private final Counter waited;
+    private final Counter conflicts;
+    // the size of the entries, read by the reporter of the metrics
+    private volatile int size;
+    private long timerId = -1;
+
+    /**
+     * @param store the store of the database, it's used if {@code persistent} is on
+     */
+    public Idempotency(Vertx vertx, String name, JsonObject config, IdempotencyStore store) {
+        JsonObject conf = config.getJsonObject("idempotency", new JsonObject());
+        this.vertx = vertx;
+        this.name = name;
+        this.enabled = conf.getBoolean("enabled", true);
+        this.ttl = conf.getLong("ttl", 24 * 60 * 60 * 1000L);
+        this.maxEntries = conf.getInteger("max_entries", 10_000);
+        this.purgeInterval = conf.getLong("purge_interval", 60_000L);
+        this.store = enabled && conf.getBoolean("persistent", false) ? store : null;
+        this.replayed = Metrics.counter("idempotency." + name + ".replayed");
+        this.waited = Metrics.counter("idempotency." + name + ".waited");
+        this.conflicts = Metrics.counter("idempotency." + name + ".conflicts");
+        Set<Idempotency> named = instances.computeIfAbsent(name, n -> new CopyOnWriteArraySet<>());
+        named.add(this);
+        Metrics.gauge("idempotency." + name + ".entries", () -> totalSize(named));
+    }
+
+    /**
+     * Creates the store and starts to purge it on the context of the caller
+     */
+    public Future<Void> init() {
+        Future<Void> future = Future.future();
+        if (store == null) future.complete();
+        else store.init(initResult -> {
+            if (initResult.succeeded()) timerId = vertx.setPeriodic(purgeInterval, id -> purge());
+            future.handle(initResult);
+        });
+        return future;
+    }
+
+    public void stop() {
+        vertx.cancelTimer(timerId);
+        Set<Idempotency> named = instances.get(name);
+        if (named != null) named.remove(this);
+    }
+
+    /**
+     * Remembers the encoded body of the response if the request runs the write of an idempotency key
+     */
+    static void capture(RoutingContext context, Buffer body) {
+        // the data of the context isn't created for requests without the key
+        if (context.request().getHeader(HEADER) == null) return;
+        Entry pending = context.get(PENDING);
+        if (pending != null) pending.body = body;
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        String key = context.request().getHeader(HEADER);
+        if (!enabled || key == null) {
+            context.next();
+            return;
+        }
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            context.response().setStatusCode(400).setStatusMessage("Idempotency-Key is empty or too long").end();
+            return;
+        }
+        String scope = context.request().method() + " " + context.request().path() + " " + key;
+        String fingerprint = fingerprint(context);
+        Entry entry = entries.get(scope);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(scope);
+            size = entries.size();
+            entry = null;
+        }
+        if (entry == null) start(context, scope, new Entry(fingerprint, System.currentTimeMillis() + ttl));
+        else if (!entry.fingerprint.equals(fingerprint)) {
+            conflicts.inc();
+            context.response().setStatusCode(422).setStatusMessage("Idempotency-Key is used by another request").end();
+        } else if (entry.response != null) replay(context, entry.response);
+        else {
+            waited.inc();
+            entry.waiters.add(context);
+        }
+    }
+
+    /**
+     * The first request of the key: the response of the store is replayed, otherwise the request runs the write
+     */
+    private void start(RoutingContext context, String scope, Entry entry) {
+        put(scope, entry);
+        if (store == null) {
+            execute(context, scope, entry);
+            return;
+        }
+        store.get(scope, getResult -> {
+            if (getResult.failed()) logger.warn("idempotency key isn't read from the store: {}", scope, getResult.cause());
+            JsonObject stored = getResult.succeeded() ? getResult.result() : null;
+            if (stored == null) {
+                execute(context, scope, entry);
+                return;
+            }
+            entry.fingerprint = stored.getString("fingerprint");
+            entry.response = stored;
+            List<RoutingContext> requests = entry.takeWaiters();
+            requests.add(0, context);
+            requests.forEach(this::handle);
+        });
+    }
+
+    private void execute(RoutingContext context, String scope, Entry entry) {
+        context.put(PENDING, entry);
+        context.addBodyEndHandler(v -> {
+            HttpServerResponse response = context.response();
+            List<RoutingContext> waiters = entry.takeWaiters();
+            if (response.getStatusCode() >= 500) {
+                // the first of the waiting retries runs the write again
+                entries.remove(scope, entry);
+                size = entries.size();
+                waiters.forEach(this::handle);
+                return;
+            }
+            JsonObject stored = new JsonObject()
+                    .put("fingerprint", entry.fingerprint)
+                    .put("status", response.getStatusCode())
+                    .put("content_type", response.headers().get("content-type"))
+                    .put("body", entry.body == null ? new byte[0] : entry.body.getBytes());
+            entry.response = stored;
+            entry.body = null;
+            if (store != null) store.put(scope, stored, entry.expiresAt, putResult -> {
+                if (putResult.failed()) logger.warn("idempotency key isn't written to the store: {}", scope, putResult.cause());
+            });
+            waiters.forEach(waiter -> replay(waiter, stored));
+        });
+        context.next();
+    }
+
+    private void replay(RoutingContext context, JsonObject stored) {
+        replayed.inc();
+        HttpServerResponse response = context.response()
+                .setStatusCode(stored.getInteger("status"))
+                .putHeader("idempotent-replayed", "true");
+        String contentType = stored.getString("content_type");
+        if (contentType != null) response.putHeader("content-type", contentType);
+        response.end(Buffer.buffer(stored.getBinary("body")));
+    }
+
+    /**
+     * Evicts the expired entries and the oldest entries over the cap, entries are in the order of expiration
+     */
+    private void put(String scope, Entry entry) {
+        entries.put(scope, entry);
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> eldest = entries.values().iterator(); eldest.hasNext(); ) {
+            Entry next = eldest.next();
+            if (entries.size() <= maxEntries && next.expiresAt > now) break;
+            eldest.remove();
+        }
+        size = entries.size();
+    }
+
+    private static long totalSize(Set<Idempotency> named) {
+        long total = 0;
+        for (Idempotency idempotency : named) total += idempotency.size;
+        return total;
+    }
+
+    private void purge() {
+        store.purge(System.currentTimeMillis(), purgeResult -> {
+            if (purgeResult.failed()) logger.warn("expired idempotency keys aren't purged", purgeResult.cause());
+        });
+    }
+
+    /**
+     * @return hash of the body, the parsed JSON body is encoded again
+     */
+    private static String fingerprint(RoutingContext context) {
+        Buffer body = context.data().containsKey(JsonBodyHandler.JSON_BODY)
+                ? Buffer.buffer(Json.encode(context.<Object>get(JsonBodyHandler.JSON_BODY)))
+                : context.getBody();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (body != null) digest.update(body.getBytes());
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final long expiresAt;
+        private String fingerprint;
+        private JsonObject response;
+        private Buffer body;
+        private List<RoutingContext> waiters = new ArrayList<>(0);
+
+        Entry(String fingerprint, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+
+        List<RoutingContext> takeWaiters() {
+            List<RoutingContext> taken = waiters;
+            waiters = new ArrayList<>(0);
+            return taken;
+        }
+    }
+}
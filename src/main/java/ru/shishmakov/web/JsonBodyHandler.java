@@ -0,0 +1,228 @@
+package ru.shishmakov.web;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Decodes the JSON body chunk by chunk while it arrives, instead of buffering it and parsing its string.
+ * <p>
+ * The non-blocking Jackson parser builds maps and lists which are put into the context as {@link #JSON_BODY},
+ * {@link Representation#decodeBody} converts them to the target type. A CBOR body is buffered and decoded later.
+ * A body over the limit of bytes or fields (object fields and array elements) is rejected with 413 as soon as
+ * the limit is exceeded, malformed or too deep JSON with 400.
+ * <p>
+ * Config: {@code "json_body": {"max_bytes": 65536, "max_fields": 2048, "max_depth": 16}}
+ */
+public class JsonBodyHandler implements Handler<RoutingContext> {
+    public static final String JSON_BODY = "json_body";
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final long maxBytes;
+    private final int maxFields;
+    private final int maxDepth;
+
+    private JsonBodyHandler(long maxBytes, int maxFields, int maxDepth) {
+        this.maxBytes = maxBytes;
+        this.maxFields = maxFields;
+        this.maxDepth = maxDepth;
+    }
+
+    public static JsonBodyHandler create(JsonObject config) {
+        JsonObject conf = config.getJsonObject("json_body", new JsonObject());
+        return new JsonBodyHandler(
+                conf.getLong("max_bytes", 65536L),
+                conf.getInteger("max_fields", 2048),
+                conf.getInteger("max_depth", 16));
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        HttpServerRequest request = context.request();
+        String contentLength = request.getHeader("content-length");
+        if (nonNull(contentLength) && contentLength.matches("\\d{1,18}") && Long.parseLong(contentLength) > maxBytes) {
+            reject(context, 413, "body exceeds " + maxBytes + " bytes");
+            return;
+        }
+        if (Representation.isCbor(context)) readCbor(context);
+        else readJson(context);
+    }
+
+    private void readCbor(RoutingContext context) {
+        Buffer body = Buffer.buffer();
+        boolean[] rejected = {false};
+        context.request().handler(chunk -> {
+            if (rejected[0]) return;
+            if (body.length() + chunk.length() > maxBytes) {
+                rejected[0] = true;
+                reject(context, 413, "body exceeds " + maxBytes + " bytes");
+            } else body.appendBuffer(chunk);
+        });
+        context.request().endHandler(v -> {
+            if (rejected[0]) return;
+            context.setBody(body);
+            context.next();
+        });
+    }
+
+    private void readJson(RoutingContext context) {
+        JsonTree tree;
+        try {
+            tree = new JsonTree();
+        } catch (IOException e) {
+            context.fail(e);
+            return;
+        }
+        context.request().handler(chunk -> {
+            if (tree.rejected) return;
+            tree.bytes += chunk.length();
+            if (tree.bytes > maxBytes) tree.reject(context, 413, "body exceeds " + maxBytes + " bytes");
+            else tree.feed(context, chunk.getBytes());
+        });
+        context.request().endHandler(v -> {
+            if (tree.rejected) return;
+            tree.end(context);
+            if (tree.rejected) return;
+            context.put(JSON_BODY, tree.root);
+            context.next();
+        });
+    }
+
+    private static void reject(RoutingContext context, int statusCode, String message) {
+        context.response()
+                .setStatusCode(statusCode)
+                .setStatusMessage(message)
+                .putHeader("connection", "close")
+                .end();
+    }
+
+    /**
+     * @return message of the parser without the location, the status line is kept on one line
+     */
+    private static String malformed(IOException e) {
+        return "malformed JSON: " + (e instanceof JsonProcessingException
+                ? ((JsonProcessingException) e).getOriginalMessage()
+                : e.getMessage()).replaceAll("[\\r\\n]+", " ");
+    }
+
+    /**
+     * Maps and lists of one body built from the tokens of the parser
+     */
+    private class JsonTree {
+        private final JsonParser parser = jsonFactory.createNonBlockingByteArrayParser();
+        private final Deque<Object> containers = new ArrayDeque<>();
+        private Object root;
+        private boolean hasRoot;
+        private String fieldName;
+        private long bytes;
+        private int fields;
+        private boolean rejected;
+
+        JsonTree() throws IOException {
+        }
+
+        void feed(RoutingContext context, byte[] chunk) {
+            try {
+                ((ByteArrayFeeder) parser.getNonBlockingInputFeeder()).feedInput(chunk, 0, chunk.length);
+                readTokens(context);
+            } catch (IOException e) {
+                reject(context, 400, malformed(e));
+            }
+        }
+
+        void end(RoutingContext context) {
+            try {
+                ((ByteArrayFeeder) parser.getNonBlockingInputFeeder()).endOfInput();
+                readTokens(context);
+                if (!rejected && !containers.isEmpty()) reject(context, 400, "malformed JSON: unexpected end of body");
+            } catch (IOException e) {
+                reject(context, 400, malformed(e));
+            }
+        }
+
+        void reject(RoutingContext context, int statusCode, String message) {
+            rejected = true;
+            JsonBodyHandler.reject(context, statusCode, message);
+        }
+
+        private void readTokens(RoutingContext context) throws IOException {
+            JsonToken token;
+            while (!rejected && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                switch (token) {
+                    case FIELD_NAME:
+                        fieldName = parser.getCurrentName();
+                        if (++fields > maxFields) reject(context, 413, "body exceeds " + maxFields + " fields");
+                        break;
+                    case START_OBJECT:
+                        start(context, new LinkedHashMap<String, Object>());
+                        break;
+                    case START_ARRAY:
+                        start(context, new ArrayList<>());
+                        break;
+                    case END_OBJECT:
+                    case END_ARRAY:
+                        containers.pop();
+                        break;
+                    case VALUE_STRING:
+                        add(context, parser.getText());
+                        break;
+                    case VALUE_NUMBER_INT:
+                    case VALUE_NUMBER_FLOAT:
+                        add(context, parser.getNumberValue());
+                        break;
+                    case VALUE_TRUE:
+                    case VALUE_FALSE:
+                        add(context, parser.getBooleanValue());
+                        break;
+                    case VALUE_NULL:
+                        add(context, null);
+                        break;
+                    default:
+                        reject(context, 400, "malformed JSON: unexpected " + token);
+                }
+            }
+        }
+
+        private void start(RoutingContext context, Object container) {
+            if (containers.size() >= maxDepth) {
+                reject(context, 400, "JSON is deeper than " + maxDepth);
+                return;
+            }
+            add(context, container);
+            containers.push(container);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(RoutingContext context, Object value) {
+            Object parent = containers.peek();
+            if (parent instanceof Map) {
+                ((Map<String, Object>) parent).put(fieldName, value);
+            } else if (parent instanceof List) {
+                if (++fields > maxFields) reject(context, 413, "body exceeds " + maxFields + " fields");
+                else ((List<Object>) parent).add(value);
+            } else if (hasRoot) {
+                reject(context, 400, "malformed JSON: several values");
+            } else {
+                root = value;
+                hasRoot = true;
+            }
+        }
+    }
+}
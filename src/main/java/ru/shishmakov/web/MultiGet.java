@@ -0,0 +1,79 @@
+package ru.shishmakov.web;
+
+import io.vertx.core.json.JsonObject;
+import ru.shishmakov.blog.Whisky;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Ids of the multi-get request and the answer in the order of the request
+ */
+public final class MultiGet {
+    // an id of up to 10 digits is range-checked as a long
+    private static final Pattern csvDigits = Pattern.compile("^[0-9]{1,10}(,[0-9]{1,10})*$");
+
+    private MultiGet() {
+    }
+
+    /**
+     * @param csv ids as "1,2,3"
+     * @return ids or {@code null} if the value is malformed or an id is out of the int range
+     */
+    public static List<Integer> parseIds(String csv) {
+        if (!csvDigits.matcher(csv).matches()) return null;
+        List<Integer> ids = new ArrayList<>();
+        for (String token : csv.split(",")) {
+            long id = Long.parseLong(token);
+            if (id > Integer.MAX_VALUE) return null;
+            ids.add((int) id);
+        }
+        return ids;
+    }
+
+    /**
+     * @param array ids as [1,2,3]
+     * @return ids or {@code null} if the value is malformed
+     */
+    public static List<Integer> parseIds(int[] array) {
+        if (array == null) return null;
+        List<Integer> ids = new ArrayList<>(array.length);
+        for (int id : array) ids.add(id);
+        return ids;
+    }
+
+    /**
+     * @return distinct ids to lookup in the database
+     */
+    public static Collection<Integer> distinct(List<Integer> ids) {
+        return new LinkedHashSet<>(ids);
+    }
+
+    /**
+     * @return whiskies in the order of requested ids; a missing one is {"id":..,"missing":true}
+     */
+    public static List<Object> inRequestOrder(List<Integer> ids, List<Whisky> found) {
+        return inRequestOrder(ids, found, Whisky::getId);
+    }
+
+    /**
+     * @param found whiskies or their projections
+     * @param idOf  the id of a found one
+     */
+    public static <T> List<Object> inRequestOrder(List<Integer> ids, List<T> found, ToIntFunction<T> idOf) {
+        Map<Integer, T> byId = new HashMap<>(found.size() * 2);
+        for (T whisky : found) byId.put(idOf.applyAsInt(whisky), whisky);
+        List<Object> answer = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            T whisky = byId.get(id);
+            answer.add(whisky != null ? whisky : new JsonObject().put("id", id).put("missing", true));
+        }
+        return answer;
+    }
+}
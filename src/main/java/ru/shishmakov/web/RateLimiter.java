@@ -0,0 +1,214 @@
+package ru.shishmakov.web;
+
+import com.codahale.metrics.Counter;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import ru.shishmakov.metrics.Metrics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limit of the API per client, the handler of the router ahead of the API routes.
+ * <p>
+ * A client is its API key ({@code key_header}) if the key is one of {@code api_keys}, otherwise its remote address:
+ * a key nobody has issued doesn't get a budget of its own, so a client can't reset its buckets by inventing keys
+ * or push other clients out of the buckets. Every client has two token buckets:
+ * reads ({@code GET}, {@code HEAD} and {@code _mget}) and writes, refilled by {@code rate} tokens a second
+ * up to {@code burst}; a request takes one token or gets 429 with {@code Retry-After}. Every response of the API
+ * tells the budget of its kind: {@code RateLimit-Limit} (the burst), {@code RateLimit-Remaining}
+ * and {@code RateLimit-Reset} (seconds until the bucket is full).
+ * <p>
+ * The buckets are refilled lazily when a client comes, there is no timer per client. At most {@code max_clients}
+ * buckets are kept in the order of access, the least recent client is evicted over the bound and clients idle
+ * for {@code idle_timeout} ms (at least the time to refill a bucket) are swept periodically.
+ * Every verticle instance limits the clients of its own event loop without locks, the budgets are per instance.
+ * Not thread-safe, belongs to the context of the verticle.
+ * <p>
+ * Config: {@code "rate_limit": {"enabled": false, "key_header": "x-api-key", "api_keys": [], "read_rate": 100,
+ * "read_burst": 200, "write_rate": 20, "write_burst": 40, "max_clients": 10000, "idle_timeout": 60000}}
+ */
+public class RateLimiter implements Handler<RoutingContext> {
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+
+    private final Vertx vertx;
+    private final boolean enabled;
+    private final String keyHeader;
+    private final Map<String, String> apiKeys = new HashMap<>();
+    private final Budget[] budgets;
+    private final int maxClients;
+    private final long idleTimeout;
+    private final Map<String, Bucket> buckets;
+    private final Counter limited;
+    private final Counter evicted;
+    private long timerId = -1;
+
+    public RateLimiter(Vertx vertx, String name, JsonObject config) {
+        JsonObject conf = config.getJsonObject("rate_limit", new JsonObject());
+        this.vertx = vertx;
+        this.enabled = conf.getBoolean("enabled", false);
+        this.keyHeader = conf.getString("key_header", "x-api-key");
+        for (Object key : conf.getJsonArray("api_keys", new JsonArray())) apiKeys.put((String) key, "key:" + key);
+        this.budgets = new Budget[]{
+                new Budget(conf.getDouble("read_rate", 100.0), conf.getLong("read_burst", 200L)),
+                new Budget(conf.getDouble("write_rate", 20.0), conf.getLong("write_burst", 40L))};
+        this.maxClients = conf.getInteger("max_clients", 10_000);
+        this.idleTimeout = Math.max(conf.getLong("idle_timeout", 60_000L),
+                TimeUnit.NANOSECONDS.toMillis(Math.max(budgets[READ].refillNanos, budgets[WRITE].refillNanos)));
+        this.limited = Metrics.counter("rate_limit." + name + ".limited");
+        this.evicted = Metrics.counter("rate_limit." + name + ".evicted");
+        this.buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                if (size() <= maxClients) return false;
+                evicted.inc();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Starts to sweep idle clients on the context of the caller
+     */
+    public void start() {
+        if (!enabled) return;
+        timerId = vertx.setPeriodic(Math.max(idleTimeout / 2, 1), id -> sweep(System.nanoTime()));
+    }
+
+    public void stop() {
+        vertx.cancelTimer(timerId);
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        if (!enabled) {
+            context.next();
+            return;
+        }
+        HttpServerRequest request = context.request();
+        String client = client(request);
+        int kind = isRead(request) ? READ : WRITE;
+        Budget budget = budgets[kind];
+        long now = System.nanoTime();
+        Bucket bucket = bucket(client, now);
+        boolean allowed = bucket.take(kind, budget, now);
+        HttpServerResponse response = context.response()
+                .putHeader("ratelimit-limit", budget.limit)
+                .putHeader("ratelimit-remaining", Long.toString((long) bucket.tokens[kind]))
+                .putHeader("ratelimit-reset", Long.toString(toSeconds(budget.untilFull(bucket.tokens[kind]))));
+        if (allowed) {
+            context.next();
+            return;
+        }
+        limited.inc();
+        response.setStatusCode(429)
+                .putHeader("retry-after", Long.toString(Math.max(toSeconds(budget.untilToken(bucket.tokens[kind])), 1)))
+                .end();
+    }
+
+    /**
+     * Removes the clients idle for the timeout, their buckets are full again
+     */
+    private void sweep(long now) {
+        long idle = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastSeen < idle) break;
+            it.remove();
+            evicted.inc();
+        }
+    }
+
+    private Bucket bucket(String client, long now) {
+        Bucket bucket = buckets.get(client);
+        if (bucket == null) {
+            bucket = new Bucket(budgets, now);
+            buckets.put(client, bucket);
+        }
+        bucket.lastSeen = now;
+        return bucket;
+    }
+
+    /**
+     * @return the issued API key or the remote address
+     */
+    private String client(HttpServerRequest request) {
+        String key = request.getHeader(keyHeader);
+        String client = key == null ? null : apiKeys.get(key);
+        return client == null ? request.remoteAddress().host() : client;
+    }
+
+    private static boolean isRead(HttpServerRequest request) {
+        HttpMethod method = request.method();
+        return method == HttpMethod.GET || method == HttpMethod.HEAD
+                || method == HttpMethod.POST && request.path().endsWith("/_mget");
+    }
+
+    private static long toSeconds(long nanos) {
+        return (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Rate and burst of a kind of requests
+     */
+    private static final class Budget {
+        private final double tokensPerNano;
+        private final long burst;
+        private final long refillNanos;
+        private final String limit;
+
+        Budget(double rate, long burst) {
+            this.tokensPerNano = Math.max(rate, Double.MIN_NORMAL) / TimeUnit.SECONDS.toNanos(1);
+            this.burst = Math.max(burst, 1);
+            this.refillNanos = (long) Math.min(this.burst / tokensPerNano, Long.MAX_VALUE);
+            this.limit = Long.toString(this.burst);
+        }
+
+        long untilFull(double tokens) {
+            return (long) ((burst - tokens) / tokensPerNano);
+        }
+
+        long untilToken(double tokens) {
+            return (long) ((1 - tokens) / tokensPerNano);
+        }
+    }
+
+    /**
+     * Tokens of a client by the kind of requests
+     */
+    private static final class Bucket {
+        private final double[] tokens = new double[2];
+        private final long[] updated = new long[2];
+        private long lastSeen;
+
+        Bucket(Budget[] budgets, long now) {
+            for (int kind = 0; kind < tokens.length; kind++) {
+                tokens[kind] = budgets[kind].burst;
+                updated[kind] = now;
+            }
+        }
+
+        /**
+         * Refills the bucket for the time since the last request, then takes a token
+         */
+        boolean take(int kind, Budget budget, long now) {
+            double refilled = Math.min(budget.burst, tokens[kind] + (now - updated[kind]) * budget.tokensPerNano);
+            updated[kind] = now;
+            if (refilled < 1) {
+                tokens[kind] = refilled;
+                return false;
+            }
+            tokens[kind] = refilled - 1;
+            return true;
+        }
+    }
+}
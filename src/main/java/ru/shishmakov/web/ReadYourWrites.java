@@ -0,0 +1,89 @@
+package ru.shishmakov.web;
+
+import com.codahale.metrics.Counter;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import ru.shishmakov.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing of reads between the primary and the replicas, writes always go to the primary.
+ * <p>
+ * A client reads its own writes: the response of a write sets the cookie {@code read_primary_until}
+ * and the reads of the client go to the primary within the sticky window, which should be longer
+ * than the replication lag. Other clients read the replicas at once. Responses read from a replica
+ * aren't stored by the response cache within the window after the last write of the node,
+ * so the cache doesn't keep the state of a replica which hasn't caught up yet.
+ * Not thread-safe, belongs to the context of the verticle.
+ * <p>
+ * Config: {@code "replica": {"enabled": false, "sticky_window": 5000}}
+ */
+public class ReadYourWrites {
+    public static final String COOKIE = "read_primary_until";
+
+    private final boolean enabled;
+    private final long stickyWindow;
+    private final Counter primaryReads;
+    private final Counter replicaReads;
+    private long lastWrite;
+
+    public ReadYourWrites(String name, JsonObject config) {
+        JsonObject conf = config.getJsonObject("replica", new JsonObject());
+        this.enabled = conf.getBoolean("enabled", false);
+        this.stickyWindow = conf.getLong("sticky_window", 5000L);
+        this.primaryReads = Metrics.counter("replica." + name + ".primary_reads");
+        this.replicaReads = Metrics.counter("replica." + name + ".replica_reads");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Makes the next reads of the client sticky to the primary, called before the response of a write is sent
+     */
+    public void wrote(RoutingContext context) {
+        if (!enabled) return;
+        long now = System.currentTimeMillis();
+        lastWrite = now;
+        context.response().headers().add("set-cookie", io.vertx.ext.web.Cookie.cookie(COOKIE, Long.toString(now + stickyWindow))
+                .setPath("/api")
+                .setMaxAge(TimeUnit.MILLISECONDS.toSeconds(stickyWindow + 999))
+                .setHttpOnly(true)
+                .encode());
+    }
+
+    /**
+     * @return true if the read goes to the primary: replicas are off or the client has written within the window
+     */
+    public boolean readsPrimary(RoutingContext context) {
+        if (!enabled) return true;
+        boolean primary = stickyUntil(context) > System.currentTimeMillis();
+        (primary ? primaryReads : replicaReads).inc();
+        return primary;
+    }
+
+    /**
+     * @return true if the replicas have had the sticky window to catch up with the last write of the node
+     */
+    public boolean isSettled() {
+        return !enabled || System.currentTimeMillis() - lastWrite > stickyWindow;
+    }
+
+    private static long stickyUntil(RoutingContext context) {
+        String header = context.request().getHeader("cookie");
+        if (header == null) return 0;
+        for (Cookie cookie : ServerCookieDecoder.LAX.decode(header)) {
+            if (!COOKIE.equals(cookie.name())) continue;
+            try {
+                return Long.parseLong(cookie.value());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,145 @@
+package ru.shishmakov.web;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.MIMEHeader;
+import io.vertx.ext.web.RoutingContext;
+import ru.shishmakov.metrics.ServerTiming;
+import ru.shishmakov.metrics.ServerTiming.Phase;
+import ru.shishmakov.metrics.ServerTiming.Phases;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Negotiates the representation of API resources.
+ * <p>
+ * JSON is the default, compact binary CBOR is used for {@code Accept: application/cbor}
+ * and is accepted as a body with {@code Content-Type: application/cbor}.
+ */
+public final class Representation {
+    public static final String JSON = "application/json";
+    public static final String CBOR = "application/cbor";
+
+    private static final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory())
+            .registerModule(new SimpleModule()
+                    .addSerializer(JsonObject.class, new JsonSerializer<JsonObject>() {
+                        @Override
+                        public void serialize(JsonObject value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                            gen.writeObject(value.getMap());
+                        }
+                    })
+                    .addSerializer(JsonArray.class, new JsonSerializer<JsonArray>() {
+                        @Override
+                        public void serialize(JsonArray value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                            gen.writeObject(value.getList());
+                        }
+                    }));
+
+    private Representation() {
+    }
+
+    /**
+     * Ends the response with the value encoded in the representation accepted by the client
+     */
+    public static void end(RoutingContext context, int statusCode, Object value) {
+        Phases phases = ServerTiming.phases(context);
+        long encode = phases.start();
+        Buffer body = encode(context, value);
+        phases.end(Phase.ENCODE, encode);
+        Idempotency.capture(context, body);
+        context.response()
+                .setStatusCode(statusCode)
+                .putHeader("content-type", contentType(context))
+                .end(body);
+    }
+
+    /**
+     * @return content type of the representation accepted by the client
+     */
+    public static String contentType(RoutingContext context) {
+        return acceptsCbor(context) ? CBOR : "application/json; charset=utf-8";
+    }
+
+    /**
+     * @return the value encoded in the representation accepted by the client
+     */
+    public static Buffer encode(RoutingContext context, Object value) {
+        return acceptsCbor(context) ? encodeCbor(value) : Buffer.buffer(Json.encodePrettily(value));
+    }
+
+    /**
+     * The JSON body parsed by {@link JsonBodyHandler} is converted without decoding it again
+     */
+    public static <T> T decodeBody(RoutingContext context, Class<T> type) {
+        if (isCbor(context)) return decodeCbor(context.getBody(), type);
+        if (!context.data().containsKey(JsonBodyHandler.JSON_BODY)) return Json.decodeValue(context.getBodyAsString(), type);
+        Object tree = context.get(JsonBodyHandler.JSON_BODY);
+        if (tree == null) throw new DecodeException("Failed to decode: body is empty");
+        try {
+            return Json.mapper.convertValue(tree, type);
+        } catch (IllegalArgumentException e) {
+            throw new DecodeException("Failed to decode: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the body as JSON object or {@code null} if the body is empty
+     */
+    @SuppressWarnings("unchecked")
+    public static JsonObject decodeBodyAsJson(RoutingContext context) {
+        if (isCbor(context)) {
+            return context.getBody().length() == 0 ? null : new JsonObject(decodeCbor(context.getBody(), Map.class));
+        }
+        if (!context.data().containsKey(JsonBodyHandler.JSON_BODY)) return context.getBodyAsJson();
+        Object tree = context.get(JsonBodyHandler.JSON_BODY);
+        if (tree == null) return null;
+        if (!(tree instanceof Map)) throw new DecodeException("Failed to decode: body is not a JSON object");
+        return new JsonObject((Map<String, Object>) tree);
+    }
+
+    public static Buffer encodeCbor(Object value) {
+        try {
+            return Buffer.buffer(cborMapper.writeValueAsBytes(value));
+        } catch (Exception e) {
+            throw new EncodeException("Failed to encode as CBOR: " + e.getMessage());
+        }
+    }
+
+    public static <T> T decodeCbor(Buffer buffer, Class<T> type) {
+        try {
+            return cborMapper.readValue(buffer.getBytes(), type);
+        } catch (Exception e) {
+            throw new DecodeException("Failed to decode CBOR: " + e.getMessage());
+        }
+    }
+
+    static boolean isCbor(RoutingContext context) {
+        return Optional.ofNullable(context.parsedHeaders().contentType())
+                .map(MIMEHeader::value)
+                .filter(CBOR::equalsIgnoreCase)
+                .isPresent();
+    }
+
+    /**
+     * Accept values are sorted by weight, the first known one wins
+     */
+    private static boolean acceptsCbor(RoutingContext context) {
+        for (MIMEHeader accept : context.parsedHeaders().accept()) {
+            if (CBOR.equalsIgnoreCase(accept.value())) return true;
+            if (JSON.equalsIgnoreCase(accept.value()) || accept.value().endsWith("*")) return false;
+        }
+        return false;
+    }
+}
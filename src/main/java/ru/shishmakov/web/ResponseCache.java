@@ -0,0 +1,193 @@
+package ru.shishmakov.web;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.RatioGauge;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.ParsedHeaderValue;
+import io.vertx.ext.web.RoutingContext;
+import ru.shishmakov.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Already encoded responses of read endpoints, plain and gzipped.
+ * <p>
+ * A hit is served without the database and without encoding, gzipped if {@code Accept-Encoding} allows gzip
+ * with a weight above zero. Any write through the verticle invalidates the cache; a response computed before
+ * the write is not stored. Every verticle instance has a cache of its own and a write through another instance
+ * doesn't invalidate it, so an entry is served for at most {@code ttl} ms after it is stored.
+ * The size of all bodies is capped, least recently used entries are evicted first.
+ * <p>
+ * The size is reported per name as the sum over the caches of all verticle instances.
+ * <p>
+ * Config: {@code "response_cache": {"enabled": false, "max_bytes": 16777216, "ttl": 1000}}
+ */
+public class ResponseCache {
+    private static final Map<String, Set<ResponseCache>> caches = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long ttl;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Counter hits;
+    private final Counter misses;
+    // written on the event loop, read by the reporter of the metrics
+    private volatile long bytes;
+    private long generation;
+
+    public ResponseCache(String name, JsonObject config) {
+        JsonObject conf = config.getJsonObject("response_cache", new JsonObject());
+        this.name = name;
+        this.enabled = conf.getBoolean("enabled", false);
+        this.maxBytes = conf.getLong("max_bytes", 16L * 1024 * 1024);
+        this.ttl = conf.getLong("ttl", 1000L);
+        this.hits = Metrics.counter("response_cache." + name + ".hits");
+        this.misses = Metrics.counter("response_cache." + name + ".misses");
+        Set<ResponseCache> named = caches.computeIfAbsent(name, n -> new CopyOnWriteArraySet<>());
+        named.add(this);
+        Metrics.gauge("response_cache." + name + ".bytes", () -> totalBytes(named));
+        Metrics.gauge("response_cache." + name + ".hit_ratio", hitRatio(hits, misses));
+    }
+
+    /**
+     * @return key of the response variant: the resource, the query and the representation
+     */
+    public static String key(RoutingContext context, String resource) {
+        return resource + '?' + Objects.toString(context.request().query(), "") + '|' + Representation.contentType(context);
+    }
+
+    /**
+     * Ends the response with the cached body; any response of the resource varies by the representation
+     * and the encoding, so {@code Vary} is set either way
+     *
+     * @return false if there is no cached body, the response has {@code Vary} only
+     */
+    public boolean serve(RoutingContext context, String key) {
+        context.response().putHeader("vary", "accept, accept-encoding");
+        if (!enabled) return false;
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            bytes -= entry.size();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.inc();
+            return false;
+        }
+        hits.inc();
+        context.response()
+                .setStatusCode(200)
+                .putHeader("content-type", entry.contentType);
+        if (acceptsGzip(context)) context.response().putHeader("content-encoding", "gzip").end(entry.gzipBody);
+        else context.response().end(entry.body);
+        return true;
+    }
+
+    /**
+     * @return generation to pass to {@link #store} when the response is ready
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Keeps the encoded body unless a write has happened since the generation was taken
+     */
+    public void store(long generation, String key, String contentType, Buffer body) {
+        if (!enabled || generation != this.generation) return;
+        Entry entry = new Entry(contentType, body, gzip(body), System.currentTimeMillis() + ttl);
+        if (entry.size() > maxBytes) return;
+        Entry previous = entries.put(key, entry);
+        if (previous != null) bytes -= previous.size();
+        bytes += entry.size();
+        for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            bytes -= it.next().size();
+            it.remove();
+        }
+    }
+
+    public void invalidate() {
+        generation++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    public void close() {
+        Set<ResponseCache> named = caches.get(name);
+        if (named != null) named.remove(this);
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static long totalBytes(Set<ResponseCache> named) {
+        long total = 0;
+        for (ResponseCache cache : named) total += cache.bytes;
+        return total;
+    }
+
+    /**
+     * The counters are shared by the caches of all verticle instances, the gauge doesn't hold a cache
+     */
+    private static RatioGauge hitRatio(Counter hits, Counter misses) {
+        return new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getCount(), hits.getCount() + misses.getCount());
+            }
+        };
+    }
+
+    /**
+     * An explicit gzip coding wins over {@code *}, a weight of zero refuses the coding
+     */
+    private static boolean acceptsGzip(RoutingContext context) {
+        Float any = null;
+        for (ParsedHeaderValue coding : context.parsedHeaders().acceptEncoding()) {
+            String value = coding.value();
+            if ("gzip".equalsIgnoreCase(value) || "x-gzip".equalsIgnoreCase(value)) return coding.weight() > 0;
+            if ("*".equals(value) && any == null) any = coding.weight();
+        }
+        return any != null && any > 0;
+    }
+
+    private static Buffer gzip(Buffer body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length() / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body.getBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Buffer.buffer(out.toByteArray());
+    }
+
+    private static class Entry {
+        private final String contentType;
+        private final Buffer body;
+        private final Buffer gzipBody;
+        private final long expiresAt;
+
+        Entry(String contentType, Buffer body, Buffer gzipBody, long expiresAt) {
+            this.contentType = contentType;
+            this.body = body;
+            this.gzipBody = gzipBody;
+            this.expiresAt = expiresAt;
+        }
+
+        long size() {
+            return body.length() + gzipBody.length();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package ru.shishmakov.web;
+
+import com.codahale.metrics.Counter;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Capture of the API traffic for the replay offline, the handler of the router ahead of the API routes.
+ * <p>
+ * A sampled request is recorded when its response ends: the method, the uri, the body with its content type,
+ * the accepted type and the arrival time since the start of the capture. Records are encoded on the event loop
+ * into a few bytes of varints and handed over to the "traffic-capture" thread which writes them through a direct
+ * buffer to {@code file}; the records waiting for the thread are bounded by {@code buffer_size} bytes,
+ * a record over the bound is dropped. All verticle instances of the process write to the same file,
+ * it's truncated when the first instance starts. A JSON body is recorded as it's decoded, re-encoded;
+ * a body streamed by its handler (the import) isn't recorded.
+ * <p>
+ * File: {@code "WTC1"}, the start of the capture (epoch ms); records of {@code method} (ordinal byte),
+ * {@code offset} (µs, varint), {@code uri}, {@code content_type} and {@code accept} (0 none, 1 json, 2 cbor, byte)
+ * and {@code body}, the strings and the body are prefixed by their varint length.
+ * <p>
+ * Config: {@code "traffic_capture": {"enabled": false, "file": "db/capture/traffic.capture", "sample_rate": 1.0,
+ * "buffer_size": 1048576}}
+ */
+public class TrafficCapture implements Handler<RoutingContext> {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    // "WTC1"
+    private static final int MAGIC = 0x57544331;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final HttpMethod[] METHODS = HttpMethod.values();
+    private static final Map<Path, Writer> writers = new ConcurrentHashMap<>();
+
+    private final Vertx vertx;
+    private final boolean enabled;
+    private final double sampleRate;
+    private final Writer writer;
+
+    public TrafficCapture(Vertx vertx, JsonObject config) {
+        JsonObject conf = config.getJsonObject("traffic_capture", new JsonObject());
+        this.vertx = vertx;
+        this.enabled = conf.getBoolean("enabled", false);
+        this.sampleRate = conf.getDouble("sample_rate", 1.0);
+        this.writer = enabled ? Writer.acquire(Paths.get(conf.getString("file", "db/capture/traffic.capture")),
+                conf.getLong("buffer_size", 1024L * 1024)) : null;
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        if (enabled && (sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate)) {
+            long arrival = System.nanoTime();
+            context.addBodyEndHandler(v -> writer.offer(encode(context, arrival)));
+        }
+        context.next();
+    }
+
+    /**
+     * Writes the rest of the records; the file is closed by the last instance
+     */
+    public void close(Handler<AsyncResult<Void>> closed) {
+        if (!enabled) closed.handle(Future.succeededFuture());
+        else vertx.executeBlocking(future -> {
+            writer.release();
+            future.complete();
+        }, false, closed);
+    }
+
+    private byte[] encode(RoutingContext context, long arrival) {
+        byte[] uri = context.request().uri().getBytes(StandardCharsets.UTF_8);
+        byte[] body = body(context);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + uri.length + body.length);
+        out.write(context.request().method().ordinal());
+        writeVarLong(out, Math.max(0, TimeUnit.NANOSECONDS.toMicros(arrival - writer.startNanos)));
+        writeVarLong(out, uri.length);
+        out.write(uri, 0, uri.length);
+        out.write(body.length == 0 ? 0 : Representation.isCbor(context) ? 2 : 1);
+        String accept = context.request().getHeader("accept");
+        out.write(accept != null && accept.contains(Representation.CBOR) ? 2 : accept != null && accept.contains(Representation.JSON) ? 1 : 0);
+        writeVarLong(out, body.length);
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] body(RoutingContext context) {
+        if (context.data().containsKey(JsonBodyHandler.JSON_BODY)) {
+            return Json.encode(context.get(JsonBodyHandler.JSON_BODY)).getBytes(StandardCharsets.UTF_8);
+        }
+        io.vertx.core.buffer.Buffer body = context.getBody();
+        return body == null ? new byte[0] : body.getBytes();
+    }
+
+    /**
+     * Reads the records of a capture ordered by the arrival
+     */
+    public static List<Record> read(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) throw new IOException("not a traffic capture: " + file);
+        buffer.getLong();
+        List<Record> records = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            if (!readable(buffer)) {
+                logger.warn("traffic capture {} ends with a partial record at {}", file, start);
+                break;
+            }
+            HttpMethod method = METHODS[buffer.get()];
+            long offsetMicros = readVarLong(buffer);
+            byte[] uri = new byte[(int) readVarLong(buffer)];
+            buffer.get(uri);
+            int contentType = buffer.get();
+            int accept = buffer.get();
+            byte[] body = new byte[(int) readVarLong(buffer)];
+            buffer.get(body);
+            records.add(new Record(method, offsetMicros, new String(uri, StandardCharsets.UTF_8),
+                    type(contentType), type(accept), io.vertx.core.buffer.Buffer.buffer(body)));
+        }
+        records.sort(Comparator.comparingLong(Record::getOffsetMicros));
+        return records;
+    }
+
+    /**
+     * @return true if the buffer holds a whole record at its position
+     */
+    private static boolean readable(ByteBuffer buffer) {
+        ByteBuffer record = buffer.duplicate();
+        try {
+            int method = record.get();
+            if (method < 0 || method >= METHODS.length) return false;
+            readVarLong(record);
+            ((Buffer) record).position(record.position() + (int) readVarLong(record));
+            record.get();
+            record.get();
+            long bodyLength = readVarLong(record);
+            return bodyLength <= record.remaining();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String type(int code) {
+        return code == 2 ? Representation.CBOR : code == 1 ? Representation.JSON : null;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    /**
+     * A captured request
+     */
+    public static final class Record {
+        private final HttpMethod method;
+        private final long offsetMicros;
+        private final String uri;
+        private final String contentType;
+        private final String accept;
+        private final io.vertx.core.buffer.Buffer body;
+
+        Record(HttpMethod method, long offsetMicros, String uri, String contentType, String accept, io.vertx.core.buffer.Buffer body) {
+            this.method = method;
+            this.offsetMicros = offsetMicros;
+            this.uri = uri;
+            this.contentType = contentType;
+            this.accept = accept;
+            this.body = body;
+        }
+
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the arrival since the start of the capture, µs
+         */
+        public long getOffsetMicros() {
+            return offsetMicros;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * @return the content type of the body or null without a body
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return the accepted type or null if the request hasn't told
+         */
+        public String getAccept() {
+            return accept;
+        }
+
+        public io.vertx.core.buffer.Buffer getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * The file of the capture shared by the instances and its thread
+     */
+    private static final class Writer implements Runnable {
+        private final Path file;
+        private final long capacity;
+        private final long startNanos = System.nanoTime();
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong pending = new AtomicLong();
+        private final Counter captured = Metrics.counter("traffic_capture.captured");
+        private final Counter dropped = Metrics.counter("traffic_capture.dropped");
+        private final Thread thread;
+        private volatile boolean closed;
+        private int users;
+
+        private Writer(Path file, long capacity) {
+            this.file = file;
+            this.capacity = capacity;
+            this.thread = new Thread(this, "traffic-capture");
+            thread.setDaemon(true);
+        }
+
+        static Writer acquire(Path file, long capacity) {
+            synchronized (writers) {
+                Writer writer = writers.computeIfAbsent(file.toAbsolutePath(), f -> new Writer(f, capacity));
+                if (writer.users++ == 0) writer.thread.start();
+                return writer;
+            }
+        }
+
+        /**
+         * Waits for the rest of the records to be written by the last user
+         */
+        void release() {
+            synchronized (writers) {
+                if (--users > 0) return;
+                writers.remove(file);
+            }
+            closed = true;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void offer(byte[] record) {
+            if (pending.addAndGet(record.length) > capacity) {
+                pending.addAndGet(-record.length);
+                dropped.inc();
+                return;
+            }
+            queue.offer(record);
+            captured.inc();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                try (FileChannel channel = FileChannel.open(file, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                    buffer.putInt(MAGIC).putLong(System.currentTimeMillis());
+                    while (true) {
+                        byte[] record = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (record == null) {
+                            flush(channel, buffer);
+                            if (closed && queue.isEmpty()) break;
+                            continue;
+                        }
+                        pending.addAndGet(-record.length);
+                        if (buffer.remaining() < record.length) flush(channel, buffer);
+                        if (record.length > buffer.capacity()) channel.write(ByteBuffer.wrap(record));
+                        else buffer.put(record);
+                    }
+                    flush(channel, buffer);
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                logger.warn("traffic capture to {} has failed", file, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+            ((Buffer) buffer).flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            ((Buffer) buffer).clear();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package ru.shishmakov;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import ru.shishmakov.db.DbGuard;
+import ru.shishmakov.db.DbGuard.AnswerException;
+import ru.shishmakov.metrics.Metrics;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for deadlines and the circuit breaker around database calls
+ */
+@RunWith(VertxUnitRunner.class)
+public class DbGuardTest {
+
+    private static final AtomicInteger guards = new AtomicInteger();
+
+    private Vertx vertx;
+    private String name;
+    private DbGuard guard;
+
+    @Before
+    public void setUp() {
+        vertx = Vertx.vertx();
+        name = "guard_test_" + guards.incrementAndGet();
+        guard = new DbGuard(vertx, name, new JsonObject()
+                .put("deadlines", new JsonObject().put("default", 5000).put("select_one", 100))
+                .put("circuit_breaker", new JsonObject().put("max_failures", 2).put("reset_timeout", 300)));
+    }
+
+    @After
+    public void tearDown(TestContext context) {
+        guard.close();
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void slowCommandShouldBeUnavailableAtDeadlineOfOperation(TestContext context) {
+        Async async = context.async();
+        long start = System.currentTimeMillis();
+        vertx.runOnContext(v -> guard.<String>execute("select_one", null, future -> {
+            // the database never answers
+        }, result -> {
+            context.assertTrue(result.failed(), "slow command has succeeded");
+            context.assertTrue(DbGuard.isUnavailable(result.cause()), "slow command isn't answered by 503");
+            context.assertTrue(result.cause().getCause() instanceof TimeoutException, "deadline isn't the cause");
+            context.assertTrue(System.currentTimeMillis() - start < 2000, "deadline of the operation isn't applied");
+            async.complete();
+        }));
+    }
+
+    @Test
+    public void breakerShouldOpenAfterRepeatedFailures(TestContext context) {
+        Async async = context.async();
+        AtomicInteger calls = new AtomicInteger();
+        vertx.runOnContext(v -> fail(2, calls, () -> guard.<String>execute("select_all", null, future -> {
+            calls.incrementAndGet();
+            future.complete("whiskies");
+        }, result -> {
+            context.assertEquals(2, calls.get(), "command is called while the circuit is open");
+            context.assertTrue(DbGuard.isUnavailable(result.cause()), "open circuit isn't answered by 503");
+            context.assertEquals("OPEN", state(), "circuit isn't open");
+            async.complete();
+        })));
+    }
+
+    @Test
+    public void openBreakerShouldServeReadFromFallbackCache(TestContext context) {
+        Async async = context.async();
+        AtomicInteger calls = new AtomicInteger();
+        vertx.runOnContext(v -> guard.<String>execute("select_all", "all", future -> future.complete("whiskies"), first -> {
+            context.assertTrue(first.succeeded(), "read has failed");
+            fail(2, calls, () -> guard.<String>execute("select_all", "all", future -> {
+                calls.incrementAndGet();
+                future.fail("connection refused");
+            }, result -> {
+                context.assertEquals(2, calls.get(), "command is called while the circuit is open");
+                context.assertTrue(result.succeeded(), "read isn't served from the fallback cache");
+                context.assertEquals("whiskies", result.result(), "remembered read isn't served");
+                async.complete();
+            }));
+        }));
+    }
+
+    @Test
+    public void halfOpenBreakerShouldCloseOnSuccess(TestContext context) {
+        Async async = context.async();
+        AtomicInteger calls = new AtomicInteger();
+        vertx.runOnContext(v -> fail(2, calls, () -> {
+            context.assertEquals("OPEN", state(), "circuit isn't open");
+            vertx.setTimer(600, t -> {
+                context.assertEquals("HALF_OPEN", state(), "circuit isn't half-open after the reset timeout");
+                guard.<String>execute("select_all", null, future -> {
+                    calls.incrementAndGet();
+                    future.complete("whiskies");
+                }, result -> {
+                    context.assertEquals(3, calls.get(), "trial command isn't called");
+                    context.assertEquals("whiskies", result.result(), "trial command isn't answered");
+                    context.assertEquals("CLOSED", state(), "circuit isn't closed");
+                    async.complete();
+                });
+            });
+        }));
+    }
+
+    @Test
+    public void answerShouldNotTripBreaker(TestContext context) {
+        Async async = context.async();
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger answers = new AtomicInteger();
+        vertx.runOnContext(v -> {
+            for (int i = 0; i < 3; i++) {
+                guard.<String>execute("select_one", null, future -> {
+                    calls.incrementAndGet();
+                    future.fail(new AnswerException("not found whisky with id: 50"));
+                }, result -> {
+                    context.assertTrue(result.cause() instanceof AnswerException, "answer isn't passed through");
+                    context.assertFalse(DbGuard.isUnavailable(result.cause()), "answer is taken for a failure");
+                    if (answers.incrementAndGet() < 3) return;
+                    context.assertEquals(3, calls.get(), "command isn't called after answers");
+                    context.assertEquals("CLOSED", state(), "answers have opened the circuit");
+                    async.complete();
+                });
+            }
+        });
+    }
+
+    /**
+     * Fails the given number of commands one after another, then runs the next step
+     */
+    private void fail(int times, AtomicInteger calls, Runnable next) {
+        if (times == 0) {
+            next.run();
+            return;
+        }
+        guard.<String>execute("select_all", null, future -> {
+            calls.incrementAndGet();
+            future.fail("connection refused");
+        }, result -> fail(times - 1, calls, next));
+    }
+
+    private Object state() {
+        return Metrics.registry().getGauges().get("breaker." + name + ".state").getValue();
+    }
+}
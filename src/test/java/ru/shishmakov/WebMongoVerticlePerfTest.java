@@ -0,0 +1,66 @@
+package ru.shishmakov;
+
+import de.flapdoodle.embed.mongo.MongodProcess;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+/**
+ * Performance regression tests for vert.x web app on MongoDB
+ */
+@RunWith(VertxUnitRunner.class)
+public class WebMongoVerticlePerfTest extends WebVerticlePerformance {
+
+    private static final String DATABASE = "whiskies_perf";
+
+    private MongodProcess mongo;
+    private Vertx vertx;
+    private int vertxPort;
+
+    @Before
+    public void setUp(TestContext context) throws IOException {
+        int mongoPort = WebVerticle.getFreeLocalPort();
+        mongo = MongodStarter.getDefaultInstance()
+                .prepare(new MongodConfigBuilder()
+                        .version(Version.Main.PRODUCTION)
+                        .net(new Net(mongoPort, Network.localhostIsIPv6()))
+                        .build())
+                .start();
+
+        vertxPort = WebVerticle.getFreeLocalPort();
+        DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject()
+                .put("http.port", vertxPort)
+                .put("db_name", DATABASE)
+                .put("connection_string", "mongodb://localhost:" + mongoPort));
+        vertx = Vertx.vertx();
+        vertx.deployVerticle(WebMongoVerticle.class, options, context.asyncAssertSuccess());
+    }
+
+    @After
+    public void tearDown(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+        mongo.stop();
+    }
+
+    @Override
+    protected String getName() {
+        return "mongo";
+    }
+
+    @Override
+    protected int getPort() {
+        return vertxPort;
+    }
+}
@@ -9,15 +9,22 @@ import de.flapdoodle.embed.process.runtime.Network;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestContext;
 import io.vertx.ext.unit.junit.VertxUnitRunner;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.junit.runner.RunWith;
+import ru.shishmakov.db.MongoSchema;
 
 import java.io.IOException;
+import java.util.HashSet;
+
+import static java.util.Arrays.asList;
 
 @RunWith(VertxUnitRunner.class)
 public class WebMongoVerticleTest extends WebVerticle {
@@ -53,7 +60,9 @@ public class WebMongoVerticleTest extends WebVerticle {
         DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject()
                 .put("http.port", vertxPort)
                 .put("db_name", DATABASE)
-                .put("connection_string", "mongodb://localhost:" + mongoPort));
+                .put("connection_string", "mongodb://localhost:" + mongoPort)
+                .put("response_cache", new JsonObject().put("enabled", true))
+                .put("hot_keys", new JsonObject().put("enabled", true)));
         vertx = Vertx.vertx();
         vertx.deployVerticle(WebMongoVerticle.class, options, context.asyncAssertSuccess());
     }
@@ -65,6 +74,68 @@ public class WebMongoVerticleTest extends WebVerticle {
         mongo.stop();
     }
 
+    @Test
+    public void updateOneShouldKeepCanonicalFieldsOnly(TestContext context) {
+        Async async = context.async();
+        MongoClient client = mongoClient();
+        vertx.createHttpClient().put(vertxPort, "localhost", "/api/whiskies/1", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            client.findOne("whiskies", new JsonObject().put("_id", 1), null, context.asyncAssertSuccess(document -> {
+                context.assertEquals(new HashSet<>(asList("_id", "NAME", "ORIGIN", "VERSION")), document.fieldNames(),
+                        "document isn't canonical");
+                context.assertEquals("Jameson", document.getString("NAME"), "name isn't updated");
+                client.close();
+                async.complete();
+            }));
+        }).putHeader("content-type", "application/json")
+                .end(new JsonObject().put("name", "Jameson").put("origin", "Ireland").put("comment", "extra").encode());
+    }
+
+    @Test
+    public void importShouldUnsetMissingFields(TestContext context) {
+        String src = "id,name,origin\n1,Talisker 10,\n";
+        Async async = context.async();
+        MongoClient client = mongoClient();
+        vertx.createHttpClient().post(vertxPort, "localhost", "/api/whiskies/_import?format=csv", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            client.findOne("whiskies", new JsonObject().put("_id", 1), null, context.asyncAssertSuccess(document -> {
+                context.assertEquals(new HashSet<>(asList("_id", "NAME", "VERSION")), document.fieldNames(),
+                        "missing origin isn't unset");
+                client.close();
+                async.complete();
+            }));
+        }).putHeader("content-type", "text/csv")
+                .putHeader("content-length", String.valueOf(src.length()))
+                .end(src);
+    }
+
+    @Test
+    public void migrateShouldRemoveExtraFields(TestContext context) {
+        Async async = context.async();
+        MongoClient client = mongoClient();
+        JsonObject bloated = new JsonObject().put("_id", 100).put("NAME", "Jameson").put("ORIGIN", "Ireland").put("VERSION", 2)
+                .put("name", "Jameson").put("origin", "Ireland").put("comment", "extra");
+        client.save("whiskies", bloated, context.asyncAssertSuccess(saved ->
+                new MongoSchema(vertx, client, "whiskies", new JsonObject()).migrate().setHandler(context.asyncAssertSuccess(report -> {
+                    context.assertEquals(1L, report.getLong("migrated"), "document isn't migrated");
+                    context.assertEquals(3L, report.getLong("removed_fields"), "fields aren't removed");
+                    context.assertTrue(report.getJsonObject("after").getLong("size") < report.getJsonObject("before").getLong("size"),
+                            "collection doesn't shrink");
+                    client.findOne("whiskies", new JsonObject().put("_id", 100), null, context.asyncAssertSuccess(document -> {
+                        context.assertEquals(new JsonObject().put("_id", 100).put("NAME", "Jameson").put("ORIGIN", "Ireland")
+                                .put("VERSION", 2), document, "document isn't canonical");
+                        client.close();
+                        async.complete();
+                    }));
+                }))));
+    }
+
+    private MongoClient mongoClient() {
+        return MongoClient.createNonShared(vertx, new JsonObject()
+                .put("db_name", DATABASE)
+                .put("connection_string", "mongodb://localhost:" + mongoPort));
+    }
+
     @Override
     protected Vertx getVertx() {
         return vertx;
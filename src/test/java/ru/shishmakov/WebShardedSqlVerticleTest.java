@@ -0,0 +1,89 @@
+package ru.shishmakov;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import ru.shishmakov.blog.Whisky;
+
+import java.io.IOException;
+
+/**
+ * Unit tests for vert.x web app with the catalog spread over 3 HSQLDB shards
+ */
+@RunWith(VertxUnitRunner.class)
+public class WebShardedSqlVerticleTest extends WebVerticle {
+
+    private int port;
+    private Vertx vertx;
+
+    @Before
+    public void setUp(TestContext context) throws IOException {
+        port = getFreeLocalPort();
+        DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject()
+                .put("http.port", port)
+                .put("url", "jdbc:hsqldb:mem:whisky_store_sharded;shutdown=true")
+                .put("driver_class", "org.hsqldb.jdbcDriver")
+                .put("shards", 3)
+                .put("id_block_size", 10)
+                .put("response_cache", new JsonObject().put("enabled", true))
+                .put("hot_keys", new JsonObject().put("enabled", true))
+                .put("idempotency", new JsonObject().put("persistent", true)));
+        vertx = Vertx.vertx();
+        vertx.deployVerticle(WebSqlVerticle.class, options, context.asyncAssertSuccess());
+    }
+
+    @After
+    public void tearDown(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void postApiShouldNotReuseImportedIds(TestContext context) {
+        String whisky = Json.encodePrettily(new Whisky("Jameson", "Ireland"));
+        // the first whisky takes the block of ids 2..11, the import writes ids inside and past it
+        String src = "id,name,origin\n5,Talisker 10,Scotland\n25,Lagavulin 16,Scotland\n";
+        Async async = context.async();
+        HttpClient client = vertx.createHttpClient();
+        client.post(port, "localhost", "/api/whiskies/", firstResponse -> {
+            context.assertEquals(201, firstResponse.statusCode(), "status code isn't 'created'");
+            client.post(port, "localhost", "/api/whiskies/_import?format=csv", importResponse -> {
+                context.assertEquals(200, importResponse.statusCode(), "status code isn't 'ok'");
+                client.post(port, "localhost", "/api/whiskies/", response -> {
+                    context.assertEquals(201, response.statusCode(), "status code isn't 'created'");
+                    response.bodyHandler(body -> {
+                        context.assertEquals(26, Json.decodeValue(body, Whisky.class).getId(), "whisky id isn't past the imported ids");
+                        client.getNow(port, "localhost", "/api/whiskies/25", getResponse -> getResponse.bodyHandler(imported -> {
+                            context.assertEquals("Lagavulin 16", Json.decodeValue(imported, Whisky.class).getName(), "imported whisky is overwritten");
+                            async.complete();
+                        }));
+                    });
+                }).putHeader("content-type", "application/json")
+                        .putHeader("content-length", String.valueOf(whisky.length()))
+                        .end(whisky);
+            }).putHeader("content-type", "text/csv")
+                    .putHeader("content-length", String.valueOf(src.length()))
+                    .end(src);
+        }).putHeader("content-type", "application/json")
+                .putHeader("content-length", String.valueOf(whisky.length()))
+                .end(whisky);
+    }
+
+    @Override
+    protected Vertx getVertx() {
+        return vertx;
+    }
+
+    @Override
+    protected int getPort() {
+        return port;
+    }
+}
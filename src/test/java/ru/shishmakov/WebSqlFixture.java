@@ -0,0 +1,90 @@
+package ru.shishmakov;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.TestContext;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Fixture of the tests which deploy {@link WebSqlVerticle} with a config of their own: a free port, Vert.x
+ * and temporary directories; Vert.x is closed before the database of the test is released and the directories are removed
+ */
+public abstract class WebSqlFixture {
+
+    protected int port;
+    protected Vertx vertx;
+    private final List<Path> dirs = new ArrayList<>();
+
+    @Before
+    public void setUpFixture() throws IOException {
+        port = WebVerticle.getFreeLocalPort();
+        vertx = Vertx.vertx();
+    }
+
+    @After
+    public void tearDownFixture() throws Exception {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        vertx.close(closeResult -> {
+            if (closeResult.succeeded()) closed.complete(null);
+            else closed.completeExceptionally(closeResult.cause());
+        });
+        closed.join();
+        release();
+        for (Path dir : dirs) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.map(Path::toFile).sorted(Comparator.reverseOrder()).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Releases the database of the test once the pools of the verticle are closed
+     */
+    protected void release() throws Exception {
+    }
+
+    /**
+     * @return a temporary directory removed after the test
+     */
+    protected Path createTempDirectory(String prefix) throws IOException {
+        Path dir = Files.createTempDirectory(prefix);
+        dirs.add(dir);
+        return dir;
+    }
+
+    protected void deploy(TestContext context, JsonObject config) {
+        deploy(context, config, id -> {
+        });
+    }
+
+    protected void deploy(TestContext context, JsonObject config, Handler<String> deployed) {
+        deploy(context, config, 1, deployed);
+    }
+
+    /**
+     * Deploys the verticle on the port of the test with the HSQLDB driver
+     *
+     * @param config    url and other keys of the test
+     * @param instances instances of the verticle sharing the port and the database
+     */
+    protected void deploy(TestContext context, JsonObject config, int instances, Handler<String> deployed) {
+        DeploymentOptions options = new DeploymentOptions().setInstances(instances).setConfig(new JsonObject()
+                .put("http.port", port)
+                .put("driver_class", "org.hsqldb.jdbcDriver")
+                .mergeIn(config));
+        vertx.deployVerticle(WebSqlVerticle.class.getName(), options, context.asyncAssertSuccess(deployed));
+    }
+}
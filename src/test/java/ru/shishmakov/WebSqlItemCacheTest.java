@@ -0,0 +1,114 @@
+package ru.shishmakov;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import ru.shishmakov.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Unit tests for the snapshot of the item cache: the verticle is deployed again over the same database,
+ * the records are changed behind the back of the app to tell an item of the cache from a record of the database
+ */
+@RunWith(VertxUnitRunner.class)
+public class WebSqlItemCacheTest extends WebSqlFixture {
+    private static final String URL = "jdbc:hsqldb:mem:whisky_store_item_cache;shutdown=true";
+
+    private Path snapshotDir;
+    // the in-memory database outlives the verticle while a connection is open
+    private Connection con;
+
+    @Before
+    public void setUp() throws IOException, SQLException {
+        con = DriverManager.getConnection(URL, "SA", "");
+        snapshotDir = createTempDirectory("whisky-item-cache");
+    }
+
+    @Override
+    protected void release() throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("DROP TABLE whisky IF EXISTS");
+        }
+        con.close();
+    }
+
+    @Test
+    public void getOneShouldBeServedFromSnapshotAfterRestart(TestContext context) {
+        Async async = context.async();
+        long loaded = Metrics.counter("item_cache.sql.loaded").getCount();
+        deploy(context, firstId -> getName(context, name -> vertx.undeploy(firstId, context.asyncAssertSuccess(undeployed -> {
+            context.assertTrue(Files.exists(snapshotDir.resolve("sql.snapshot")), "snapshot isn't written on stop");
+            // the version isn't changed, the item of the snapshot is still valid
+            execute(context, "UPDATE whisky SET name = 'Behind the cache' WHERE id = 1");
+            deploy(context, secondId -> getName(context, restartedName -> {
+                context.assertEquals(name, restartedName, "item isn't served from the snapshot");
+                context.assertEquals(loaded + 2, Metrics.counter("item_cache.sql.loaded").getCount(), "snapshot isn't loaded");
+                async.complete();
+            }));
+        }))));
+    }
+
+    @Test
+    public void getOneShouldNotBeServedFromStaleSnapshot(TestContext context) {
+        Async async = context.async();
+        long dropped = Metrics.counter("item_cache.sql.dropped").getCount();
+        deploy(context, firstId -> getName(context, name -> vertx.undeploy(firstId, context.asyncAssertSuccess(undeployed -> {
+            execute(context, "UPDATE whisky SET name = 'Updated', version = version + 1 WHERE id = 1");
+            deploy(context, secondId -> getName(context, restartedName -> {
+                context.assertEquals("Updated", restartedName, "stale item of the snapshot is served");
+                context.assertEquals(dropped + 1, Metrics.counter("item_cache.sql.dropped").getCount(), "stale item isn't dropped");
+                async.complete();
+            }));
+        }))));
+    }
+
+    @Test
+    public void getOneShouldBeServedFromPrefetchWithoutSnapshot(TestContext context) {
+        Async async = context.async();
+        long prefetched = Metrics.counter("item_cache.sql.prefetched").getCount();
+        deploy(context, id -> {
+            context.assertEquals(prefetched + 2, Metrics.counter("item_cache.sql.prefetched").getCount(), "records aren't prefetched");
+            execute(context, "UPDATE whisky SET name = 'Behind the cache' WHERE id = 1");
+            getName(context, name -> {
+                context.assertNotEquals("Behind the cache", name, "item isn't served from the cache");
+                async.complete();
+            });
+        });
+    }
+
+    private void deploy(TestContext context, Handler<String> deployed) {
+        deploy(context, new JsonObject()
+                .put("url", URL)
+                .put("item_cache", new JsonObject()
+                        .put("enabled", true)
+                        .put("snapshot_dir", snapshotDir.toString())
+                        .put("snapshot_interval", 600000)), deployed);
+    }
+
+    private void getName(TestContext context, Handler<String> next) {
+        vertx.createHttpClient().getNow(port, "localhost", "/api/whiskies/1", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            response.bodyHandler(body -> next.handle(body.toJsonObject().getString("name")));
+        });
+    }
+
+    private void execute(TestContext context, String sql) {
+        try (Statement statement = con.createStatement()) {
+            statement.execute(sql);
+        } catch (SQLException e) {
+            context.fail(e);
+        }
+    }
+}
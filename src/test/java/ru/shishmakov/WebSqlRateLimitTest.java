@@ -0,0 +1,84 @@
+package ru.shishmakov;
+
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit tests for the rate limit: the budgets are small and don't refill while a test runs
+ */
+@RunWith(VertxUnitRunner.class)
+public class WebSqlRateLimitTest extends WebSqlFixture {
+
+    @Before
+    public void setUp(TestContext context) {
+        deploy(context, new JsonObject()
+                .put("url", "jdbc:hsqldb:mem:whisky_store_rate_limit;shutdown=true")
+                .put("rate_limit", new JsonObject()
+                        .put("enabled", true)
+                        .put("api_keys", new JsonArray().add("other"))
+                        .put("read_rate", 0.001)
+                        .put("read_burst", 2)
+                        .put("write_rate", 0.001)
+                        .put("write_burst", 1)));
+    }
+
+    @Test
+    public void readsOverBurstShouldBeLimited(TestContext context) {
+        Async async = context.async();
+        HttpClient client = vertx.createHttpClient();
+        client.getNow(port, "localhost", "/api/whiskies/1", first -> {
+            context.assertEquals(200, first.statusCode(), "first read is limited");
+            context.assertEquals("2", first.getHeader("ratelimit-limit"), "limit isn't the burst");
+            context.assertEquals("1", first.getHeader("ratelimit-remaining"), "token isn't taken");
+            client.getNow(port, "localhost", "/api/whiskies/1", second -> {
+                context.assertEquals(200, second.statusCode(), "read within burst is limited");
+                context.assertEquals("0", second.getHeader("ratelimit-remaining"), "token isn't taken");
+                client.getNow(port, "localhost", "/api/whiskies/1", third -> {
+                    context.assertEquals(429, third.statusCode(), "read over burst isn't limited");
+                    context.assertNotNull(third.getHeader("retry-after"), "retry-after is missing");
+                    context.assertNotNull(third.getHeader("ratelimit-reset"), "ratelimit-reset is missing");
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void budgetsShouldBeSeparatedByKindAndKey(TestContext context) {
+        Async async = context.async();
+        HttpClient client = vertx.createHttpClient();
+        client.delete(port, "localhost", "/api/whiskies/1", first -> {
+            context.assertNotEquals(429, first.statusCode(), "first write is limited");
+            client.delete(port, "localhost", "/api/whiskies/1", second -> {
+                context.assertEquals(429, second.statusCode(), "write over burst isn't limited");
+                client.getNow(port, "localhost", "/api/whiskies/2", read -> {
+                    context.assertNotEquals(429, read.statusCode(), "read is limited by the writes");
+                    client.delete(port, "localhost", "/api/whiskies/2", other -> {
+                        context.assertNotEquals(429, other.statusCode(), "another key is limited");
+                        async.complete();
+                    }).putHeader("x-api-key", "other").end();
+                });
+            }).end();
+        }).end();
+    }
+
+    @Test
+    public void unknownKeysShouldShareBudgetOfAddress(TestContext context) {
+        Async async = context.async();
+        HttpClient client = vertx.createHttpClient();
+        client.delete(port, "localhost", "/api/whiskies/1", first -> {
+            context.assertNotEquals(429, first.statusCode(), "first write is limited");
+            client.delete(port, "localhost", "/api/whiskies/1", second -> {
+                context.assertEquals(429, second.statusCode(), "unknown key has a budget of its own");
+                async.complete();
+            }).putHeader("x-api-key", "invented-2").end();
+        }).putHeader("x-api-key", "invented-1").end();
+    }
+}
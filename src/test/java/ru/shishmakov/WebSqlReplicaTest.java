@@ -0,0 +1,105 @@
+package ru.shishmakov;
+
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import ru.shishmakov.web.ReadYourWrites;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Unit tests for reads of the replica: the replica is a database of its own which is never written by the app,
+ * so a read tells by its result whether it went to the primary or to the replica
+ */
+@RunWith(VertxUnitRunner.class)
+public class WebSqlReplicaTest extends WebSqlFixture {
+    private static final String REPLICA_URL = "jdbc:hsqldb:mem:whisky_store_replica;shutdown=true";
+
+    // the in-memory replica lives while a connection is open
+    private Connection replicaCon;
+
+    @Before
+    public void setUp(TestContext context) throws SQLException {
+        replicaCon = DriverManager.getConnection(REPLICA_URL, "SA", "");
+        try (Statement statement = replicaCon.createStatement()) {
+            statement.execute("CREATE TABLE whisky (id INTEGER IDENTITY, name varchar(100), origin varchar(100))");
+            statement.execute("INSERT INTO whisky (id, name, origin) VALUES (1, 'Replica 10', 'Scotland, Island')");
+        }
+        deploy(context, new JsonObject()
+                .put("url", "jdbc:hsqldb:mem:whisky_store_primary;shutdown=true")
+                .put("response_cache", new JsonObject().put("enabled", true))
+                .put("replica", new JsonObject()
+                        .put("enabled", true)
+                        .put("url", REPLICA_URL)
+                        .put("sticky_window", 60000)));
+    }
+
+    @Override
+    protected void release() throws SQLException {
+        replicaCon.close();
+    }
+
+    @Test
+    public void getOneShouldReadReplica(TestContext context) {
+        Async async = context.async();
+        vertx.createHttpClient().getNow(port, "localhost", "/api/whiskies/1", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            response.bodyHandler(body -> {
+                context.assertEquals("Replica 10", body.toJsonObject().getString("name"), "item isn't read from the replica");
+                async.complete();
+            });
+        });
+    }
+
+    @Test
+    public void getOneShouldReadOwnWriteFromPrimary(TestContext context) {
+        Async async = context.async();
+        HttpClient client = vertx.createHttpClient();
+        String update = new JsonObject().put("name", "Talisker 10").put("origin", "Scotland, Island").encode();
+        client.put(port, "localhost", "/api/whiskies/1", updateResponse -> {
+            context.assertEquals(200, updateResponse.statusCode(), "status code isn't 'ok'");
+            String cookie = updateResponse.cookies().stream()
+                    .filter(c -> c.startsWith(ReadYourWrites.COOKIE + '='))
+                    .map(c -> c.substring(0, c.indexOf(';')))
+                    .findFirst()
+                    .orElse(null);
+            context.assertNotNull(cookie, "write doesn't make the client sticky");
+
+            client.get(port, "localhost", "/api/whiskies/1", writerResponse -> writerResponse.bodyHandler(writerBody -> {
+                context.assertEquals("Talisker 10", writerBody.toJsonObject().getString("name"), "writer doesn't read its write");
+                client.getNow(port, "localhost", "/api/whiskies/1", otherResponse -> otherResponse.bodyHandler(otherBody -> {
+                    context.assertEquals("Replica 10", otherBody.toJsonObject().getString("name"), "other client doesn't read the replica");
+                    async.complete();
+                }));
+            })).putHeader("cookie", cookie).end();
+        }).putHeader("content-type", "application/json").end(update);
+    }
+
+    @Test
+    public void getAllShouldNotCacheReplicaAfterWrite(TestContext context) {
+        Async async = context.async();
+        HttpClient client = vertx.createHttpClient();
+        client.delete(port, "localhost", "/api/whiskies/0", deleteResponse -> {
+            context.assertEquals(204, deleteResponse.statusCode(), "status code isn't 'no content'");
+            // a response of the replica within the sticky window isn't cached for the writer
+            client.getNow(port, "localhost", "/api/whiskies", otherResponse -> otherResponse.bodyHandler(otherBody -> {
+                context.assertEquals("Replica 10", otherBody.toJsonArray().getJsonObject(0).getString("name"),
+                        "other client doesn't read the replica");
+                String cookie = deleteResponse.cookies().get(0);
+                client.get(port, "localhost", "/api/whiskies", writerResponse -> writerResponse.bodyHandler(writerBody -> {
+                    context.assertEquals("Talisker 57° North", writerBody.toJsonArray().getJsonObject(0).getString("name"),
+                            "writer is served the response of the replica");
+                    async.complete();
+                })).putHeader("cookie", cookie.substring(0, cookie.indexOf(';'))).end();
+            }));
+        }).end();
+    }
+}
@@ -0,0 +1,117 @@
+package ru.shishmakov;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import ru.shishmakov.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Unit tests for the storage profile of a file-mode database: the table type is read by a connection of the test
+ * which keeps the database open
+ */
+@RunWith(VertxUnitRunner.class)
+public class WebSqlStorageTest extends WebSqlFixture {
+    private String url;
+    // the database is shut down by the test once the pools of the verticle are closed
+    private Connection con;
+
+    @Before
+    public void setUp() throws IOException, SQLException {
+        Path dir = createTempDirectory("whisky-storage");
+        url = "jdbc:hsqldb:file:" + dir.resolve("whisky_store");
+        con = DriverManager.getConnection(url, "SA", "");
+    }
+
+    @Override
+    protected void release() throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void tableShouldBeCreatedCached(TestContext context) {
+        Async async = context.async();
+        deployProfile(context, new JsonObject().put("table_type", "cached").put("cache_rows", 1000), id -> getOne(context,
+                v -> {
+                    context.assertEquals("CACHED", tableType(context), "table isn't cached");
+                    vertx.undeploy(id, context.asyncAssertSuccess(undeployed -> async.complete()));
+                }));
+    }
+
+    @Test
+    public void memoryTableShouldBeConvertedToCached(TestContext context) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE MEMORY TABLE whisky (id INTEGER IDENTITY, name varchar(100), origin varchar(100),"
+                    + " version INTEGER DEFAULT 0 NOT NULL)");
+            statement.execute("INSERT INTO whisky (id, name, origin) VALUES (1, 'Talisker 57° North', 'Scotland, Island')");
+        }
+        Async async = context.async();
+        deployProfile(context, new JsonObject().put("table_type", "cached"), id -> getOne(context,
+                v -> {
+                    context.assertEquals("CACHED", tableType(context), "table isn't converted");
+                    vertx.undeploy(id, context.asyncAssertSuccess(undeployed -> async.complete()));
+                }));
+    }
+
+    @Test
+    public void checkpointShouldRunAtQuietTime(TestContext context) {
+        Async async = context.async();
+        long checkpoints = Metrics.timer("hsqldb.sql.checkpoints").getCount();
+        deployProfile(context, new JsonObject().put("checkpoint_interval", 50).put("quiet_period", 0), id -> vertx.setPeriodic(50, timerId -> {
+            if (Metrics.timer("hsqldb.sql.checkpoints").getCount() > checkpoints) {
+                vertx.cancelTimer(timerId);
+                vertx.undeploy(id, context.asyncAssertSuccess(undeployed -> async.complete()));
+            }
+        }));
+    }
+
+    @Test
+    public void checkpointShouldRunFromOneOfInstances(TestContext context) {
+        Async async = context.async();
+        long checkpoints = Metrics.timer("hsqldb.sql.checkpoints").getCount();
+        JsonObject hsqldb = new JsonObject().put("checkpoint_interval", 100).put("quiet_period", 0);
+        deploy(context, new JsonObject().put("url", url).put("hsqldb", hsqldb), 2, id -> vertx.setTimer(1000, t -> {
+            // 10 intervals, twice as many checkpoints if every instance ran its own
+            long count = Metrics.timer("hsqldb.sql.checkpoints").getCount() - checkpoints;
+            context.assertTrue(count > 0, "checkpoint hasn't run");
+            context.assertTrue(count <= 11, "checkpoint runs from every instance: " + count);
+            vertx.undeploy(id, context.asyncAssertSuccess(undeployed -> async.complete()));
+        }));
+    }
+
+    private void deployProfile(TestContext context, JsonObject hsqldb, Handler<String> deployed) {
+        deploy(context, new JsonObject().put("url", url).put("hsqldb", hsqldb), deployed);
+    }
+
+    private void getOne(TestContext context, Handler<Void> next) {
+        vertx.createHttpClient().getNow(port, "localhost", "/api/whiskies/1", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            response.bodyHandler(body -> next.handle(null));
+        });
+    }
+
+    private String tableType(TestContext context) {
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT HSQLDB_TYPE FROM INFORMATION_SCHEMA.SYSTEM_TABLES"
+                     + " WHERE TABLE_SCHEM = 'PUBLIC' AND TABLE_NAME = 'WHISKY'")) {
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException e) {
+            context.fail(e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ru.shishmakov;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import ru.shishmakov.web.TrafficCapture;
+import ru.shishmakov.web.TrafficCapture.Record;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Unit tests for the traffic capture: the file is read after the verticle is undeployed
+ */
+@RunWith(VertxUnitRunner.class)
+public class WebSqlTrafficCaptureTest extends WebSqlFixture {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = createTempDirectory("whisky-capture");
+    }
+
+    @Test
+    public void apiRequestsShouldBeCaptured(TestContext context) {
+        Async async = context.async();
+        Path file = dir.resolve("traffic.capture");
+        deployCapture(context, new JsonObject().put("enabled", true).put("file", file.toString()), id -> {
+            HttpClient client = vertx.createHttpClient();
+            client.getNow(port, "localhost", "/api/whiskies/1?fields=name", get -> get.bodyHandler(getBody -> client
+                    .put(port, "localhost", "/api/whiskies/1", put -> put.bodyHandler(putBody ->
+                            client.getNow(port, "localhost", "/health/live", health -> health.bodyHandler(healthBody ->
+                                    vertx.undeploy(id, context.asyncAssertSuccess(undeployed -> {
+                                        assertCaptured(context, read(context, file));
+                                        async.complete();
+                                    }))))))
+                    .putHeader("content-type", "application/json")
+                    .end(new JsonObject().put("name", "Jameson").put("origin", "Ireland").encode())));
+        });
+    }
+
+    @Test
+    public void unsampledRequestsShouldNotBeCaptured(TestContext context) {
+        Async async = context.async();
+        Path file = dir.resolve("unsampled.capture");
+        deployCapture(context, new JsonObject().put("enabled", true).put("file", file.toString()).put("sample_rate", 0.0), id ->
+                vertx.createHttpClient().getNow(port, "localhost", "/api/whiskies/1", get -> get.bodyHandler(body ->
+                        vertx.undeploy(id, context.asyncAssertSuccess(undeployed -> {
+                            context.assertTrue(read(context, file).isEmpty(), "unsampled request is captured");
+                            async.complete();
+                        })))));
+    }
+
+    private void deployCapture(TestContext context, JsonObject capture, Handler<String> deployed) {
+        deploy(context, new JsonObject()
+                .put("url", "jdbc:hsqldb:mem:whisky_store_capture;shutdown=true")
+                .put("traffic_capture", capture), deployed);
+    }
+
+    /**
+     * The get and the put of the api are captured, the probe isn't
+     */
+    private static void assertCaptured(TestContext context, List<Record> records) {
+        context.assertEquals(2, records.size(), "api requests aren't captured");
+        context.assertEquals(HttpMethod.GET, records.get(0).getMethod(), "method isn't captured");
+        context.assertEquals("/api/whiskies/1?fields=name", records.get(0).getUri(), "uri isn't captured");
+        context.assertEquals(0, records.get(0).getBody().length(), "body of get is captured");
+        context.assertEquals(HttpMethod.PUT, records.get(1).getMethod(), "method isn't captured");
+        context.assertEquals("application/json", records.get(1).getContentType(), "content type isn't captured");
+        context.assertEquals("Jameson", records.get(1).getBody().toJsonObject().getString("name"), "body isn't captured");
+        context.assertTrue(records.get(1).getOffsetMicros() >= records.get(0).getOffsetMicros(), "arrivals aren't ordered");
+    }
+
+    private static List<Record> read(TestContext context, Path file) {
+        try {
+            return TrafficCapture.read(file);
+        } catch (IOException e) {
+            context.fail(e);
+            return null;
+        }
+    }
+}
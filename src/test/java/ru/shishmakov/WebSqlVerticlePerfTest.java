@@ -0,0 +1,48 @@
+package ru.shishmakov;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+/**
+ * Performance regression tests for vert.x web app on HSQLDB
+ */
+@RunWith(VertxUnitRunner.class)
+public class WebSqlVerticlePerfTest extends WebVerticlePerformance {
+
+    private int port;
+    private Vertx vertx;
+
+    @Before
+    public void setUp(TestContext context) throws IOException {
+        port = WebVerticle.getFreeLocalPort();
+        DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject()
+                .put("http.port", port)
+                .put("url", "jdbc:hsqldb:mem:whisky_store_perf;shutdown=true")
+                .put("driver_class", "org.hsqldb.jdbcDriver"));
+        vertx = Vertx.vertx();
+        vertx.deployVerticle(WebSqlVerticle.class, options, context.asyncAssertSuccess());
+    }
+
+    @After
+    public void tearDown(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    @Override
+    protected String getName() {
+        return "sql";
+    }
+
+    @Override
+    protected int getPort() {
+        return port;
+    }
+}
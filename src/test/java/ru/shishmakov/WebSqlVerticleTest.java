@@ -26,7 +26,9 @@ public class WebSqlVerticleTest extends WebVerticle {
         DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject()
                 .put("http.port", port)
                 .put("url", "jdbc:hsqldb:mem:whisky_store;shutdown=true")
-                .put("driver_class", "org.hsqldb.jdbcDriver"));
+                .put("driver_class", "org.hsqldb.jdbcDriver")
+                .put("response_cache", new JsonObject().put("enabled", true))
+                .put("hot_keys", new JsonObject().put("enabled", true)));
         vertx = Vertx.vertx();
         vertx.deployVerticle(WebSqlVerticle.class, options, context.asyncAssertSuccess());
     }
@@ -2,15 +2,21 @@ package ru.shishmakov;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestContext;
 import org.junit.Test;
 import ru.shishmakov.blog.Whisky;
+import ru.shishmakov.web.Representation;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.List;
 
 import static java.util.Arrays.asList;
@@ -98,6 +104,60 @@ public abstract class WebVerticle {
         });
     }
 
+    @Test
+    public void getApiShouldReturnCachedWhiskiesUntilWrite(TestContext context) {
+        String src = Json.encodePrettily(new Whisky("Jameson", "Ireland"));
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.getNow(getPort(), "localhost", "/api/whiskies", response -> response.bodyHandler(body -> {
+            client.get(getPort(), "localhost", "/api/whiskies", cachedResponse -> {
+                context.assertEquals("gzip", cachedResponse.headers().get("content-encoding"), "response isn't cached");
+                client.post(getPort(), "localhost", "/api/whiskies", postResponse -> {
+                    context.assertEquals(201, postResponse.statusCode(), "status code isn't 'created'");
+                    client.getNow(getPort(), "localhost", "/api/whiskies", changedResponse -> changedResponse.bodyHandler(changedBody -> {
+                        context.assertEquals(3, changedBody.toJsonArray().size(), "cached response isn't invalidated");
+                        async.complete();
+                    }));
+                }).putHeader("content-type", "application/json")
+                        .putHeader("content-length", String.valueOf(src.length()))
+                        .end(src);
+            }).putHeader("accept-encoding", "gzip").end();
+        }));
+    }
+
+    @Test
+    public void getApiShouldNotGzipCachedWhiskiesOfZeroWeight(TestContext context) {
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.getNow(getPort(), "localhost", "/api/whiskies", response -> response.bodyHandler(body -> {
+            context.assertEquals("accept, accept-encoding", response.headers().get("vary"), "uncached response doesn't vary");
+            client.get(getPort(), "localhost", "/api/whiskies", cachedResponse -> {
+                context.assertEquals("accept, accept-encoding", cachedResponse.headers().get("vary"), "cached response doesn't vary");
+                context.assertNull(cachedResponse.headers().get("content-encoding"), "refused gzip is sent");
+                cachedResponse.bodyHandler(cachedBody -> {
+                    context.assertEquals(body, cachedBody, "cached body isn't plain");
+                    async.complete();
+                });
+            }).putHeader("accept-encoding", "gzip;q=0, *").end();
+        }));
+    }
+
+    @Test
+    public void newConnectionsShouldBeServedWhileLoadBalancerIsToldNotReady(TestContext context) {
+        Async async = context.async();
+        getVertx().createHttpClient().getNow(getPort(), "localhost", "/health/ready", readyResponse -> {
+            context.assertEquals(200, readyResponse.statusCode(), "node isn't ready");
+            getVertx().deploymentIDs().forEach(getVertx()::undeploy);
+            getVertx().setTimer(200, t -> getVertx().createHttpClient().getNow(getPort(), "localhost", "/health/ready", drainingResponse -> {
+                context.assertEquals(503, drainingResponse.statusCode(), "draining node is ready");
+                getVertx().createHttpClient().getNow(getPort(), "localhost", "/api/whiskies/1", response -> {
+                    context.assertEquals(200, response.statusCode(), "new connection isn't served");
+                    async.complete();
+                });
+            }));
+        });
+    }
+
     @Test
     public void getApiShouldReturnWhisky(TestContext context) {
         final int id = 1;
@@ -112,6 +172,102 @@ public abstract class WebVerticle {
         });
     }
 
+    @Test
+    public void getApiShouldReturnRequestedFieldsOnly(TestContext context) {
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.getNow(getPort(), "localhost", "/api/whiskies/1?fields=id,name", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            response.bodyHandler(body -> {
+                JsonObject whisky = body.toJsonObject();
+                context.assertEquals(1, whisky.getInteger("id"), "whisky id is incorrect");
+                context.assertNotNull(whisky.getString("name"), "requested field is missing");
+                context.assertFalse(whisky.containsKey("origin"), "field isn't requested");
+                client.getNow(getPort(), "localhost", "/api/whiskies?fields=origin", listResponse -> {
+                    context.assertEquals(200, listResponse.statusCode(), "status code isn't 'ok'");
+                    listResponse.bodyHandler(listBody -> {
+                        for (Object item : listBody.toJsonArray()) {
+                            context.assertEquals(asList("id", "origin"), new ArrayList<>(((JsonObject) item).fieldNames()),
+                                    "fields aren't projected");
+                        }
+                        async.complete();
+                    });
+                });
+            });
+        });
+    }
+
+    @Test
+    public void getApiShouldRejectUnknownFields(TestContext context) {
+        Async async = context.async();
+        getVertx().createHttpClient().getNow(getPort(), "localhost", "/api/whiskies/1?fields=id,price", response -> {
+            context.assertEquals(400, response.statusCode(), "status code isn't 'bad request'");
+            async.complete();
+        });
+    }
+
+    @Test
+    public void getApiShouldReportServerTimingOnHeader(TestContext context) {
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.get(getPort(), "localhost", "/api/whiskies/1", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            String timing = response.getHeader("server-timing");
+            context.assertNotNull(timing, "server timing isn't reported");
+            context.assertTrue(timing.contains("db;dur="), "db phase isn't reported");
+            context.assertTrue(timing.contains("encode;dur="), "encode phase isn't reported");
+            context.assertTrue(timing.contains("total;dur="), "total isn't reported");
+            client.getNow(getPort(), "localhost", "/api/whiskies/1", untimed -> {
+                context.assertNull(untimed.getHeader("server-timing"), "untimed request reports server timing");
+                async.complete();
+            });
+        }).putHeader("x-server-timing", "1").end();
+    }
+
+    @Test
+    public void getAdminHotKeysShouldReportHottestReads(TestContext context) {
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.getNow(getPort(), "localhost", "/api/whiskies/0", first -> client.getNow(getPort(), "localhost", "/api/whiskies/1",
+                second -> client.getNow(getPort(), "localhost", "/api/whiskies/1", third -> {
+                    client.getNow(getPort(), "localhost", "/admin/hotkeys?limit=1", response -> {
+                        context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+                        response.bodyHandler(body -> {
+                            // the only verticle of the test
+                            JsonObject all = body.toJsonObject();
+                            JsonObject hotKeys = all.getJsonObject(all.fieldNames().iterator().next());
+                            JsonArray reads = hotKeys.getJsonArray("reads");
+                            context.assertEquals(1, reads.size(), "top isn't limited");
+                            context.assertEquals(1, reads.getJsonObject(0).getInteger("id"), "hottest read isn't reported");
+                            context.assertTrue(reads.getJsonObject(0).getInteger("count") >= 2, "count is underestimated");
+                            context.assertEquals("GET /api/whiskies/:id",
+                                    hotKeys.getJsonArray("routes").getJsonObject(0).getString("route"), "busiest route isn't reported");
+                            async.complete();
+                        });
+                    });
+                })));
+    }
+
+    @Test
+    public void getApiShouldReturnManyWhiskiesInRequestOrder(TestContext context) {
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.getNow(getPort(), "localhost", "/api/whiskies?ids=1,50,0", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            response.bodyHandler(body -> {
+                JsonArray whiskies = body.toJsonArray();
+                context.assertEquals(3, whiskies.size(), "whiskies aren't in request order");
+                context.assertEquals(1, whiskies.getJsonObject(0).getInteger("id"), "whisky id is incorrect");
+                context.assertEquals(true, whiskies.getJsonObject(1).getBoolean("missing"), "missing whisky isn't marked");
+                context.assertEquals(0, whiskies.getJsonObject(2).getInteger("id"), "whisky id is incorrect");
+                client.getNow(getPort(), "localhost", "/api/whiskies?ids=1,99999999999", overflowResponse -> {
+                    context.assertEquals(400, overflowResponse.statusCode(), "status code isn't 'bad request'");
+                    async.complete();
+                });
+            });
+        });
+    }
+
     @Test
     public void getApiShouldNotReturnWhiskyIfIdNotExists(TestContext context) {
         final int id = 50;
@@ -167,6 +323,87 @@ public abstract class WebVerticle {
                 .end();
     }
 
+    @Test
+    public void postApiShouldRejectMalformedJson(TestContext context) {
+        String src = "{\"name\":\"Jameson\",\"origin\":";
+        Async async = context.async();
+        getVertx().createHttpClient().post(getPort(), "localhost", "/api/whiskies")
+                .putHeader("content-type", "application/json")
+                .putHeader("content-length", String.valueOf(src.length()))
+                .handler(response -> {
+                    context.assertEquals(400, response.statusCode(), "status code isn't 'bad request'");
+                    async.complete();
+                })
+                .write(src)
+                .end();
+    }
+
+    @Test
+    public void postApiShouldReplayRetryWithIdempotencyKey(TestContext context) {
+        String src = Json.encodePrettily(new Whisky("Jameson", "Ireland"));
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.post(getPort(), "localhost", "/api/whiskies", firstResponse -> firstResponse.bodyHandler(firstBody -> {
+            context.assertEquals(201, firstResponse.statusCode(), "status code isn't 'created'");
+            client.post(getPort(), "localhost", "/api/whiskies", retryResponse -> retryResponse.bodyHandler(retryBody -> {
+                context.assertEquals(201, retryResponse.statusCode(), "status code isn't 'created'");
+                context.assertEquals("true", retryResponse.getHeader("idempotent-replayed"), "retry isn't replayed");
+                context.assertEquals(firstBody.toJsonObject().getInteger("id"), retryBody.toJsonObject().getInteger("id"),
+                        "retry has created another item");
+                async.complete();
+            })).putHeader("content-type", "application/json").putHeader("idempotency-key", "add-jameson").end(src);
+        })).putHeader("content-type", "application/json").putHeader("idempotency-key", "add-jameson").end(src);
+    }
+
+    @Test
+    public void postApiShouldRunConcurrentDuplicateOnce(TestContext context) {
+        String src = Json.encodePrettily(new Whisky("Jameson", "Ireland"));
+        Async async = context.async(2);
+        HttpClient client = getVertx().createHttpClient();
+        Integer[] ids = new Integer[2];
+        for (int i = 0; i < 2; i++) {
+            int request = i;
+            client.post(getPort(), "localhost", "/api/whiskies", response -> response.bodyHandler(body -> {
+                context.assertEquals(201, response.statusCode(), "status code isn't 'created'");
+                ids[request] = body.toJsonObject().getInteger("id");
+                if (ids[1 - request] != null) context.assertEquals(ids[0], ids[1], "duplicate has created another item");
+                async.countDown();
+            })).putHeader("content-type", "application/json").putHeader("idempotency-key", "add-jameson-twice").end(src);
+        }
+    }
+
+    @Test
+    public void postApiShouldRejectIdempotencyKeyOfAnotherBody(TestContext context) {
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.post(getPort(), "localhost", "/api/whiskies", firstResponse -> {
+            context.assertEquals(201, firstResponse.statusCode(), "status code isn't 'created'");
+            client.post(getPort(), "localhost", "/api/whiskies", otherResponse -> {
+                context.assertEquals(422, otherResponse.statusCode(), "status code isn't 'unprocessable entity'");
+                async.complete();
+            }).putHeader("content-type", "application/json").putHeader("idempotency-key", "add-one")
+                    .end(Json.encodePrettily(new Whisky("Glenfiddich", "Scotland, Speyside")));
+        }).putHeader("content-type", "application/json").putHeader("idempotency-key", "add-one")
+                .end(Json.encodePrettily(new Whisky("Jameson", "Ireland")));
+    }
+
+    @Test
+    public void postApiShouldRejectTooLargeBody(TestContext context) {
+        StringBuilder src = new StringBuilder("[1");
+        while (src.length() < 70_000) src.append(",1");
+        src.append(']');
+        Async async = context.async();
+        getVertx().createHttpClient().post(getPort(), "localhost", "/api/whiskies/_mget")
+                .putHeader("content-type", "application/json")
+                .putHeader("content-length", String.valueOf(src.length()))
+                .handler(response -> {
+                    context.assertEquals(413, response.statusCode(), "status code isn't 'payload too large'");
+                    async.complete();
+                })
+                .write(src.toString())
+                .end();
+    }
+
     @Test
     public void deleteApiShouldRemoveWhisky(TestContext context) {
         final int id = 1;
@@ -189,6 +426,208 @@ public abstract class WebVerticle {
         });
     }
 
+    @Test
+    public void getApiShouldReturnWhiskyAsCbor(TestContext context) {
+        final int id = 1;
+        Async async = context.async();
+        getVertx().createHttpClient().get(getPort(), "localhost", "/api/whiskies/" + id, response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            context.assertEquals(Representation.CBOR, response.headers().get("content-type"), "content-type isn't equal");
+            response.bodyHandler(body -> {
+                context.assertEquals(id, Representation.decodeCbor(body, Whisky.class).getId(), "whisky id is incorrect");
+                async.complete();
+            });
+        }).putHeader("accept", Representation.CBOR).end();
+    }
+
+    @Test
+    public void postApiShouldAddOneWhiskyFromCbor(TestContext context) {
+        Buffer src = Representation.encodeCbor(new Whisky("Jameson", "Ireland"));
+        Async async = context.async();
+        getVertx().createHttpClient().post(getPort(), "localhost", "/api/whiskies/")
+                .putHeader("content-type", Representation.CBOR)
+                .putHeader("content-length", String.valueOf(src.length()))
+                .handler(response -> {
+                    context.assertEquals(201, response.statusCode(), "status code isn't 'created'");
+                    response.bodyHandler(body -> {
+                        Whisky whisky = Json.decodeValue(body, Whisky.class);
+                        context.assertEquals("Jameson", whisky.getName(), "whisky name isn't equal");
+                        context.assertEquals("Ireland", whisky.getOrigin(), "whisky origin isn't equal");
+                        async.complete();
+                    });
+                })
+                .write(src)
+                .end();
+    }
+
+    @Test
+    public void getExportShouldStreamAllWhiskiesAsNdjson(TestContext context) {
+        Async async = context.async();
+        getVertx().createHttpClient().getNow(getPort(), "localhost", "/api/whiskies/_export", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            context.assertEquals("application/x-ndjson", response.headers().get("content-type"), "content-type isn't equal");
+            response.bodyHandler(body -> {
+                String[] lines = body.toString().split("\n");
+                context.assertEquals(2, lines.length, "whiskies aren't default values");
+                context.assertEquals(0, Json.decodeValue(lines[0], Whisky.class).getId(), "whisky id is incorrect");
+                async.complete();
+            });
+        });
+    }
+
+    @Test
+    public void postImportShouldUpsertWhiskiesFromCsv(TestContext context) {
+        String src = "id,name,origin\n1,Talisker 10,\"Scotland, Island\"\n,Jameson,Ireland\n";
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.post(getPort(), "localhost", "/api/whiskies/_import?format=csv")
+                .putHeader("content-type", "text/csv")
+                .putHeader("content-length", String.valueOf(src.length()))
+                .handler(response -> {
+                    context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+                    response.bodyHandler(body -> {
+                        context.assertEquals(2L, body.toJsonObject().getLong("imported"), "whiskies aren't imported");
+                        client.getNow(getPort(), "localhost", "/api/whiskies/1", getResponse -> getResponse.bodyHandler(whisky -> {
+                            context.assertEquals("Talisker 10", Json.decodeValue(whisky, Whisky.class).getName(), "whisky isn't updated");
+                            async.complete();
+                        }));
+                    });
+                })
+                .write(src)
+                .end();
+    }
+
+    @Test
+    public void postImportShouldKeepQuotedLineBreaksAndSpaces(TestContext context) {
+        String src = "id,name,origin\r\n1,\"Talisker\r\n10 \",\" Scotland, Island\"\r\n";
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.post(getPort(), "localhost", "/api/whiskies/_import?format=csv")
+                .putHeader("content-type", "text/csv")
+                .putHeader("content-length", String.valueOf(src.length()))
+                .handler(response -> {
+                    context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+                    client.getNow(getPort(), "localhost", "/api/whiskies/1", getResponse -> getResponse.bodyHandler(body -> {
+                        Whisky whisky = Json.decodeValue(body, Whisky.class);
+                        context.assertEquals("Talisker\r\n10 ", whisky.getName(), "quoted line break isn't kept");
+                        context.assertEquals(" Scotland, Island", whisky.getOrigin(), "quoted space isn't kept");
+                        async.complete();
+                    }));
+                })
+                .write(src)
+                .end();
+    }
+
+    @Test
+    public void getAdminMetricsShouldReturnBreakerState(TestContext context) {
+        Async async = context.async();
+        getVertx().createHttpClient().getNow(getPort(), "localhost", "/admin/metrics", response -> {
+            context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+            response.bodyHandler(body -> {
+                JsonObject metrics = body.toJsonObject();
+                context.assertTrue(metrics.fieldNames().stream().anyMatch(n -> n.endsWith(".state")), "breaker state is absent");
+                async.complete();
+            });
+        });
+    }
+
+    @Test
+    public void getHealthShouldReturnLiveAndReady(TestContext context) {
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.getNow(getPort(), "localhost", "/health/live", liveResponse -> {
+            context.assertEquals(200, liveResponse.statusCode(), "status code isn't 'ok'");
+            // wait for the first readiness check
+            getVertx().setTimer(1500, t -> client.getNow(getPort(), "localhost", "/health/ready", readyResponse -> {
+                context.assertEquals(200, readyResponse.statusCode(), "node isn't ready");
+                readyResponse.bodyHandler(body -> {
+                    JsonObject readiness = body.toJsonObject();
+                    context.assertTrue(readiness.getBoolean("db_ping_ok"), "database isn't pinged");
+                    context.assertTrue(readiness.containsKey("event_loop_lag_ms"), "event loop lag is absent");
+                    context.assertTrue(readiness.getBoolean("initialized"), "database isn't initialized");
+                    async.complete();
+                });
+            }));
+        });
+    }
+
+    @Test
+    public void undeployShouldDrainRequestInFlight(TestContext context) {
+        Async async = context.async(2);
+        HttpClientRequest request = getVertx().createHttpClient().post(getPort(), "localhost", "/api/whiskies/_import?format=csv")
+                .putHeader("content-type", "text/csv")
+                .setChunked(true)
+                .handler(response -> {
+                    context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+                    context.assertEquals("close", response.getHeader("connection"), "connection isn't closed");
+                    async.countDown();
+                });
+        request.write("id,name,origin\n");
+        getVertx().setTimer(200, t -> {
+            getVertx().undeploy(getVertx().deploymentIDs().iterator().next(), context.asyncAssertSuccess(v -> async.countDown()));
+            getVertx().setTimer(200, t2 -> request.end(",Jameson,Ireland\n"));
+        });
+    }
+
+    @Test
+    public void undeployShouldNotWaitForAbortedExport(TestContext context) {
+        // more than the socket buffers hold, the export stays in flight while the client doesn't read
+        StringBuilder src = new StringBuilder("id,name,origin\n");
+        for (int i = 0; i < 30_000; i++) {
+            src.append(",Whisky ").append(i).append(" aged in sherry and bourbon casks of the old distillery")
+                    .append(",Scotland of the north west highlands and islands\n");
+        }
+        Async async = context.async();
+        HttpClient client = getVertx().createHttpClient();
+        client.post(getPort(), "localhost", "/api/whiskies/_import?format=csv", importResponse -> {
+            context.assertEquals(200, importResponse.statusCode(), "status code isn't 'ok'");
+            client.getNow(getPort(), "localhost", "/api/whiskies/_export", response -> {
+                context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+                response.pause();
+                response.request().connection().close();
+                long start = System.currentTimeMillis();
+                getVertx().setTimer(200, t -> getVertx().undeploy(getVertx().deploymentIDs().iterator().next(),
+                        context.asyncAssertSuccess(v -> {
+                            context.assertTrue(System.currentTimeMillis() - start < 5_000, "aborted export is still in flight");
+                            async.complete();
+                        })));
+            });
+        }).putHeader("content-type", "text/csv")
+                .putHeader("content-length", String.valueOf(src.length()))
+                .end(src.toString());
+    }
+
+    @Test
+    public void undeployShouldDrainExportToTheEnd(TestContext context) {
+        // more than the socket buffers hold, the end of the export is queued when its connection is drained
+        StringBuilder src = new StringBuilder("id,name,origin\n");
+        for (int i = 0; i < 30_000; i++) {
+            src.append(",Whisky ").append(i).append(" aged in sherry and bourbon casks of the old distillery")
+                    .append(",Scotland of the north west highlands and islands\n");
+        }
+        Async async = context.async(2);
+        HttpClient client = getVertx().createHttpClient();
+        client.post(getPort(), "localhost", "/api/whiskies/_import?format=csv", importResponse -> {
+            context.assertEquals(200, importResponse.statusCode(), "status code isn't 'ok'");
+            client.getNow(getPort(), "localhost", "/api/whiskies/_export", response -> {
+                context.assertEquals(200, response.statusCode(), "status code isn't 'ok'");
+                Buffer body = Buffer.buffer();
+                response.handler(body::appendBuffer);
+                response.endHandler(v -> {
+                    context.assertEquals(30_002, body.toString().split("\n").length, "export is cut off");
+                    async.countDown();
+                });
+                response.pause();
+                getVertx().setTimer(200, t -> {
+                    getVertx().undeploy(getVertx().deploymentIDs().iterator().next(), context.asyncAssertSuccess(v -> async.countDown()));
+                    getVertx().setTimer(200, t2 -> response.resume());
+                });
+            });
+        }).putHeader("content-type", "text/csv")
+                .putHeader("content-length", String.valueOf(src.length()))
+                .end(src.toString());
+    }
+
     protected static int getFreeLocalPort() throws IOException {
         try (ServerSocket socket = new ServerSocket(0)) {
             return socket.getLocalPort();
@@ -0,0 +1,210 @@
+package ru.shishmakov;
+
+import com.sun.management.ThreadMXBean;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.blog.Whisky;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Performance regression tests of the REST operations: every operation is repeated in-process
+ * and its allocated bytes per request on the threads of Vert.x (event loops and workers) and latency percentiles
+ * are compared with the baseline of {@code perf-baseline.json}.
+ * <p>
+ * Run: mvn -Pperf test
+ * <ul>
+ * <li>{@code -Dperf.iterations=5000 -Dperf.warmup=2000} requests of one operation</li>
+ * <li>{@code -Dperf.tolerance=0.2} allowed growth of allocated bytes over the baseline</li>
+ * <li>{@code -Dperf.latency_tolerance=1.0} allowed growth of latency over the baseline</li>
+ * <li>{@code -Dperf.record=true} writes the measured values to src/test/resources/perf-baseline.json</li>
+ * </ul>
+ */
+public abstract class WebVerticlePerformance {
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final String BASELINE = "perf-baseline.json";
+    private static final Path BASELINE_SOURCE = Paths.get("src", "test", "resources", BASELINE);
+
+    private final int iterations = Integer.getInteger("perf.iterations", 5000);
+    private final int warmup = Integer.getInteger("perf.warmup", 2000);
+    private final double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.2"));
+    private final double latencyTolerance = Double.parseDouble(System.getProperty("perf.latency_tolerance", "1.0"));
+    private final boolean record = Boolean.getBoolean("perf.record");
+
+    /**
+     * @return name of the baseline section, e.g. "sql"
+     */
+    protected abstract String getName();
+
+    protected abstract int getPort();
+
+    @Test
+    public void getOneShouldNotRegress() throws IOException {
+        measure("get_one", "GET", "/api/whiskies/1", null);
+    }
+
+    @Test
+    public void getAllShouldNotRegress() throws IOException {
+        measure("get_all", "GET", "/api/whiskies", null);
+    }
+
+    @Test
+    public void getManyShouldNotRegress() throws IOException {
+        measure("get_many", "GET", "/api/whiskies?ids=1,2,50", null);
+    }
+
+    @Test
+    public void postManyShouldNotRegress() throws IOException {
+        measure("post_many", "POST", "/api/whiskies/_mget", "[1,2,50]");
+    }
+
+    @Test
+    public void addOneShouldNotRegress() throws IOException {
+        measure("add_one", "POST", "/api/whiskies", Json.encode(new Whisky("Jameson", "Ireland")));
+    }
+
+    @Test
+    public void updateOneShouldNotRegress() throws IOException {
+        measure("update_one", "PUT", "/api/whiskies/1", Json.encode(new Whisky("Talisker 10", "Scotland, Island")));
+    }
+
+    @Test
+    public void deleteOneShouldNotRegress() throws IOException {
+        // every request deletes a whisky of its own, added before the measurement
+        String whisky = Json.encode(new Whisky("Jameson", "Ireland"));
+        Deque<Integer> ids = new ArrayDeque<>();
+        for (int i = 0; i < warmup + iterations; i++) {
+            ids.add(Json.decodeValue(request("POST", "/api/whiskies", whisky), Whisky.class).getId());
+        }
+        measure("delete_one", "DELETE", () -> "/api/whiskies/" + ids.poll(), null);
+    }
+
+    private void measure(String operation, String method, String path, String body) throws IOException {
+        measure(operation, method, () -> path, body);
+    }
+
+    private void measure(String operation, String method, Supplier<String> path, String body) throws IOException {
+        for (int i = 0; i < warmup; i++) request(method, path.get(), body);
+
+        Map<Long, Long> allocatedBefore = allocatedBytes();
+        long[] latencies = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            String uri = path.get();
+            long start = System.nanoTime();
+            request(method, uri, body);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Map<Long, Long> allocatedAfter = allocatedBytes();
+
+        long allocated = 0;
+        for (Map.Entry<Long, Long> thread : allocatedAfter.entrySet()) {
+            allocated += thread.getValue() - allocatedBefore.getOrDefault(thread.getKey(), 0L);
+        }
+        Arrays.sort(latencies);
+        JsonObject measured = new JsonObject()
+                .put("allocated_bytes", allocated / iterations)
+                .put("p50_us", latencies[iterations / 2] / 1000)
+                .put("p99_us", latencies[iterations * 99 / 100] / 1000);
+        logger.info("{} {}: {}", getName(), operation, measured.encode());
+
+        if (record) {
+            recordBaseline(operation, measured);
+            return;
+        }
+        JsonObject baseline = readBaseline().getJsonObject(getName(), new JsonObject()).getJsonObject(operation);
+        assertThat(baseline).as("%s %s has no baseline, record it with -Dperf.record=true", getName(), operation).isNotNull();
+        assertWithin(operation, "allocated_bytes", measured, baseline, tolerance);
+        assertWithin(operation, "p50_us", measured, baseline, latencyTolerance);
+        assertWithin(operation, "p99_us", measured, baseline, latencyTolerance);
+    }
+
+    private void assertWithin(String operation, String key, JsonObject measured, JsonObject baseline, double tolerance) {
+        long limit = (long) (baseline.getLong(key) * (1 + tolerance));
+        assertThat(measured.getLong(key))
+                .as("%s %s %s exceeds the baseline %d by more than %.0f%%",
+                        getName(), operation, key, baseline.getLong(key), tolerance * 100)
+                .isLessThanOrEqualTo(limit);
+    }
+
+    /**
+     * @return body of the response
+     */
+    private String request(String method, String path, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", "localhost", getPort(), path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            byte[] bytes = body.getBytes(UTF_8);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("content-type", "application/json");
+            connection.setFixedLengthStreamingMode(bytes.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(bytes);
+            }
+        }
+        int status = connection.getResponseCode();
+        assertThat(status).as("%s %s", method, path).isBetween(200, 299);
+        // the response is read to the end so that the connection is kept alive
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) >= 0; ) out.write(buffer, 0, read);
+            return new String(out.toByteArray(), UTF_8);
+        }
+    }
+
+    /**
+     * @return bytes allocated by every event loop and worker thread so far
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<Long, Long> allocated = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.startsWith("vert.x-eventloop-thread") || name.startsWith("vert.x-worker-thread")) {
+                allocated.put(thread.getId(), threads.getThreadAllocatedBytes(thread.getId()));
+            }
+        }
+        return allocated;
+    }
+
+    private static JsonObject readBaseline() throws IOException {
+        try (InputStream in = WebVerticlePerformance.class.getClassLoader().getResourceAsStream(BASELINE)) {
+            if (in == null) return new JsonObject();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) >= 0; ) out.write(buffer, 0, read);
+            return new JsonObject(new String(out.toByteArray(), UTF_8));
+        }
+    }
+
+    private void recordBaseline(String operation, JsonObject measured) throws IOException {
+        JsonObject baseline = Files.exists(BASELINE_SOURCE)
+                ? new JsonObject(new String(Files.readAllBytes(BASELINE_SOURCE), UTF_8))
+                : new JsonObject();
+        JsonObject section = baseline.getJsonObject(getName(), new JsonObject());
+        baseline.put(getName(), section.put(operation, measured));
+        Files.write(BASELINE_SOURCE, baseline.encodePrettily().getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,71 @@
+package ru.shishmakov.benchmark;
+
+import ch.qos.logback.classic.Level;
+import io.vertx.core.http.HttpMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import ru.shishmakov.web.AccessLog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop cost of the access log per request: logging off, the ring buffer, and formatting
+ * the line on the event loop as a synchronous logger would do (without the I/O)
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.AccessLogBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(2)
+@Fork(1)
+public class AccessLogBenchmark {
+
+    private AccessLog log;
+    private String path;
+    private String route;
+
+    @Setup
+    public void setUp() {
+        // the drainer still formats lines, but the console I/O is out of the measurement
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("access")).setLevel(Level.OFF);
+        log = AccessLog.shared(8192);
+        path = "/api/whiskies/1";
+        route = "/api/whiskies/:id";
+    }
+
+    @Benchmark
+    public boolean loggingOff() {
+        return AccessLog.isEnabled();
+    }
+
+    @Benchmark
+    public boolean ringBuffer() {
+        return log.record(HttpMethod.GET, path, route, 200, 120, 532_000);
+    }
+
+    @Benchmark
+    public String formatOnEventLoop() {
+        return "method=" + HttpMethod.GET + " path=" + path + " route=" + route
+                + " status=" + 200 + " bytes=" + 120 + " latency_us=" + TimeUnit.NANOSECONDS.toMicros(532_000);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AccessLogBenchmark.class.getSimpleName()).build()).run();
+    }
+}
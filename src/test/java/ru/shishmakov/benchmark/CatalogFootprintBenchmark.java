@@ -0,0 +1,90 @@
+package ru.shishmakov.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.shishmakov.blog.CompactCatalog;
+import ru.shishmakov.blog.Whisky;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap taken by one million whiskies as {@code List<Whisky>} and as the compact catalog on heap and off heap,
+ * the footprint is printed once the catalog is built; the benchmark itself reads every record of the catalog.
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.CatalogFootprintBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class CatalogFootprintBenchmark {
+    private static final String[] ORIGINS = {"Scotland, Islay", "Scotland, Island", "Scotland, Speyside",
+            "Scotland, Highland", "Scotland, Lowland", "Ireland", "Japan", "USA, Kentucky"};
+    private static final int RECORDS = 1_000_000;
+
+    @Param({"list", "compact", "compact_off_heap"})
+    public String catalog;
+
+    private List<Whisky> whiskies;
+
+    @Setup
+    public void setUp() {
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+        // strings are built as they are read from a database, every record has its own copies
+        List<Whisky> list = new ArrayList<>(RECORDS);
+        for (int id = 0; id < RECORDS; id++) {
+            list.add(new Whisky(id, new String("Talisker " + id + " Years Old"), new String(ORIGINS[id % ORIGINS.length])));
+        }
+        if ("list".equals(catalog)) whiskies = list;
+        else whiskies = CompactCatalog.of(list, "compact_off_heap".equals(catalog)).views();
+        list = null;
+
+        long heap = usedHeap() - heapBefore;
+        long direct = usedDirect() - directBefore;
+        System.out.printf("%n%s: heap %d KB, off heap %d KB, %d bytes per record%n",
+                catalog, heap >> 10, direct >> 10, (heap + direct) / RECORDS);
+    }
+
+    @Benchmark
+    public int readAll() {
+        int length = 0;
+        for (Whisky whisky : whiskies) length += whisky.getName().length() + whisky.getOrigin().length();
+        return length;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedDirect() {
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> "direct".equals(pool.getName()))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CatalogFootprintBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,134 @@
+package ru.shishmakov.benchmark;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.jdbc.spi.impl.C3P0DataSourceProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.shishmakov.db.VirtualThreadJdbc;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Select by id under the same load of {@value #CONCURRENCY} concurrent requests from an event loop:
+ * JDBCClient on the worker pool vs synchronous JDBC on virtual threads, both on one pool of 10 connections.
+ * <p>
+ * The virtual mode needs JDK 21+, its setup fails on older JDKs: point {@code exec.executable} to the java of JDK 21
+ * to compare both modes, add {@code -Djdk.tracePinnedThreads=short} to see where the carriers are pinned.
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.JdbcExecutionBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdbcExecutionBenchmark {
+    private static final int CONCURRENCY = 200;
+    private static final int ROWS = 1000;
+    private static final String SELECT_BY_ID = "SELECT * FROM whisky WHERE id=?";
+
+    @Param({"worker", "virtual"})
+    public String mode;
+
+    private Vertx vertx;
+    private Context context;
+    private C3P0DataSourceProvider provider;
+    private DataSource dataSource;
+    private JDBCClient jdbc;
+    private VirtualThreadJdbc virtualThreads;
+
+    @Setup
+    public void setUp() throws Exception {
+        provider = new C3P0DataSourceProvider();
+        dataSource = provider.getDataSource(new JsonObject()
+                .put("url", "jdbc:hsqldb:mem:bench_" + mode)
+                .put("driver_class", "org.hsqldb.jdbcDriver")
+                .put("max_pool_size", 10));
+        try (Connection con = dataSource.getConnection(); Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS whisky (id INTEGER IDENTITY, name varchar(100), origin varchar(100))");
+            for (int i = 0; i < ROWS; i++) {
+                statement.execute("INSERT INTO whisky (name, origin) VALUES ('name " + i + "', 'origin " + i + "')");
+            }
+        }
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        if ("virtual".equals(mode)) virtualThreads = new VirtualThreadJdbc(vertx, dataSource);
+        else jdbc = JDBCClient.create(vertx, dataSource);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (virtualThreads != null) virtualThreads.close();
+        if (jdbc != null) jdbc.close();
+        CountDownLatch closed = new CountDownLatch(1);
+        vertx.close(v -> closed.countDown());
+        closed.await();
+        provider.close(dataSource);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONCURRENCY)
+    public void selectOne() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(CONCURRENCY);
+        Handler<AsyncResult<String>> next = result -> {
+            if (result.failed()) throw new IllegalStateException(result.cause());
+            done.countDown();
+        };
+        context.runOnContext(v -> {
+            for (int i = 0; i < CONCURRENCY; i++) {
+                int id = ThreadLocalRandom.current().nextInt(ROWS);
+                if (virtualThreads != null) virtualThreads.execute(con -> selectName(id, con), next);
+                else jdbc.getConnection(conResult -> conResult.result()
+                        .queryWithParams(SELECT_BY_ID, new JsonArray().add(id), selectResult -> {
+                            conResult.result().close();
+                            next.handle(selectResult.map(rows -> rows.getRows().get(0).getString("NAME")));
+                        }));
+            }
+        });
+        done.await();
+    }
+
+    private static AsyncResult<String> selectName(int id, Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(SELECT_BY_ID)) {
+            statement.setInt(1, id);
+            try (ResultSet rows = statement.executeQuery()) {
+                rows.next();
+                return Future.succeededFuture(rows.getString("name"));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(JdbcExecutionBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,130 @@
+package ru.shishmakov.benchmark;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.shishmakov.web.RateLimiter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop cost of the rate limit handler per request: one busy client, clients which fit into {@code max_clients}
+ * and more clients than the bound, so every request evicts the least recent one
+ * <p>
+ * The limiter belongs to one event loop, the benchmark runs in one thread. The request, the response and
+ * the routing context are proxies which count for a few ns of every call, see {@code disabled}.
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.RateLimitBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimitBenchmark {
+    private static final int MAX_CLIENTS = 10_000;
+
+    @Param({"1", "10000", "100000"})
+    private int clients;
+
+    private Vertx vertx;
+    private RateLimiter limiter;
+    private RateLimiter disabled;
+    private RoutingContext[] contexts;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        vertx = Vertx.vertx();
+        JsonArray keys = new JsonArray();
+        contexts = new RoutingContext[clients];
+        for (int i = 0; i < clients; i++) {
+            keys.add("client-" + i);
+            contexts[i] = context("client-" + i);
+        }
+        limiter = new RateLimiter(vertx, "benchmark", new JsonObject().put("rate_limit", new JsonObject()
+                .put("enabled", true)
+                .put("api_keys", keys)
+                .put("read_rate", 1_000_000.0)
+                .put("read_burst", 1_000_000)
+                .put("max_clients", MAX_CLIENTS)));
+        disabled = new RateLimiter(vertx, "benchmark", new JsonObject());
+    }
+
+    @TearDown
+    public void tearDown() {
+        vertx.close();
+    }
+
+    @Benchmark
+    public void handle() {
+        RoutingContext context = contexts[next];
+        if (++next == contexts.length) next = 0;
+        limiter.handle(context);
+    }
+
+    @Benchmark
+    public void disabled() {
+        disabled.handle(contexts[0]);
+    }
+
+    /**
+     * @return a GET of the client, the response takes any header
+     */
+    private static RoutingContext context(String key) {
+        HttpServerResponse response = proxy(HttpServerResponse.class, (proxy, method, args) ->
+                method.getReturnType() == HttpServerResponse.class ? proxy : null);
+        HttpServerRequest request = proxy(HttpServerRequest.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getHeader":
+                    return key;
+                case "method":
+                    return HttpMethod.GET;
+                case "path":
+                    return "/api/whiskies/1";
+                default:
+                    return null;
+            }
+        });
+        return proxy(RoutingContext.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "request":
+                    return request;
+                case "response":
+                    return response;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RateLimitBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,91 @@
+package ru.shishmakov.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.shishmakov.blog.Whisky;
+import ru.shishmakov.web.Representation;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+
+/**
+ * Payload size and encode/decode time of the whiskies list: pretty JSON (as served today) vs CBOR
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.RepresentationBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepresentationBenchmark {
+
+    @Param({"10", "1000"})
+    public int size;
+
+    private List<Whisky> whiskies;
+    private String json;
+    private Buffer cbor;
+
+    @Setup
+    public void setUp() {
+        whiskies = buildWhiskies(size);
+        json = Json.encodePrettily(whiskies);
+        cbor = Representation.encodeCbor(whiskies);
+    }
+
+    @Benchmark
+    public String encodeJson() {
+        return Json.encodePrettily(whiskies);
+    }
+
+    @Benchmark
+    public Buffer encodeCbor() {
+        return Representation.encodeCbor(whiskies);
+    }
+
+    @Benchmark
+    public List<Whisky> decodeJson() {
+        return Json.decodeValue(json, new TypeReference<List<Whisky>>() {
+        });
+    }
+
+    @Benchmark
+    public Whisky[] decodeCbor() {
+        return Representation.decodeCbor(cbor, Whisky[].class);
+    }
+
+    private static List<Whisky> buildWhiskies(int size) {
+        return range(0, size)
+                .mapToObj(i -> new Whisky(i, "Bowmore 15 Years Laimrig #" + i, i % 2 == 0 ? "Scotland, Islay" : "Scotland, Island"))
+                .collect(toList());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int size : new int[]{10, 1000}) {
+            List<Whisky> whiskies = buildWhiskies(size);
+            System.out.printf("payload of %d whiskies: json=%d bytes, cbor=%d bytes%n", size,
+                    Buffer.buffer(Json.encodePrettily(whiskies)).length(), Representation.encodeCbor(whiskies).length());
+        }
+        new Runner(new OptionsBuilder().include(RepresentationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,114 @@
+package ru.shishmakov.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.shishmakov.db.Shards;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write throughput of file-mode HSQLDB as the number of shards grows: 8 writers insert rows
+ * with ids of one generator into the shard of the id, every writer has its own connection per shard.
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.ShardedWritesBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ShardedWritesBenchmark {
+    private static final String INSERT_ONE_WITH_ID = "INSERT INTO whisky (id, name, origin) VALUES (?, ?, ?)";
+
+    @Param({"1", "2", "4"})
+    public int shards;
+
+    private final AtomicInteger ids = new AtomicInteger();
+    private File dir;
+    private String url;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("whisky-shards").toFile();
+        url = "jdbc:hsqldb:file:" + new File(dir, "whisky_store").getPath();
+        for (int i = 0; i < shards; i++) {
+            try (Connection con = DriverManager.getConnection(Shards.shardUrl(url, i), "SA", "");
+                 Statement statement = con.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS whisky (id INTEGER PRIMARY KEY, name varchar(100), origin varchar(100))");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (int i = 0; i < shards; i++) {
+            try (Connection con = DriverManager.getConnection(Shards.shardUrl(url, i), "SA", "");
+                 Statement statement = con.createStatement()) {
+                statement.execute("SHUTDOWN");
+            }
+        }
+        Files.walk(dir.toPath()).map(Path::toFile).sorted(Comparator.reverseOrder()).forEach(File::delete);
+    }
+
+    @Benchmark
+    public int insertOne(Writer writer) throws SQLException {
+        int id = ids.getAndIncrement();
+        PreparedStatement statement = writer.inserts[Shards.index(id, shards)];
+        statement.setInt(1, id);
+        statement.setString(2, "Talisker " + id);
+        statement.setString(3, "Scotland, Island");
+        return statement.executeUpdate();
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        private Connection[] connections;
+        private PreparedStatement[] inserts;
+
+        @Setup(Level.Trial)
+        public void setUp(ShardedWritesBenchmark benchmark) throws SQLException {
+            connections = new Connection[benchmark.shards];
+            inserts = new PreparedStatement[benchmark.shards];
+            for (int i = 0; i < benchmark.shards; i++) {
+                connections[i] = DriverManager.getConnection(Shards.shardUrl(benchmark.url, i), "SA", "");
+                inserts[i] = connections[i].prepareStatement(INSERT_ONE_WITH_ID);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            for (Connection connection : connections) connection.close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ShardedWritesBenchmark.class.getSimpleName()).build()).run();
+    }
+}
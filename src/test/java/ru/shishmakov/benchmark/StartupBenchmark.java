@@ -0,0 +1,149 @@
+package ru.shishmakov.benchmark;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.shishmakov.WebSqlVerticle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to the first request of {@link WebSqlVerticle} over a file-mode HSQLDB which already holds the catalog:
+ * the verticle is deployed and polled until the server answers (the readiness probe of a load balancer)
+ * and until the API serves an item. Every iteration opens the database again, as a restart of the node does.
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.StartupBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+    private static final int PORT = 8095;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean fastStartup;
+
+    private File dir;
+    private String url;
+    private Vertx vertx;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("whisky-startup").toFile();
+        url = "jdbc:hsqldb:file:" + new File(dir, "whisky_store").getPath();
+        try (Connection con = DriverManager.getConnection(url, "SA", "");
+             Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS whisky (id INTEGER IDENTITY, name varchar(100), origin varchar(100))");
+            try (PreparedStatement insert = con.prepareStatement("INSERT INTO whisky (name, origin) VALUES (?, ?)")) {
+                for (int i = 0; i < rows; i++) {
+                    insert.setString(1, "Talisker " + i);
+                    insert.setString(2, "Scotland, Island");
+                    insert.addBatch();
+                    if (i % 1000 == 999) insert.executeBatch();
+                }
+                if (rows % 1000 != 0) insert.executeBatch();
+            }
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.walk(dir.toPath()).map(Path::toFile).sorted(Comparator.reverseOrder()).forEach(File::delete);
+    }
+
+    @Setup(Level.Iteration)
+    public void startVertx() {
+        vertx = Vertx.vertx();
+    }
+
+    /**
+     * The database is initialized to the end before it's closed, the fast startup doesn't wait for it
+     */
+    @TearDown(Level.Iteration)
+    public void closeVertx() {
+        awaitStatus("/api/whiskies/1");
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        vertx.close(closeResult -> closed.complete(null));
+        closed.join();
+    }
+
+    @Benchmark
+    public int firstResponse() {
+        deploy();
+        return awaitStatus("/health/live");
+    }
+
+    @Benchmark
+    public int firstApiResponse() {
+        deploy();
+        return awaitStatus("/api/whiskies/1");
+    }
+
+    /**
+     * Deploys without waiting, the time of deployment is a part of the time to the first response
+     */
+    private void deploy() {
+        JsonObject config = new JsonObject()
+                .put("http.port", PORT)
+                .put("url", url + ";shutdown=true")
+                .put("driver_class", "org.hsqldb.jdbcDriver")
+                .put("fast_startup", fastStartup);
+        vertx.deployVerticle(WebSqlVerticle.class.getName(), new DeploymentOptions().setConfig(config));
+    }
+
+    private static int awaitStatus(String path) {
+        while (true) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http", "localhost", PORT, path).openConnection();
+                int status = connection.getResponseCode();
+                try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                    if (in != null) while (in.read() >= 0) ;
+                }
+                if (status == 200) return status;
+            } catch (IOException e) {
+                // the server doesn't listen yet
+            }
+            Thread.yield();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(StartupBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,227 @@
+package ru.shishmakov.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage profiles of the {@code hsqldb} config over a file-mode HSQLDB with the catalog:
+ * the time to open the database, the throughput of updates and reads by id and the pause of a checkpoint
+ * after a burst of updates. {@code memory} is the default profile, {@code cached} keeps a part of the rows in memory
+ * and reads the data file through nio, {@code cached_sync} also syncs the log on every commit.
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.StorageProfileBenchmark"
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StorageProfileBenchmark {
+    private static final int DIRTY_ROWS = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"100000"})
+        public int rows;
+
+        @Param({"memory", "cached", "cached_sync"})
+        public String profile;
+
+        private File dir;
+        private String url;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            dir = Files.createTempDirectory("whisky-storage").toFile();
+            url = "jdbc:hsqldb:file:" + new File(dir, "whisky_store").getPath();
+            try (Connection con = DriverManager.getConnection(url, "SA", "");
+                 Statement statement = con.createStatement()) {
+                for (String setting : settings(profile)) statement.execute(setting);
+                statement.execute("CREATE " + ("memory".equals(profile) ? "MEMORY" : "CACHED")
+                        + " TABLE IF NOT EXISTS whisky (id INTEGER IDENTITY, name varchar(100), origin varchar(100),"
+                        + " version INTEGER DEFAULT 0 NOT NULL)");
+                try (PreparedStatement insert = con.prepareStatement("INSERT INTO whisky (name, origin) VALUES (?, ?)")) {
+                    for (int i = 0; i < rows; i++) {
+                        insert.setString(1, "Talisker " + i);
+                        insert.setString(2, "Scotland, Island");
+                        insert.addBatch();
+                        if (i % 1000 == 999) insert.executeBatch();
+                    }
+                    if (rows % 1000 != 0) insert.executeBatch();
+                }
+                statement.execute("SHUTDOWN");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.walk(dir.toPath()).map(Path::toFile).sorted(Comparator.reverseOrder()).forEach(File::delete);
+        }
+
+        /**
+         * The statements {@code HsqldbStorage} issues for the profile
+         */
+        private static List<String> settings(String profile) {
+            switch (profile) {
+                case "cached":
+                    return Arrays.asList("SET FILES CACHE ROWS 10000", "SET FILES CACHE SIZE 2000",
+                            "SET FILES NIO TRUE", "SET FILES NIO SIZE 256", "SET FILES WRITE DELAY 500 MILLIS");
+                case "cached_sync":
+                    return Arrays.asList("SET FILES CACHE ROWS 10000", "SET FILES CACHE SIZE 2000",
+                            "SET FILES NIO TRUE", "SET FILES NIO SIZE 256", "SET FILES WRITE DELAY 0 MILLIS");
+                default:
+                    return Arrays.asList("SET FILES WRITE DELAY 500 MILLIS");
+            }
+        }
+    }
+
+    /**
+     * An open database with the prepared statements of the API
+     */
+    @State(Scope.Benchmark)
+    public static class Session {
+        private Database database;
+        private Connection con;
+        private PreparedStatement selectById;
+        private PreparedStatement update;
+
+        @Setup(Level.Trial)
+        public void open(Database database) throws SQLException {
+            this.database = database;
+            this.con = DriverManager.getConnection(database.url, "SA", "");
+            this.selectById = con.prepareStatement("SELECT * FROM whisky WHERE id=?");
+            this.update = con.prepareStatement("UPDATE whisky SET name=?, origin=?, version=version+1 WHERE id=?");
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws SQLException {
+            try (Statement statement = con.createStatement()) {
+                statement.execute("SHUTDOWN");
+            }
+        }
+
+        /**
+         * The rows updated since the last checkpoint are written by the next one
+         */
+        @Setup(Level.Invocation)
+        public void dirty() throws SQLException {
+            for (int i = 0; i < DIRTY_ROWS; i++) update(randomId());
+        }
+
+        private int update(int id) throws SQLException {
+            update.setString(1, "Talisker " + id);
+            update.setString(2, "Scotland, Island");
+            update.setInt(3, id);
+            return update.executeUpdate();
+        }
+
+        private int randomId() {
+            return ThreadLocalRandom.current().nextInt(database.rows);
+        }
+    }
+
+    /**
+     * A restart of the node: the database is opened (memory tables are read whole) and shut down
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int startup(Database database) throws SQLException {
+        try (Connection con = DriverManager.getConnection(database.url, "SA", "");
+             Statement statement = con.createStatement()) {
+            int count;
+            try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM whisky")) {
+                rs.next();
+                count = rs.getInt(1);
+            }
+            statement.execute("SHUTDOWN");
+            return count;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int updates(Steady steady) throws SQLException {
+        return steady.session.update(steady.session.randomId());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String reads(Steady steady) throws SQLException {
+        steady.session.selectById.setInt(1, steady.session.randomId());
+        try (ResultSet rs = steady.session.selectById.executeQuery()) {
+            return rs.next() ? rs.getString("name") : null;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean checkpoint(Session session) throws SQLException {
+        try (Statement statement = session.con.createStatement()) {
+            return statement.execute("CHECKPOINT");
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean checkpointDefrag(Session session) throws SQLException {
+        try (Statement statement = session.con.createStatement()) {
+            return statement.execute("CHECKPOINT DEFRAG");
+        }
+    }
+
+    /**
+     * The open database without the burst of updates per invocation
+     */
+    @State(Scope.Benchmark)
+    public static class Steady {
+        private Session session;
+
+        @Setup(Level.Trial)
+        public void open(Database database) throws SQLException {
+            session = new Session();
+            session.open(database);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws SQLException {
+            session.close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(StorageProfileBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,191 @@
+package ru.shishmakov.benchmark;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonObject;
+import ru.shishmakov.WebMongoVerticle;
+import ru.shishmakov.WebSqlVerticle;
+import ru.shishmakov.web.TrafficCapture;
+import ru.shishmakov.web.TrafficCapture.Record;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a traffic capture of {@link TrafficCapture} against a verticle deployed in-process and reports
+ * the latency distribution of every route.
+ * <p>
+ * Requests are sent in the order of the capture at their arrival times divided by the speed, 1 is the pace of
+ * the capture and 10 is ten times faster; a request is never sent ahead of time, the lag behind the schedule
+ * is reported. The same capture and speed give the same sequence of requests, replay it against a copy of the
+ * database of the capture (the {@code url} or {@code connection_string} of the config) for the same answers.
+ * <p>
+ * Run: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath ru.shishmakov.benchmark.TrafficReplay db/capture/traffic.capture sql 10 [config.json]"
+ */
+public class TrafficReplay {
+    private static final int PORT = 8096;
+    private static final Pattern ids = Pattern.compile("/[0-9]+(?=/|$)");
+
+    private final Vertx vertx;
+    private final HttpClient client;
+    private final List<Record> records;
+    private final double speed;
+    private final Map<String, Route> routes = new TreeMap<>();
+    private final long[] lags;
+    private int sent;
+    private int completed;
+    private long started;
+
+    private TrafficReplay(Vertx vertx, List<Record> records, double speed) {
+        this.vertx = vertx;
+        this.client = vertx.createHttpClient(new HttpClientOptions()
+                .setDefaultPort(PORT)
+                .setMaxPoolSize(64)
+                .setKeepAlive(true));
+        this.records = records;
+        this.speed = speed;
+        this.lags = new long[records.size()];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: TrafficReplay <capture> [sql|mongo] [speed] [config.json]");
+            System.exit(2);
+        }
+        List<Record> records = TrafficCapture.read(Paths.get(args[0]));
+        String store = args.length > 1 ? args[1] : "sql";
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        JsonObject config = args.length > 3 ? readConfig(args[3]) : new JsonObject()
+                .put("url", "jdbc:hsqldb:mem:whisky_store_replay;shutdown=true")
+                .put("driver_class", "org.hsqldb.jdbcDriver");
+        config.put("http.port", PORT);
+
+        Vertx vertx = Vertx.vertx();
+        CompletableFuture<String> deployed = new CompletableFuture<>();
+        vertx.deployVerticle("mongo".equals(store) ? WebMongoVerticle.class.getName() : WebSqlVerticle.class.getName(),
+                new DeploymentOptions().setConfig(config), deployResult -> {
+                    if (deployResult.failed()) deployed.completeExceptionally(deployResult.cause());
+                    else deployed.complete(deployResult.result());
+                });
+        deployed.join();
+        TrafficReplay replay = new TrafficReplay(vertx, records, speed);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        vertx.runOnContext(v -> replay.start(done));
+        done.join();
+        replay.report();
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        vertx.close(closeResult -> closed.complete(null));
+        closed.join();
+    }
+
+    private static JsonObject readConfig(String file) throws IOException {
+        return new JsonObject(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends the requests which are due, then waits for the next one on a timer
+     */
+    private void start(CompletableFuture<Void> done) {
+        started = System.nanoTime();
+        if (records.isEmpty()) done.complete(null);
+        else sendDue(done);
+    }
+
+    private void sendDue(CompletableFuture<Void> done) {
+        long elapsed = System.nanoTime() - started;
+        while (sent < records.size()) {
+            Record record = records.get(sent);
+            long due = (long) (TimeUnit.MICROSECONDS.toNanos(record.getOffsetMicros()) / speed);
+            if (due > elapsed) {
+                vertx.setTimer(Math.max(1, TimeUnit.NANOSECONDS.toMillis(due - elapsed)), id -> sendDue(done));
+                return;
+            }
+            lags[sent++] = elapsed - due;
+            send(record, done);
+        }
+    }
+
+    private void send(Record record, CompletableFuture<Void> done) {
+        Route route = routes.computeIfAbsent(record.getMethod() + " " + template(record.getUri()), Route::new);
+        long start = System.nanoTime();
+        HttpClientRequest request = client.request(record.getMethod(), record.getUri(), response -> response.bodyHandler(body -> {
+            route.record(System.nanoTime() - start, response.statusCode());
+            if (++completed == records.size()) done.complete(null);
+        }));
+        request.exceptionHandler(e -> {
+            route.record(System.nanoTime() - start, 0);
+            if (++completed == records.size()) done.complete(null);
+        });
+        if (record.getAccept() != null) request.putHeader("accept", record.getAccept());
+        if (record.getBody().length() == 0) request.end();
+        else request.putHeader("content-type", record.getContentType()).end(record.getBody());
+    }
+
+    private void report() {
+        long elapsed = System.nanoTime() - started;
+        System.out.printf(Locale.ROOT, "%d requests in %.1f s at %.1fx: %.1f req/s, schedule lag p99 %.3f ms%n",
+                records.size(), elapsed / 1e9, speed, records.size() / (elapsed / 1e9), percentile(lags, lags.length, 0.99));
+        System.out.printf(Locale.ROOT, "%-40s %8s %8s %10s %10s %10s %10s %10s%n",
+                "route", "count", "errors", "p50 ms", "p90 ms", "p99 ms", "p999 ms", "max ms");
+        for (Route route : routes.values()) {
+            System.out.printf(Locale.ROOT, "%-40s %8d %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                    route.name, route.count, route.errors,
+                    percentile(route.latencies, route.count, 0.5),
+                    percentile(route.latencies, route.count, 0.9),
+                    percentile(route.latencies, route.count, 0.99),
+                    percentile(route.latencies, route.count, 0.999),
+                    percentile(route.latencies, route.count, 1.0));
+        }
+    }
+
+    /**
+     * @return the uri without the query and with ids as {@code :id}, e.g. {@code /api/whiskies/:id}
+     */
+    private static String template(String uri) {
+        int query = uri.indexOf('?');
+        return ids.matcher(query < 0 ? uri : uri.substring(0, query)).replaceAll("/:id");
+    }
+
+    /**
+     * @return the percentile of the first values, ms
+     */
+    private static double percentile(long[] nanos, int count, double quantile) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(count - 1, Math.ceil(quantile * count) - 1)] / 1e6;
+    }
+
+    private static final class Route {
+        private final String name;
+        private long[] latencies = new long[64];
+        private int count;
+        private int errors;
+
+        Route(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param status status code of the response, 0 if there is no response
+         */
+        void record(long nanos, int status) {
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+            if (status == 0 || status >= 500) errors++;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.shishmakov.db;
+
+import com.mongodb.async.client.MongoClientSettings;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.impl.MongoClientImpl;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Unit tests for the settings and the listeners of the shared client: the driver client doesn't connect
+ * until a command is sent, so there is no mongod. A failure here after an upgrade of vertx-mongo-client
+ * means the fields the listeners are installed into have changed.
+ */
+@RunWith(VertxUnitRunner.class)
+public class InstrumentedMongoTest {
+    private Vertx vertx;
+    private MongoClient client;
+
+    @Before
+    public void setUp() {
+        vertx = Vertx.vertx();
+    }
+
+    @After
+    public void tearDown(TestContext context) {
+        if (client != null) client.close();
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void testedVersionShouldBeOnClasspath(TestContext context) {
+        context.assertEquals(InstrumentedMongo.TESTED_VERSION,
+                MongoClientImpl.class.getPackage().getImplementationVersion(), "vertx-mongo-client isn't the tested one");
+    }
+
+    @Test
+    public void sharedClientShouldHaveSettingsOfConfigAndListeners(TestContext context) throws ReflectiveOperationException {
+        client = InstrumentedMongo.createShared(vertx, new JsonObject()
+                .put("connection_string", "mongodb://localhost:27017/?maxPoolSize=50&socketTimeoutMS=1000")
+                .put("db_name", "whisky_store_instrumented")
+                .put("mongo", new JsonObject()
+                        .put("max_pool_size", 20)
+                        .put("min_pool_size", 2)
+                        .put("max_wait_queue_size", 200)
+                        .put("max_wait_time", 2000)
+                        .put("socket_timeout", 5000)
+                        .put("write_concern", "majority")), "ds-instrumented", "mongo.instrumented");
+
+        MongoClientSettings settings = InstrumentedMongo.driverSettings(client);
+        context.assertEquals(1, settings.getCommandListeners().size(), "commands aren't timed");
+        context.assertEquals(1, settings.getConnectionPoolSettings().getConnectionPoolListeners().size(), "pool isn't watched");
+        context.assertEquals(20, settings.getConnectionPoolSettings().getMaxSize(), "config doesn't override connection string");
+        context.assertEquals(2, settings.getConnectionPoolSettings().getMinSize(), "min pool size isn't set");
+        context.assertEquals(200, settings.getConnectionPoolSettings().getMaxWaitQueueSize(), "wait queue size isn't set");
+        context.assertEquals(2000L, settings.getConnectionPoolSettings().getMaxWaitTime(MILLISECONDS), "wait time isn't set");
+        context.assertEquals(5000, settings.getSocketSettings().getReadTimeout(MILLISECONDS), "socket timeout isn't set");
+        context.assertEquals("majority", settings.getWriteConcern().getWString(), "write concern isn't set");
+    }
+
+    @Test
+    public void clientWithoutConnectionStringShouldHaveSettingsOfConfig(TestContext context) throws ReflectiveOperationException {
+        client = InstrumentedMongo.createShared(vertx, new JsonObject()
+                .put("db_name", "whisky_store_instrumented")
+                .put("mongo", new JsonObject()
+                        .put("max_pool_size", 20)
+                        .put("max_wait_queue_size", 200)
+                        .put("socket_timeout", 5000)), "ds-instrumented-keys", "mongo.keys");
+
+        MongoClientSettings settings = InstrumentedMongo.driverSettings(client);
+        context.assertEquals(20, settings.getConnectionPoolSettings().getMaxSize(), "pool size isn't set");
+        context.assertEquals(500, settings.getConnectionPoolSettings().getMaxWaitQueueSize(), "wait queue isn't rounded up");
+        context.assertEquals(5000, settings.getSocketSettings().getReadTimeout(MILLISECONDS), "socket timeout isn't set");
+    }
+
+    @Test
+    public void optionsShouldReplaceOptionsOfConnectionString(TestContext context) {
+        Map<String, Object> options = new LinkedHashMap<>();
+        options.put("maxPoolSize", 20);
+        context.assertEquals("mongodb://localhost:27017/?maxPoolSize=20",
+                InstrumentedMongo.withOptions("mongodb://localhost:27017", options));
+        context.assertEquals("mongodb://a:1,b:2/db?replicaSet=rs&maxPoolSize=20",
+                InstrumentedMongo.withOptions("mongodb://a:1,b:2/db?maxpoolsize=50&replicaSet=rs", options));
+        context.assertEquals("mongodb://localhost/db", InstrumentedMongo.withOptions("mongodb://localhost/db", new LinkedHashMap<>()));
+    }
+
+    @Test
+    public void clientOfSameDataSourceShouldBeInstrumentedOnce(TestContext context) throws ReflectiveOperationException {
+        JsonObject config = new JsonObject().put("db_name", "whisky_store_instrumented");
+        client = InstrumentedMongo.createShared(vertx, config, "ds-instrumented-twice", "mongo.twice");
+        MongoClient other = InstrumentedMongo.createShared(vertx, config, "ds-instrumented-twice", "mongo.twice");
+        try {
+            context.assertEquals(1, InstrumentedMongo.driverSettings(other).getCommandListeners().size(), "listeners are added twice");
+        } finally {
+            other.close();
+        }
+    }
+}